@@ -0,0 +1,92 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.test.AndroidTestCase;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+public class EntryRendererTest extends AndroidTestCase {
+    private static final String[] TAGS = {"Tag", "<T&g \"x\">", ""};
+
+    private static final byte[][] MESSAGES = {
+            "plain message".getBytes(Charsets.UTF_8),
+            "<b>\"Tom & Jerry's\"</b>".getBytes(Charsets.UTF_8),
+            "line 1\nline 2\r\n\tindented\n".getBytes(Charsets.UTF_8),
+            "".getBytes(Charsets.UTF_8),
+            "{$tag} {.r.time} {~message}".getBytes(Charsets.UTF_8),
+            "é中😀 ünïcödé".getBytes(Charsets.UTF_8),
+            {'b', 'a', 'd', ' ', (byte) 0xc3, '(', (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xff},
+    };
+
+    private static final int[] NANOSECONDS = {0, 1_500_000, 999_999_999};
+
+    private static LogEntry makeEntry(final int level, final String tag, final byte[] message, final int tid,
+                                      final int second, final int nanosecond) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(level);
+        payload.write(tag.getBytes(Charsets.UTF_8));
+        payload.write(0);
+        payload.write(message);
+        payload.write(0);
+        final byte[] array = payload.toByteArray();
+
+        final LogEntry entry = new LogEntry();
+        entry.wrap(array, 0, array.length, 1234, tid, second, nanosecond);
+        entry.setNames("com.example:<service> & \"x\"", "Thread <" + tid + "> & 'x'");
+        return entry;
+    }
+
+    public void testRendersLikeChunk() throws IOException {
+        final ChunkRenderer renderer = new ChunkRenderer(getContext());
+        final EntryRenderer entryRenderer = renderer.newEntryRenderer();
+        final Utf8Buffer buffer = new Utf8Buffer(256);
+
+        int second = 1_400_000_000;
+        // Levels 0, 1 and 8 are garbage, the rest are VERBOSE to ASSERT.
+        for (int level = 0; level <= 8; ++level) {
+            for (final String tag : TAGS) {
+                for (final byte[] message : MESSAGES) {
+                    for (final int nanosecond : NANOSECONDS) {
+                        for (int tid = 1234; tid <= 1235; ++tid) {
+                            second += 61;
+                            final LogEntry entry = makeEntry(level, tag, message, tid, second, nanosecond);
+
+                            final StringWriter writer = new StringWriter();
+                            renderer.writeLogEntry(writer, entry);
+                            final byte[] expected = writer.toString().getBytes(Charsets.UTF_8);
+
+                            buffer.reset();
+                            entryRenderer.render(entry, buffer);
+                            final byte[] actual = Arrays.copyOf(buffer.array(), buffer.size());
+
+                            assertEquals(writer.toString(), new String(actual, Charsets.UTF_8));
+                            assertTrue(Arrays.equals(expected, actual));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -38,7 +38,7 @@ public class FlushableGzipOutputStreamTest extends TestCase {
         final File tempFile = File.createTempFile("tmp", ".gz");
 
         final ByteArrayOutputStream standardStream = new ByteArrayOutputStream();
-        final FlushableGzipOutputStream zippedStream = new FlushableGzipOutputStream(tempFile);
+        final FlushableGzipOutputStream zippedStream = new FlushableGzipOutputStream(tempFile, "wb");
 
         for (byte i = 0; i < 100; ++ i) {
             final byte[] buffer = {i, i, i, i, i, i, i, i, i, i, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, i, i, i, i, i, i, i, i};
@@ -0,0 +1,81 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class LogCompressorTest extends TestCase {
+    private static final String[] ENGINES = {LogCompressor.ENGINE_NATIVE, LogCompressor.ENGINE_JAVA};
+
+    private static final String[] STRATEGIES = {
+            LogCompressor.STRATEGY_DEFAULT,
+            LogCompressor.STRATEGY_FILTERED,
+            LogCompressor.STRATEGY_HUFFMAN_ONLY,
+    };
+
+    public void testLevelIsClamped() {
+        assertEquals(0, LogCompressor.clampLevel(-1));
+        assertEquals(0, LogCompressor.clampLevel(0));
+        assertEquals(9, LogCompressor.clampLevel(9));
+        assertEquals(9, LogCompressor.clampLevel(Integer.MAX_VALUE));
+    }
+
+    public void testAllSettingsRoundTrip() throws IOException {
+        final byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) ("0123456789 abcdef\n".charAt((i * 7 + i / 13) % 18));
+        }
+        final File file = File.createTempFile("tmp", ".gz");
+        try {
+            for (final String engine : ENGINES) {
+                for (int level = -1; level <= 10; ++level) {
+                    for (final String strategy : STRATEGIES) {
+                        final LogCompressor compressor = LogCompressor.create(engine, level, strategy);
+                        final OutputStream stream = compressor.open(file);
+                        stream.write(content, 0, 1000);
+                        stream.flush();
+                        ((LogCompressor.Checkpointable) stream).checkpoint();
+                        stream.write(content, 1000, content.length - 1000);
+                        stream.close();
+
+                        final GZIPInputStream input = new GZIPInputStream(new FileInputStream(file));
+                        final byte[] actual;
+                        try {
+                            actual = ByteStreams.toByteArray(input);
+                        } finally {
+                            input.close();
+                        }
+                        assertTrue(engine + " level " + level + " " + strategy, Arrays.equals(content, actual));
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
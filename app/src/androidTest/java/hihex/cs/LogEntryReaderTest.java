@@ -0,0 +1,125 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class LogEntryReaderTest extends TestCase {
+    private static byte[] makeFrame(final int headerLength, final int pid, final int tid, final int sec,
+                                    final int level, final String tag, final String message) {
+        final byte[] tagBytes = tag.getBytes(Charsets.UTF_8);
+        final byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+        final int payloadLength = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        final ByteBuffer buffer = ByteBuffer.allocate(headerLength + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) payloadLength);
+        buffer.putShort((short) headerLength);
+        buffer.putInt(pid);
+        buffer.putInt(tid);
+        buffer.putInt(sec);
+        buffer.putInt(123_000_000);
+        buffer.position(headerLength);
+        buffer.put((byte) level);
+        buffer.put(tagBytes);
+        buffer.put((byte) 0);
+        buffer.put(messageBytes);
+        buffer.put((byte) 0);
+        return buffer.array();
+    }
+
+    /**
+     * An input stream which returns at most 7 bytes per read, to exercise frames split across reads.
+     */
+    private static final class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+            return super.read(buffer, offset, Math.min(count, 7));
+        }
+    }
+
+    public void testReadFrames() throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(makeFrame(20, 12, 13, 1000, Log.INFO, "Tag", "hello"));
+        stream.write(makeFrame(24, 14, 15, 1001, Log.ERROR, "Ünïcödé", "wörld"));
+
+        final LogEntryReader reader = new LogEntryReader(new ByteArrayInputStream(stream.toByteArray()));
+        final LogEntry entry = new LogEntry();
+
+        reader.read(entry);
+        assertEquals(12, entry.pid());
+        assertEquals(13, entry.tid());
+        assertEquals(1000_123L, entry.timestamp().getTime());
+        assertEquals('I', entry.logLevelChar());
+        assertEquals("Tag", entry.tag());
+        assertEquals("hello", entry.message());
+
+        reader.read(entry);
+        assertEquals(14, entry.pid());
+        assertEquals(15, entry.tid());
+        assertEquals('E', entry.logLevelChar());
+        assertEquals("Ünïcödé", entry.tag());
+        assertEquals("wörld", entry.message());
+
+        try {
+            reader.read(entry);
+            fail("Expected EOF");
+        } catch (final EOFException e) {
+            // Expected.
+        }
+    }
+
+    public void testFramesSpanningBufferBoundary() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3000; ++i) {
+            builder.append((char) ('a' + i % 26));
+        }
+        final String longMessage = builder.toString();
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; ++i) {
+            stream.write(makeFrame(20, i, i, i, Log.DEBUG, "T" + i, longMessage));
+        }
+
+        final InputStream input = new TrickleInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        final LogEntryReader reader = new LogEntryReader(input);
+        final LogEntry entry = new LogEntry();
+        for (int i = 0; i < 200; ++i) {
+            reader.read(entry);
+            assertEquals(i, entry.pid());
+            assertEquals("T" + i, entry.tag());
+            assertEquals(longMessage, entry.message());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MatchContextTest extends TestCase {
+    private static final byte[][] MALFORMED_MESSAGES = {
+            {'a', (byte) 0x80, 'b'},                            // Lone continuation byte
+            {'a', (byte) 0xe2, (byte) 0x82},                    // Truncated sequence at the end
+            {(byte) 0xe2, (byte) 0x82, 'x'},                    // Truncated sequence in the middle
+            {(byte) 0xc0, (byte) 0xaf},                         // Overlong encoding
+            {(byte) 0xe0, (byte) 0x80, (byte) 0xaf},            // Overlong 3-byte encoding
+            {(byte) 0xed, (byte) 0xa0, (byte) 0x80},            // Encoded surrogate
+            {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80}, // Above U+10FFFF
+            {(byte) 0xf5, 'a'},                                 // Invalid lead byte
+            {(byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0x80}, // Valid 4-byte sequence
+            {'S', 't', 'a', 'r', 't', ' ', (byte) 0xc3, (byte) 0xa9, (byte) 0xff},
+    };
+
+    private static LogEntry makeEntry(final byte[] message) {
+        final byte[] payload = new byte[5 + message.length + 1];
+        payload[0] = 4;
+        payload[1] = 'T';
+        payload[2] = 'a';
+        payload[3] = 'g';
+        payload[4] = 0;
+        System.arraycopy(message, 0, payload, 5, message.length);
+        final LogEntry entry = new LogEntry();
+        entry.wrap(payload, 0, payload.length, 1, 1, 0, 0);
+        return entry;
+    }
+
+    private static byte[] randomMessage(final Random random) {
+        final byte[] message = new byte[random.nextInt(12)];
+        for (int i = 0; i < message.length; ++i) {
+            // Mostly non-ASCII bytes, to produce lots of malformed sequences. NUL would end the message.
+            message[i] = (byte) (random.nextInt(4) == 0 ? 'a' + random.nextInt(3) : 0x80 + random.nextInt(0x80));
+        }
+        return message;
+    }
+
+    public void testReusedMatcherIsResetToEachEntry() {
+        final Pattern pattern = Pattern.compile("(?s)\\A.*\\z");
+        final MatchContext context = new MatchContext();
+        final Matcher first = context.messageMatcher(pattern, makeEntry("first".getBytes(Charsets.UTF_8)));
+        assertTrue(first.matches());
+        assertEquals("first", first.group());
+
+        final Matcher second = context.messageMatcher(pattern, makeEntry("second".getBytes(Charsets.UTF_8)));
+        assertSame(first, second);
+        assertTrue(second.matches());
+        assertEquals("second", second.group());
+
+        // A failed match does not leave state behind for the next entry.
+        final Pattern partial = Pattern.compile("nd");
+        assertTrue(context.messageMatcher(partial, makeEntry("second".getBytes(Charsets.UTF_8))).find());
+        assertFalse(context.messageMatcher(partial, makeEntry("first".getBytes(Charsets.UTF_8))).find());
+        final Matcher third = context.messageMatcher(partial, makeEntry("and".getBytes(Charsets.UTF_8)));
+        assertTrue(third.find());
+        assertEquals(1, third.start());
+    }
+
+    public void testLiteralPrefixAgreesWithDecodedMessage() {
+        final String[] regexes = {"^Start", "^Start é", "^Start é�", "^a", "^�", "^�a", "^ab?"};
+        final MatchContext context = new MatchContext();
+        final Random random = new Random(42);
+        for (final String regex : regexes) {
+            final LogEntryFilter.Entry rule = LogEntryFilter.compileRule(null, null, regex, null);
+            final Pattern pattern = Pattern.compile(regex);
+            for (final byte[] message : MALFORMED_MESSAGES) {
+                final boolean expected = pattern.matcher(new String(message, Charsets.UTF_8)).find();
+                assertEquals(regex, expected, rule.matchesSourceAndMessage(makeEntry(message), "", context));
+            }
+            for (int i = 0; i < 1000; ++i) {
+                final byte[] message = randomMessage(random);
+                final boolean expected = pattern.matcher(new String(message, Charsets.UTF_8)).find();
+                assertEquals(regex, expected, rule.matchesSourceAndMessage(makeEntry(message), "", context));
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class SearchRunTest extends TestCase {
+    private File mFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolder = File.createTempFile("runs", "");
+        mFolder.delete();
+        mFolder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mFolder.listFiles();
+        for (final File file : (files != null) ? files : new File[0]) {
+            file.delete();
+        }
+        mFolder.delete();
+        super.tearDown();
+    }
+
+    private static long[] randomPostings(final Random random, final int count) {
+        final long[] postings = new long[count];
+        int segment = 0;
+        int entry = 0;
+        for (int i = 0; i < count; ++i) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    // Large gaps need the longest varints.
+                    segment += 1 + random.nextInt(1 << 20);
+                    entry = random.nextInt(Integer.MAX_VALUE);
+                    break;
+                case 1:
+                    ++segment;
+                    entry = random.nextInt(200);
+                    break;
+                default:
+                    final int gap = 1 + random.nextInt((random.nextInt(2) == 0) ? 100 : Integer.MAX_VALUE / 4);
+                    if (entry > Integer.MAX_VALUE - gap) {
+                        ++segment;
+                        entry = 0;
+                    } else {
+                        entry += gap;
+                    }
+                    break;
+            }
+            postings[i] = (long) segment << 32 | entry;
+        }
+        return postings;
+    }
+
+    public void testPostingsRoundTrip() {
+        final Random random = new Random(42);
+        final Utf8Buffer buffer = new Utf8Buffer(256);
+        for (int i = 0; i < 1000; ++i) {
+            final long[] postings = randomPostings(random, random.nextInt(100));
+            buffer.reset();
+            SearchRun.encodePostings(postings, postings.length, buffer);
+            final long[] decoded = SearchRun.decodePostings(Arrays.copyOf(buffer.array(), buffer.size()));
+            assertTrue(Arrays.equals(postings, decoded));
+        }
+    }
+
+    public void testEmptyPostingsRoundTrip() {
+        final Utf8Buffer buffer = new Utf8Buffer(16);
+        SearchRun.encodePostings(SearchRun.EMPTY_POSTINGS, 0, buffer);
+        assertEquals(0, buffer.size());
+        assertEquals(0, SearchRun.decodePostings(new byte[0]).length);
+    }
+
+    /**
+     * Writes a run with one segment per table, where every table maps terms to the entries having them.
+     */
+    private File writeRun(final String name, final List<TreeMap<String, int[]>> segments) throws IOException {
+        final File path = new File(mFolder, name + SearchRun.EXTENSION);
+        final SearchRun.Writer writer = new SearchRun.Writer(path);
+        final TreeMap<String, ArrayList<Long>> terms = new TreeMap<>();
+        for (int s = 0; s < segments.size(); ++s) {
+            writer.beginSegment(name + s, s, "process" + s, 1000 + s, 3, 100 + s, 200 + s, new String[]{"Tag"});
+            for (int e = 0; e < 3; ++e) {
+                writer.writeEntry(s * 1000 + e * 10, 100 + s + e, 4 << 24);
+            }
+            for (final String term : segments.get(s).keySet()) {
+                ArrayList<Long> postings = terms.get(term);
+                if (postings == null) {
+                    postings = new ArrayList<>();
+                    terms.put(term, postings);
+                }
+                for (final int entry : segments.get(s).get(term)) {
+                    postings.add((long) s << 32 | entry);
+                }
+            }
+        }
+        for (final String term : terms.keySet()) {
+            final ArrayList<Long> postings = terms.get(term);
+            final long[] array = new long[postings.size()];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = postings.get(i);
+            }
+            writer.writeTerm(term, array, array.length);
+        }
+        writer.finish();
+        return path;
+    }
+
+    private static TreeMap<String, int[]> segmentTerms(final int termCount, final int seed) {
+        final TreeMap<String, int[]> terms = new TreeMap<>();
+        final Random random = new Random(seed);
+        for (int i = 0; i < termCount; ++i) {
+            final int entry = random.nextInt(3);
+            terms.put("term" + (i * 7 + seed) % (termCount * 2), new int[]{entry});
+        }
+        terms.put("é中", new int[]{0, 2});
+        return terms;
+    }
+
+    public void testDictionaryRoundTrip() throws IOException {
+        // More terms than a dictionary block, so several blocks are needed.
+        final TreeMap<String, int[]> terms = segmentTerms(1000, 1);
+        final SearchRun run = new SearchRun(writeRun("dict", Arrays.asList(terms)));
+        try {
+            for (final String term : terms.keySet()) {
+                final int[] entries = terms.get(term);
+                final long[] postings = run.postings(term);
+                assertEquals(term, entries.length, postings.length);
+                for (int i = 0; i < entries.length; ++i) {
+                    assertEquals(term, entries[i], postings[i]);
+                }
+            }
+            for (final String missing : new String[]{"", "a", "term", "term0a", "zzz", "\uffff"}) {
+                assertEquals(missing, 0, run.postings(missing).length);
+            }
+
+            assertEquals(1, run.segmentCount());
+            final SearchIndex.SegmentInfo info = run.segment(0);
+            assertEquals("dict0", info.name);
+            assertEquals(3, info.entryCount);
+            final SearchIndex.EntryTable table = run.entryTable(0);
+            assertTrue(Arrays.equals(new long[]{0, 10, 20}, table.offsets));
+            assertTrue(Arrays.equals(new int[]{100, 101, 102}, table.seconds));
+        } finally {
+            run.close();
+        }
+    }
+
+    public void testMergeDropsDeletedSegments() throws IOException {
+        final List<TreeMap<String, int[]>> aSegments = Arrays.asList(segmentTerms(100, 1), segmentTerms(200, 2));
+        final List<TreeMap<String, int[]>> bSegments = Arrays.asList(segmentTerms(300, 3), segmentTerms(50, 4));
+        final SearchRun a = new SearchRun(writeRun("a", aSegments));
+        final SearchRun b = new SearchRun(writeRun("b", bSegments));
+        b.markDeleted(0);
+
+        final File path = new File(mFolder, "merged" + SearchRun.EXTENSION);
+        final List<long[]> sources = SearchRun.merge(Arrays.asList(a, b), path);
+        final SearchRun merged = new SearchRun(path);
+        try {
+            assertEquals(3, sources.size());
+            assertTrue(Arrays.equals(new long[]{0, 0}, sources.get(0)));
+            assertTrue(Arrays.equals(new long[]{0, 1}, sources.get(1)));
+            assertTrue(Arrays.equals(new long[]{1, 1}, sources.get(2)));
+
+            assertEquals(3, merged.segmentCount());
+            final String[] names = {"a0", "a1", "b1"};
+            final List<TreeMap<String, int[]>> expected = Arrays.asList(aSegments.get(0), aSegments.get(1),
+                    bSegments.get(1));
+            final TreeMap<String, ArrayList<Long>> expectedPostings = new TreeMap<>();
+            for (int s = 0; s < 3; ++s) {
+                final SearchIndex.SegmentInfo info = merged.segment(s);
+                assertEquals(names[s], info.name);
+                final SearchIndex.EntryTable table = merged.entryTable(s);
+                assertEquals(info.entryCount, table.offsets.length);
+                assertEquals(info.minSecond, table.seconds[0]);
+                for (final String term : expected.get(s).keySet()) {
+                    ArrayList<Long> postings = expectedPostings.get(term);
+                    if (postings == null) {
+                        postings = new ArrayList<>();
+                        expectedPostings.put(term, postings);
+                    }
+                    for (final int entry : expected.get(s).get(term)) {
+                        postings.add((long) s << 32 | entry);
+                    }
+                }
+            }
+
+            for (final String term : expectedPostings.keySet()) {
+                final ArrayList<Long> postings = expectedPostings.get(term);
+                final long[] actual = merged.postings(term);
+                assertEquals(term, postings.size(), actual.length);
+                for (int i = 0; i < actual.length; ++i) {
+                    assertEquals(term, (long) postings.get(i), actual[i]);
+                }
+            }
+            // Terms only found in the deleted segment are dropped.
+            for (final String term : bSegments.get(0).keySet()) {
+                if (!expectedPostings.containsKey(term)) {
+                    assertEquals(term, 0, merged.postings(term).length);
+                }
+            }
+        } finally {
+            a.close();
+            b.close();
+            merged.close();
+        }
+    }
+}
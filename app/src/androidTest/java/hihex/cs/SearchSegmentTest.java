@@ -0,0 +1,127 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class SearchSegmentTest extends TestCase {
+    private static final String NAME = "test.html.gz";
+    private static final int START_SECOND = 1400000000;
+
+    private File mFolder;
+    private SearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolder = File.createTempFile("index", "");
+        mFolder.delete();
+        mIndex = new SearchIndex(mFolder, Collections.<String, Long>emptyMap());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndex.close();
+        final File[] files = mFolder.listFiles();
+        for (final File file : (files != null) ? files : new File[0]) {
+            file.delete();
+        }
+        mFolder.delete();
+        super.tearDown();
+    }
+
+    private static LogEntry makeEntry(final int i) {
+        final byte[] payload = ("\4Tag\0common entry" + i + " every" + (i % 1000) + "\0").getBytes(Charsets.UTF_8);
+        final LogEntry entry = new LogEntry();
+        entry.wrap(payload, 0, payload.length, 1, 1, START_SECOND + i / 100, 0);
+        return entry;
+    }
+
+    private static long offset(final int i) {
+        return 100 + i * 50L;
+    }
+
+    private void assertSearchesAllParts(final int count) throws IOException {
+        assertEquals(count, mIndex.search("common", Integer.MAX_VALUE).size());
+        assertEquals(count / 1000, mIndex.search("every7", Integer.MAX_VALUE).size());
+        for (final int i : new int[]{0, 65535, 65536, count - 1}) {
+            final List<SearchIndex.Hit> hits = mIndex.search("entry" + i, 10);
+            assertEquals(1, hits.size());
+            assertEquals(offset(i), hits.get(0).offset);
+        }
+
+        // A range crossing the parts.
+        final int first = 65000;
+        final int last = 66099;
+        final long[] range = mIndex.entryRange(NAME, START_SECOND + first / 100, START_SECOND + last / 100).get();
+        assertEquals(offset(first), range[0]);
+        assertEquals(offset(last + 1), range[1]);
+
+        final long[] tail = mIndex.entryRange(NAME, START_SECOND + (count - 1) / 100, Long.MAX_VALUE).get();
+        assertEquals(-1, tail[1]);
+    }
+
+    public void testLargeSegmentIsWrittenInParts() throws IOException {
+        final SearchSegment segment = mIndex.openSegment(NAME, 1, "process", 0);
+        final int count = 150000;
+        for (int i = 0; i < count; ++i) {
+            segment.add(offset(i), makeEntry(i));
+            if (i % 1000 == 999) {
+                segment.process();
+            }
+        }
+        segment.process();
+        assertTrue(mFolder.listFiles().length >= 2);
+        assertSearchesAllParts(count);
+
+        segment.finish();
+        assertSearchesAllParts(count);
+
+        // The parts are loaded again after a restart.
+        final HashMap<String, Long> startTimes = new HashMap<>();
+        startTimes.put(NAME, 0L);
+        mIndex.close();
+        mIndex = new SearchIndex(mFolder, startTimes);
+        assertSearchesAllParts(count);
+
+        mIndex.remove(NAME);
+        assertFalse(mIndex.entryRange(NAME, Long.MIN_VALUE, Long.MAX_VALUE).isPresent());
+    }
+
+    public void testPendingEntriesAreCapped() throws IOException {
+        final SearchSegment segment = mIndex.openSegment(NAME, 1, "process", 0);
+        final int count = 100000;
+        for (int i = 0; i < count; ++i) {
+            segment.add(offset(i), makeEntry(i));
+        }
+        segment.finish();
+
+        final int indexed = mIndex.search("common", Integer.MAX_VALUE).size();
+        assertTrue(indexed > 0);
+        assertTrue(indexed < count);
+    }
+}
@@ -20,7 +20,8 @@ if (!!window.EventSource) {
         return s.replace(/[&<>"']/g, function (m) { return replacements[m]; });
     }
 
-    var source = new EventSource('/live-events');
+    // The filter in the query string of the page, e.g. /live?tag=ActivityManager&level=I, is applied by the server.
+    var source = new EventSource('/live-events' + window.location.search);
 
     var pendingLogs = [];
 
@@ -52,6 +53,10 @@ if (!!window.EventSource) {
         pendingMessagesCount.innerHTML = pendingLogs.length;
     }
 
+    source.addEventListener('dropped', function (ev) {
+        pendingLogs.push({dropped: ev.data});
+    });
+
     pendingMessagesCell.addEventListener('click', function (e) {
         var oldPendingLogs = pendingLogs;
         pendingLogs = [];
@@ -59,6 +64,15 @@ if (!!window.EventSource) {
         var newHTML = [];
         for (var i = 0; i < oldPendingLogs.length; ++ i) {
             var entry = oldPendingLogs[i];
+            if (entry.dropped) {
+                newHTML.push('<tr><td colspan=4>');
+                newHTML.push(messages.droppedPrefix);
+                newHTML.push(' ');
+                newHTML.push(entry.dropped);
+                newHTML.push(' ');
+                newHTML.push(messages.droppedSuffix);
+                continue;
+            }
             newHTML.push('<tr class=');
             newHTML.push(entry.level);
             newHTML.push('><td>');
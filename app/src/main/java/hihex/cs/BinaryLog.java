@@ -0,0 +1,433 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * The compact log file format ("*.cslog.gz").
+ *
+ * <p>Instead of rendered HTML, the file stores the raw payload of every logcat entry, and the process and thread names
+ * are stored once per file in a name table. The entries are only rendered when the file is read. The file is a gzip
+ * stream starting with {@link #MAGIC}, followed by records. Every record starts with its type byte, and all integers
+ * are unsigned LEB128 varints:</p>
+ *
+ * <ul>
+ * <li>{@link #RECORD_NAME} — id, length, UTF-8 bytes. Defines (or redefines) an entry of the name table.</li>
+ * <li>{@link #RECORD_ENTRY} — pid, tid, sec, nsec, process name id, thread name id, payload length, payload (the log
+ * level byte, the tag and the message, as in the {@code logger_entry} frame).</li>
+ * <li>{@link #RECORD_TEXT} — length, UTF-8 bytes. HTML written around the entries, e.g. the header and ANR
+ * traces.</li>
+ * </ul>
+ */
+final class BinaryLog {
+    public static final String EXTENSION = ".cslog.gz";
+
+    private static final byte[] MAGIC = {'C', 'S', 'L', 'O', 'G', 0, 1, 0};
+
+    private static final int RECORD_NAME = 1;
+    private static final int RECORD_ENTRY = 2;
+    private static final int RECORD_TEXT = 3;
+
+    private BinaryLog() {}
+
+    public static boolean isBinaryLog(final String fileName) {
+        return fileName.endsWith(EXTENSION);
+    }
+
+    /**
+     * The formats a binary log can be rendered into.
+     */
+    public enum Format {
+        HTML("text/html"),
+        JSON("application/json"),
+        TEXT("text/plain; charset=utf-8");
+
+        public final String mimeType;
+
+        Format(final String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * Parses the "format" parameter of a request. Unknown formats are rendered as HTML.
+         */
+        public static Format parse(final String name) {
+            if ("json".equals(name)) {
+                return JSON;
+            } else if ("text".equals(name)) {
+                return TEXT;
+            } else {
+                return HTML;
+            }
+        }
+    }
+
+    /**
+     * Encodes records for one file. It keeps track of the names already written to the file.
+     */
+    static final class Encoder {
+        private final HashMap<String, Integer> mNameIds = new HashMap<>();
+        private final ArrayList<String> mUncommittedNames = new ArrayList<>();
+        private final byte[] mHeader = new byte[40];
+        private int mHeaderLength;
+
+        static void writeMagic(final Utf8Buffer out) {
+            out.writeBytes(MAGIC, 0, MAGIC.length);
+        }
+
+        private void putVarint(final int value) {
+            int rest = value;
+            while ((rest & ~0x7f) != 0) {
+                mHeader[mHeaderLength++] = (byte) (rest | 0x80);
+                rest >>>= 7;
+            }
+            mHeader[mHeaderLength++] = (byte) rest;
+        }
+
+        private void flushHeader(final Utf8Buffer out) {
+            out.writeBytes(mHeader, 0, mHeaderLength);
+            mHeaderLength = 0;
+        }
+
+        private int nameId(final String name, final Utf8Buffer out) {
+            final Integer id = mNameIds.get(name);
+            if (id != null) {
+                return id;
+            }
+
+            final int newId = mNameIds.size();
+            mNameIds.put(name, newId);
+            mUncommittedNames.add(name);
+
+            final byte[] bytes = name.getBytes(Charsets.UTF_8);
+            mHeader[mHeaderLength++] = RECORD_NAME;
+            putVarint(newId);
+            putVarint(bytes.length);
+            flushHeader(out);
+            out.writeBytes(bytes, 0, bytes.length);
+            return newId;
+        }
+
+        /**
+         * Appends the entry record, preceded by the records of names not written to the file before. Either
+         * {@link #commit()} or {@link #rollback()} must be called after the records are written or discarded.
+         */
+        void encodeEntry(final LogEntry entry, final Utf8Buffer out) {
+            final int processNameId = nameId(entry.getProcessName(), out);
+            final int threadNameId = nameId(entry.getThreadName(), out);
+            final int payloadLength = entry.payloadLength();
+
+            mHeader[mHeaderLength++] = RECORD_ENTRY;
+            putVarint(entry.pid());
+            putVarint(entry.tid());
+            putVarint(entry.second());
+            putVarint(entry.nanosecond());
+            putVarint(processNameId);
+            putVarint(threadNameId);
+            putVarint(payloadLength);
+            flushHeader(out);
+            out.writeBytes(entry.payloadArray(), entry.payloadOffset(), payloadLength);
+        }
+
+        void commit() {
+            mUncommittedNames.clear();
+        }
+
+        /**
+         * Forgets the names written by the last {@link #encodeEntry(LogEntry, Utf8Buffer)}, since their records never
+         * reached the file.
+         */
+        void rollback() {
+            for (final String name : mUncommittedNames) {
+                mNameIds.remove(name);
+            }
+            mUncommittedNames.clear();
+        }
+
+        /**
+         * Appends the header of a text record. The text itself should be appended right after it.
+         */
+        void encodeTextHeader(final int length, final Utf8Buffer out) {
+            mHeader[mHeaderLength++] = RECORD_TEXT;
+            putVarint(length);
+            flushHeader(out);
+        }
+    }
+
+    /**
+     * Reads the records from the uncompressed content of a file. A file still being written may end with a truncated
+     * record, which is treated as the end of file.
+     */
+    static final class Decoder {
+        private final InputStream mInput;
+        private final ArrayList<String> mNames = new ArrayList<>();
+
+        byte[] data = new byte[4096];
+        int dataLength;
+        int pid;
+        int tid;
+        int sec;
+        int nsec;
+        String processName;
+        String threadName;
+
+        Decoder(final InputStream input) throws IOException {
+            mInput = new BufferedInputStream(input, 16384);
+            final byte[] magic = new byte[MAGIC.length];
+            if (!readFully(magic, magic.length) || !Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a CatSaver binary log");
+            }
+        }
+
+        private boolean readFully(final byte[] bytes, final int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                final int count = mInput.read(bytes, offset, length - offset);
+                if (count < 0) {
+                    return false;
+                }
+                offset += count;
+            }
+            return true;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final int b = mInput.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted varint");
+        }
+
+        private void readData(final int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupted record length");
+            }
+            if (data.length < length) {
+                data = new byte[Math.max(length, data.length * 2)];
+            }
+            if (!readFully(data, length)) {
+                throw new EOFException();
+            }
+            dataLength = length;
+        }
+
+        private String name(final int id) throws IOException {
+            if (id < 0 || id >= mNames.size()) {
+                throw new IOException("Undefined name " + id);
+            }
+            return mNames.get(id);
+        }
+
+        /**
+         * Reads the next entry or text record, with the content stored in the fields.
+         *
+         * @return {@link #RECORD_ENTRY}, {@link #RECORD_TEXT}, or -1 at the end of file.
+         */
+        int next() throws IOException {
+            try {
+                while (true) {
+                    final int type = mInput.read();
+                    switch (type) {
+                        case -1:
+                            return -1;
+                        case RECORD_NAME: {
+                            final int id = readVarint();
+                            readData(readVarint());
+                            final String name = new String(data, 0, dataLength, Charsets.UTF_8);
+                            if (id == mNames.size()) {
+                                mNames.add(name);
+                            } else {
+                                mNames.set(id, name);
+                            }
+                            break;
+                        }
+                        case RECORD_ENTRY:
+                            pid = readVarint();
+                            tid = readVarint();
+                            sec = readVarint();
+                            nsec = readVarint();
+                            processName = name(readVarint());
+                            threadName = name(readVarint());
+                            readData(readVarint());
+                            return RECORD_ENTRY;
+                        case RECORD_TEXT:
+                            readData(readVarint());
+                            return RECORD_TEXT;
+                        default:
+                            throw new IOException("Unknown record type " + type);
+                    }
+                }
+            } catch (final EOFException e) {
+                return -1;
+            }
+        }
+
+        void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+    /**
+     * Renders a binary log file as it is being read, so the whole file is never rendered in memory.
+     */
+    static final class RenderingStream extends InputStream {
+        private static final int CHUNK_SIZE = 16384;
+
+        private final Decoder mDecoder;
+        private final Format mFormat;
+        private final EntryRenderer mEntryRenderer;
+        private final LogEntry mEntry = new LogEntry();
+        private final Utf8Buffer mBuffer = new Utf8Buffer(CHUNK_SIZE * 2);
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ROOT);
+
+        private int mPosition;
+        private boolean mIsStarted;
+        private boolean mIsFinished;
+
+        /**
+         * @param input    The uncompressed content of the file. It will be closed with this stream.
+         * @param format   The format to render into.
+         * @param renderer The renderer of the HTML entries.
+         */
+        RenderingStream(final InputStream input, final Format format, final ChunkRenderer renderer)
+                throws IOException {
+            try {
+                mDecoder = new Decoder(input);
+            } catch (final IOException e) {
+                input.close();
+                throw e;
+            }
+            mFormat = format;
+            mEntryRenderer = (format == Format.HTML) ? renderer.newEntryRenderer() : null;
+        }
+
+        /**
+         * Renders the next chunk into the buffer.
+         *
+         * @return false if there is nothing left.
+         */
+        private boolean fill() throws IOException {
+            mBuffer.reset();
+            mPosition = 0;
+            if (mIsFinished) {
+                return false;
+            }
+
+            if (!mIsStarted && mFormat == Format.JSON) {
+                mBuffer.write('[');
+            }
+            while (mBuffer.size() < CHUNK_SIZE) {
+                final int type = mDecoder.next();
+                if (type == RECORD_ENTRY) {
+                    mEntry.wrap(mDecoder.data, 0, mDecoder.dataLength, mDecoder.pid, mDecoder.tid, mDecoder.sec,
+                            mDecoder.nsec);
+                    mEntry.setNames(mDecoder.processName, mDecoder.threadName);
+                    renderEntry();
+                } else if (type == RECORD_TEXT) {
+                    if (mFormat == Format.HTML) {
+                        mBuffer.writeBytes(mDecoder.data, 0, mDecoder.dataLength);
+                    }
+                } else {
+                    if (mFormat == Format.JSON) {
+                        mBuffer.write("\n]\n");
+                    }
+                    mIsFinished = true;
+                    break;
+                }
+            }
+            return mBuffer.size() > 0;
+        }
+
+        private void renderEntry() throws IOException {
+            switch (mFormat) {
+                case HTML:
+                    mEntryRenderer.render(mEntry, mBuffer);
+                    break;
+                case JSON:
+                    mBuffer.write(mIsStarted ? ",\n" : "\n");
+                    mEntry.writeJSON(mBuffer);
+                    break;
+                case TEXT: {
+                    // Same as the "threadtime" format of logcat.
+                    final String prefix = String.format(Locale.ROOT, "%s %5d %5d %c %-8s: ",
+                            mDateFormat.format(mEntry.timestamp()), mEntry.pid(), mEntry.tid(),
+                            mEntry.logLevelChar(), mEntry.tag());
+                    for (final String line : mEntry.message().split("\n", -1)) {
+                        mBuffer.write(prefix);
+                        mBuffer.write(line);
+                        mBuffer.write('\n');
+                    }
+                    break;
+                }
+            }
+            mIsStarted = true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition >= mBuffer.size() && !fill()) {
+                return -1;
+            }
+            return mBuffer.array()[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition >= mBuffer.size() && !fill()) {
+                return -1;
+            }
+            final int count = Math.min(length, mBuffer.size() - mPosition);
+            System.arraycopy(mBuffer.array(), mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.size() - mPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDecoder.close();
+        }
+    }
+}
@@ -24,14 +24,13 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.text.TextUtils;
+import android.util.Log;
 
-import com.google.common.collect.TreeMultimap;
 import com.google.common.io.Closeables;
 import com.x5.template.Chunk;
 import com.x5.template.Theme;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Writer;
@@ -102,16 +101,31 @@ public final class ChunkRenderer {
     }
 
     public void writeLogEntry(final Writer writer, final LogEntry entry) throws IOException {
-        mLogEntryChunk.set("log_level", entry.logLevelChar());
-        mLogEntryChunk.set("date", String.format(Locale.ROOT, "%1$tH:%1$tM:%1$tS.%1$tL", entry.timestamp()));
-        mLogEntryChunk.set("tag", entry.tag());
-        mLogEntryChunk.set("message", entry.message());
-        mLogEntryChunk.set("pid", entry.pid());
-        mLogEntryChunk.set("tid", entry.tid());
-        mLogEntryChunk.set("process_name", entry.getProcessName());
-        mLogEntryChunk.set("thread_name", entry.getThreadName());
-
-        mLogEntryChunk.render(writer);
+        renderLogEntry(mLogEntryChunk, writer, entry);
+    }
+
+    /**
+     * Renders a log entry with a {@code log#entry} chunk.
+     */
+    static void renderLogEntry(final Chunk chunk, final Writer writer, final LogEntry entry) throws IOException {
+        chunk.set("log_level", entry.logLevelChar());
+        chunk.set("date", String.format(Locale.ROOT, "%1$tH:%1$tM:%1$tS.%1$tL", entry.timestamp()));
+        chunk.set("tag", entry.tag());
+        chunk.set("message", entry.message());
+        chunk.set("pid", entry.pid());
+        chunk.set("tid", entry.tid());
+        chunk.set("process_name", entry.getProcessName());
+        chunk.set("thread_name", entry.getThreadName());
+
+        chunk.render(writer);
+    }
+
+    /**
+     * Creates a renderer which writes log entries like {@link #writeLogEntry(Writer, LogEntry)}, but without going
+     * through Chunk for every entry.
+     */
+    public EntryRenderer newEntryRenderer() {
+        return new EntryRenderer(mTheme);
     }
 
     public void writeAnrTraces(final Writer writer, final int pid) throws IOException {
@@ -149,22 +163,21 @@ public final class ChunkRenderer {
         final List<HashMap<String, String>> processes = database.runningProcesses();
         final Chunk chunk = mTheme.makeChunk("index");
 
-        final TreeMultimap<Long, File> files = logFiles.list();
+        final List<LogCatalog.Item> files = logFiles.list();
 
         final ArrayList<HashMap<String, String>> encodedFiles = new ArrayList<>(files.size());
         long totalSize = 0;
-        for (final File file : files.values()) {
-            final HashMap<String, String> content = new HashMap<>(5);
-            final long fileSize = file.length();
-            final String name = file.getName();
-            final int pid = database.findPid(name);
-
-            content.put("file_name", name);
-            content.put("last_modified", String.valueOf(file.lastModified()));
+        for (final LogCatalog.Item file : files) {
+            final HashMap<String, String> content = new HashMap<>(6);
+            final long fileSize = file.size;
+
+            content.put("file_name", file.name);
+            content.put("last_modified", String.valueOf(file.lastModified));
             content.put("file_size", String.valueOf(fileSize));
-            if (pid != -1) {
-                content.put("pid", String.valueOf(pid));
-                content.put("process_name", database.getProcessName(pid));
+            content.put("entry_counts", formatEntryCounts(file));
+            if (file.isRecording) {
+                content.put("pid", String.valueOf(file.pid));
+                content.put("process_name", file.processName);
             }
 
             encodedFiles.add(content);
@@ -178,6 +191,23 @@ public final class ChunkRenderer {
         return chunk.toString();
     }
 
+    /**
+     * Summarizes the number of entries of each log level in a file, e.g. "I 120 · W 3 · E 1".
+     */
+    private static String formatEntryCounts(final LogCatalog.Item file) {
+        final StringBuilder builder = new StringBuilder();
+        for (int level = Log.VERBOSE; level <= Log.ASSERT; ++level) {
+            final int count = file.levelCount(level);
+            if (count != 0) {
+                if (builder.length() != 0) {
+                    builder.append(" \u00b7 ");
+                }
+                builder.append(LogEntry.logLevelChar(level)).append(' ').append(count);
+            }
+        }
+        return builder.toString();
+    }
+
     public String renderSettings(final Preferences preferences) {
         final Chunk chunk = mTheme.makeChunk("settings");
         chunk.put("filter", preferences.getFilter().pattern());
@@ -186,6 +216,10 @@ public final class ChunkRenderer {
         chunk.put("show_indicator", String.valueOf(preferences.shouldShowIndicator()));
         chunk.put("split_size", String.valueOf(preferences.getSplitSize()));
         chunk.put("run_on_boot", String.valueOf(preferences.shouldRunOnBoot()));
+        chunk.put("binary_storage", String.valueOf(preferences.shouldUseBinaryStorage()));
+        chunk.put("compressor_engine", preferences.getCompressor().engine());
+        chunk.put("compression_level", String.valueOf(preferences.getCompressionLevel()));
+        chunk.put("compression_strategy", preferences.getCompressionStrategy());
         return chunk.toString();
     }
 
@@ -35,6 +35,11 @@ import android.widget.Toast;
 import java.io.IOException;
 
 public final class CollectorService extends Service {
+    /**
+     * How often the names of all running processes are reread from /proc, in milliseconds.
+     */
+    private static final long PROCESS_RESYNC_INTERVAL = 5 * 60 * 1000;
+
     private Thread mLogCollectorThread;
     private WebServer mWebServer;
     private RecIndicator mRecIndicator;
@@ -74,6 +79,7 @@ public final class CollectorService extends Service {
         // Prepare the configuration.
         final Config config = new Config(this);
         config.refreshPids();
+        config.pidDatabase.startScanner(PROCESS_RESYNC_INTERVAL);
         mConfig = config;
 
         // Start the web server
@@ -107,6 +113,9 @@ public final class CollectorService extends Service {
         Toast.makeText(this, R.string.stopping_hint, Toast.LENGTH_LONG).show();
         mLogCollectorThread = null;
         mRecIndicator = null;
+        if (mConfig != null) {
+            mConfig.pidDatabase.stopScanner();
+        }
         if (mWebServer != null) {
             mWebServer.stop();
             mWebServer = null;
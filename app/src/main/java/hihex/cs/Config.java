@@ -22,11 +22,10 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
@@ -44,6 +43,7 @@ public final class Config {
     public final ChunkRenderer renderer;
 
     public final PidDatabase pidDatabase = new PidDatabase();
+    public final LiveHub liveHub = new LiveHub();
 
     private final AtomicInteger mSystemServerPid = new AtomicInteger(-1);
     private final AtomicInteger mDebuggerdPid = new AtomicInteger(-1);
@@ -51,7 +51,7 @@ public final class Config {
     public Config(final Context context) {
         this.context = context;
         preferences = new Preferences(context);
-        logFiles = new LogFiles(context);
+        logFiles = new LogFiles(context, preferences);
         renderer = new ChunkRenderer(context);
     }
 
@@ -86,14 +86,15 @@ public final class Config {
     public Optional<Writer> startRecording(final int pid, final Optional<String> processName, final Date timestamp)
             throws IOException {
         final Writer[] optWriter = {null};
+        final boolean isBinary = preferences.shouldUseBinaryStorage();
         try {
-            pidDatabase.startRecording(pid, processName, logFiles, timestamp, new Function<PidEntry, Void>() {
+            pidDatabase.startRecording(pid, processName, logFiles, timestamp, isBinary, new Function<PidEntry, Void>() {
                 @Override
                 public Void apply(final PidEntry entry) {
-                    final Writer writer = entry.writer.get();
+                    final LogSink writer = entry.writer.get();
                     optWriter[0] = writer;
                     try {
-                        renderer.writeHeader(writer, entry.pid, processName.or(entry.processName), timestamp);
+                        writeHeader(writer, entry.pid, processName.or(entry.processName), timestamp);
                     } catch (final IOException e) {
                         throw new UncheckedExecutionException(e);
                     }
@@ -109,6 +110,12 @@ public final class Config {
         return Optional.fromNullable(optWriter[0]);
     }
 
+    private void writeHeader(final LogSink writer, final int pid, final String processName, final Date timestamp)
+            throws IOException {
+        renderer.writeHeader(writer, pid, processName, timestamp);
+        writer.endHeader();
+    }
+
     public void stopRecording(final int pid, final Function<Writer, ?> cleanup) {
         pidDatabase.stopRecording(pid, new Function<Writer, Void>() {
             @Override
@@ -125,12 +132,12 @@ public final class Config {
         Events.bus.post(new Events.RecordCount(pidDatabase.countRecordingEntries()));
     }
 
-    public Optional<Writer> splitLogAndGetWriter(final int pid) {
+    public Optional<LogSink> splitLogAndGetWriter(final int pid) {
         final Optional<PidEntry> optEntry = pidDatabase.getEntry(pid);
         if (optEntry.isPresent()) {
             final PidEntry entry = optEntry.get();
             final long splitSize = preferences.getSplitSize();
-            if (splitSize >= 0 && entry.path.isPresent() && entry.path.get().length() >= splitSize) {
+            if (splitSize >= 0 && entry.writer.isPresent() && entry.writer.get().estimatedSize() >= splitSize) {
                 try {
                     renderer.writeFooter(entry.writer.get());
                 } catch (final IOException e) {
@@ -138,7 +145,7 @@ public final class Config {
                 }
                 final PidEntry splitEntry = pidDatabase.splitEntry(pid, logFiles);
                 try {
-                    renderer.writeHeader(splitEntry.writer.get(), splitEntry.pid, splitEntry.processName, new Date());
+                    writeHeader(splitEntry.writer.get(), splitEntry.pid, splitEntry.processName, new Date());
                 } catch (final IOException e) {
                     // Ignore.
                 }
@@ -151,20 +158,21 @@ public final class Config {
         }
     }
 
-    public void flushWriter(final String filename) {
+    /**
+     * Opens the uncompressed content of a log file which is still being recorded, without flushing it.
+     *
+     * @return The content, or absent if the file is not being recorded.
+     */
+    public Optional<InputStream> openRecordingLog(final String filename) throws IOException {
         final Optional<PidEntry> entry = pidDatabase.findEntry(filename);
         if (!entry.isPresent()) {
-            return;
-        }
-        final Optional<Writer> writer = entry.get().writer;
-        if (!entry.isPresent()) {
-            return;
+            return Optional.absent();
         }
-        try {
-            writer.get().flush();
-        } catch (final IOException e) {
-            // Flush failure, but ignore.
+        final Optional<LogSink> writer = entry.get().writer;
+        if (!writer.isPresent()) {
+            return Optional.absent();
         }
+        return Optional.of(writer.get().openContent());
     }
 
     public final void startRecordingExistingProcesses() {
@@ -195,31 +203,40 @@ public final class Config {
      * live logging.</li>
      * </ul>
      */
-    public int[] getFilteredPidsForLog(final LogEntry entry) {
+    public int[] getFilteredPidsForLog(final LogEntry entry, final MatchContext context) {
         entry.populateProcessName(pidDatabase);
 
         final String source = entry.getProcessName();
-        final Set<String> targets = pidDatabase.listRecordingProcessNames();
-        final HashSet<String> filtered = preferences.getLogFilter().filter(entry, source, targets);
-        if (filtered.isEmpty()) {
+        final RecordingTargets targets = pidDatabase.recordingTargets();
+        final long[] routes = preferences.getLogFilter().filter(entry, source, targets, context);
+
+        int count = 0;
+        for (final long word : routes) {
+            count += Long.bitCount(word);
+        }
+        if (count == 0) {
             return EMPTY_PID_ARRAY;
         }
-        targets.remove(LogEntryFilter.LIVE_SOURCE);
-        if (filtered.isEmpty()) {
+        final long liveBit = 1L << RecordingTargets.LIVE_SLOT;
+        if ((routes[RecordingTargets.LIVE_SLOT >>> 6] & liveBit) != 0) {
+            routes[RecordingTargets.LIVE_SLOT >>> 6] &= ~liveBit;
+            --count;
+        }
+        if (count == 0) {
             return EMPTY_PID_ARRAY_LIVE_ALLOWED;
         }
 
-        final int[] pids = new int[filtered.size()];
+        final int sourceSlot = targets.slotOf(source);
+        final int[] pids = new int[count];
         int i = 0;
-        for (final String target : filtered) {
-            final int targetPid;
-            if (target.equals(source)) {
-                targetPid = entry.pid();
-            } else {
-                targetPid = pidDatabase.findPidForExactProcessName(target);
+        for (int wordIndex = 0; wordIndex < routes.length; ++wordIndex) {
+            long word = routes[wordIndex];
+            while (word != 0) {
+                final int slot = wordIndex << 6 | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                pids[i] = (slot == sourceSlot) ? entry.pid() : targets.pid(slot);
+                ++i;
             }
-            pids[i] = targetPid;
-            ++i;
         }
         return pids;
     }
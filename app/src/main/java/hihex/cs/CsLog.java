@@ -34,4 +34,8 @@ public final class CsLog {
     public static void e(final String message, final Throwable e) {
         Log.e(TAG, message, e);
     }
+
+    public static void w(final String message) {
+        Log.w(TAG, message);
+    }
 }
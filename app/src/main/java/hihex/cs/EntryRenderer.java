@@ -0,0 +1,524 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+import com.x5.template.Chunk;
+import com.x5.template.Theme;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Renders log entries into UTF-8 bytes, producing exactly the same output as the {@code log#entry} template, without
+ * going through Chunk for every entry.
+ *
+ * <p>The template is "compiled" once by rendering it with marker values, which reveals the literal text around each
+ * field, whether each field is HTML-escaped, and how each ASCII character is escaped. Entries are then rendered by
+ * copying the literal bytes and the raw payload bytes, escaping as needed. Entries which the compiled template cannot
+ * reproduce exactly (e.g. invalid UTF-8) are still rendered by Chunk. If the template cannot be compiled at all, every
+ * entry is rendered by Chunk.</p>
+ *
+ * <p>This class is not thread-safe, but every instance has its own Chunk, so different threads can use their own
+ * instances.</p>
+ */
+public final class EntryRenderer {
+    private static final int FIELD_LOG_LEVEL = 0;
+    private static final int FIELD_DATE = 1;
+    private static final int FIELD_TAG = 2;
+    private static final int FIELD_MESSAGE = 3;
+    private static final int FIELD_PID = 4;
+    private static final int FIELD_TID = 5;
+    private static final int FIELD_PROCESS_NAME = 6;
+    private static final int FIELD_THREAD_NAME = 7;
+    private static final String[] FIELD_NAMES = {
+            "log_level", "date", "tag", "message", "pid", "tid", "process_name", "thread_name"
+    };
+
+    private static final char MARKER = '\u0001';
+    private static final String NON_ASCII_PROBE = "é中😀";
+
+    private final Chunk mChunk;
+    private final Template mTemplate;
+
+    private final Utf8Buffer mScratch = new Utf8Buffer(256);
+    private final byte[] mDigits = new byte[11];
+
+    /**
+     * The rendered time ("HH:MM:SS.mmm") of the last entry. The "HH:MM:SS." part is only formatted when the second
+     * changes.
+     */
+    private final byte[] mDate = new byte[12];
+    private long mDateSecond = Long.MIN_VALUE;
+
+    private String mLastProcessName;
+    private byte[] mLastProcessNameBytes;
+    private String mLastThreadName;
+    private byte[] mLastThreadNameBytes;
+
+    /**
+     * The compiled {@code log#entry} template.
+     */
+    private static final class Template {
+        /**
+         * The parts of the template. Each part is either a {@code byte[]} of literal text, or an {@code Integer} field
+         * ID. Fields IDs are negative ({@code ~id}) if the field is HTML-escaped.
+         */
+        final Object[] partsWithThread;
+        final Object[] partsWithoutThread;
+
+        /**
+         * The escaped form of each ASCII character, or null if the character is written as is.
+         */
+        final byte[][] escapes;
+
+        /**
+         * Whether Chunk interprets tags inside values, in which case values containing '{' cannot be rendered directly.
+         */
+        final boolean isValueInterpreted;
+
+        Template(final Object[] partsWithThread,
+                 final Object[] partsWithoutThread,
+                 final byte[][] escapes,
+                 final boolean isValueInterpreted) {
+            this.partsWithThread = partsWithThread;
+            this.partsWithoutThread = partsWithoutThread;
+            this.escapes = escapes;
+            this.isValueInterpreted = isValueInterpreted;
+        }
+    }
+
+    EntryRenderer(final Theme theme) {
+        mChunk = theme.makeChunk("log#entry");
+        Template template;
+        try {
+            template = compile(theme);
+        } catch (final IOException | RuntimeException e) {
+            template = null;
+        }
+        if (template != null && !verify(template)) {
+            template = null;
+        }
+        if (template == null) {
+            CsLog.w("Cannot compile the log entry template, entries will be rendered by Chunk.");
+        }
+        mTemplate = template;
+    }
+
+    /**
+     * Checks that the compiled template renders some sample entries exactly like Chunk.
+     */
+    private boolean verify(final Template template) {
+        final String[] samples = {
+                "\4Sample\0<b>\"Tom & Jerry's\"</b> é中😀\0",
+                "\6\0\0",
+        };
+        final Utf8Buffer expected = new Utf8Buffer(256);
+        final Utf8Buffer actual = new Utf8Buffer(256);
+        try {
+            for (final String sample : samples) {
+                final byte[] payload = sample.getBytes(Charsets.UTF_8);
+                for (int tid = 1000; tid <= 1001; ++tid) {
+                    final LogEntry entry = new LogEntry();
+                    entry.wrap(payload, 0, payload.length, 1000, tid, 1234567890, 987654321);
+                    expected.reset();
+                    ChunkRenderer.renderLogEntry(mChunk, expected, entry);
+                    actual.reset();
+                    if (!renderDirectly(template, entry, actual) || !regionEquals(expected, actual)) {
+                        return false;
+                    }
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(final Utf8Buffer a, final Utf8Buffer b) {
+        final int size = a.size();
+        if (size != b.size()) {
+            return false;
+        }
+        final byte[] aBytes = a.array();
+        final byte[] bBytes = b.array();
+        for (int i = 0; i < size; ++i) {
+            if (aBytes[i] != bBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String render(final Theme theme, final String[] values) throws IOException {
+        final Chunk chunk = theme.makeChunk("log#entry");
+        for (int i = 0; i < FIELD_NAMES.length; ++i) {
+            chunk.set(FIELD_NAMES[i], values[i]);
+        }
+        final StringWriter writer = new StringWriter();
+        chunk.render(writer);
+        return writer.toString();
+    }
+
+    private static String[] markerValues(final String suffix, final boolean hasThread) {
+        final String[] values = new String[FIELD_NAMES.length];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = MARKER + String.valueOf((char) ('A' + i)) + suffix + MARKER;
+        }
+        if (!hasThread) {
+            values[FIELD_TID] = values[FIELD_PID];
+        }
+        return values;
+    }
+
+    /**
+     * Splits the template rendered with marker values into parts.
+     *
+     * @return The parts, or null if the output cannot be understood.
+     */
+    private static Object[] compileParts(final Theme theme, final boolean hasThread) throws IOException {
+        // Render with plain markers to find the fields, and with markers containing '<' to find out which fields are
+        // escaped.
+        final String[] plainPieces = render(theme, markerValues("", hasThread)).split(String.valueOf(MARKER), -1);
+        final String[] probePieces = render(theme, markerValues("<", hasThread)).split(String.valueOf(MARKER), -1);
+        if (plainPieces.length != probePieces.length || plainPieces.length % 2 != 1) {
+            return null;
+        }
+
+        final ArrayList<Object> parts = new ArrayList<>();
+        for (int i = 0; i < plainPieces.length; ++i) {
+            final String piece = plainPieces[i];
+            if (i % 2 == 0) {
+                if (!piece.equals(probePieces[i])) {
+                    return null;
+                }
+                if (!piece.isEmpty()) {
+                    parts.add(piece.getBytes(Charsets.UTF_8));
+                }
+                continue;
+            }
+
+            if (piece.length() != 1) {
+                return null;
+            }
+            final int field = piece.charAt(0) - 'A';
+            if (field < 0 || field >= FIELD_NAMES.length) {
+                return null;
+            }
+            final String probe = probePieces[i];
+            if (probe.equals(piece + "<")) {
+                parts.add(field);
+            } else if (probe.startsWith(piece) && probe.length() > 2) {
+                parts.add(~field);
+            } else {
+                return null;
+            }
+        }
+        return parts.toArray();
+    }
+
+    /**
+     * Finds out how the HTML filter escapes each ASCII character.
+     *
+     * @return The escapes, or null if they cannot be found out.
+     */
+    private static byte[][] compileEscapes(final Theme theme, final Object[] parts) throws IOException {
+        int escapedField = -1;
+        for (final Object part : parts) {
+            if (part instanceof Integer && (Integer) part < 0) {
+                escapedField = ~(Integer) part;
+                break;
+            }
+        }
+        final byte[][] escapes = new byte[128][];
+        if (escapedField < 0) {
+            return escapes;
+        }
+
+        // Probe with "\1" "\2" "\1" "\3" ... "\1" "\177" "\1" NON_ASCII_PROBE "\1".
+        final StringBuilder probe = new StringBuilder();
+        for (char c = 2; c < 128; ++c) {
+            probe.append(MARKER).append(c);
+        }
+        probe.append(MARKER).append(NON_ASCII_PROBE).append(MARKER);
+        final String[] values = markerValues("", true);
+        values[escapedField] = probe.toString();
+
+        final String output = render(theme, values);
+        final int start = output.indexOf(MARKER + "\u0002");
+        final int end = output.indexOf(MARKER + NON_ASCII_PROBE + MARKER);
+        if (start < 0 || end < 0) {
+            return null;
+        }
+        final String[] pieces = output.substring(start + 1, end).split(String.valueOf(MARKER), -1);
+        if (pieces.length != 126) {
+            return null;
+        }
+        for (char c = 2; c < 128; ++c) {
+            final String piece = pieces[c - 2];
+            if (!piece.equals(String.valueOf(c))) {
+                escapes[c] = piece.getBytes(Charsets.UTF_8);
+            }
+        }
+        return escapes;
+    }
+
+    private static Template compile(final Theme theme) throws IOException {
+        final Object[] partsWithThread = compileParts(theme, true);
+        final Object[] partsWithoutThread = compileParts(theme, false);
+        if (partsWithThread == null || partsWithoutThread == null) {
+            return null;
+        }
+        final byte[][] escapes = compileEscapes(theme, partsWithThread);
+        if (escapes == null) {
+            return null;
+        }
+
+        final String[] values = markerValues("", true);
+        values[FIELD_MESSAGE] = "{$tag}";
+        final boolean isValueInterpreted = !render(theme, values).contains("{$tag}");
+
+        return new Template(partsWithThread, partsWithoutThread, escapes, isValueInterpreted);
+    }
+
+    /**
+     * Renders the entry, appending the UTF-8 bytes to the buffer.
+     */
+    public void render(final LogEntry entry, final Utf8Buffer out) throws IOException {
+        final int mark = out.size();
+        if (mTemplate != null && renderDirectly(mTemplate, entry, out)) {
+            return;
+        }
+        out.truncate(mark);
+        ChunkRenderer.renderLogEntry(mChunk, out, entry);
+    }
+
+    /**
+     * @return false if the entry cannot be rendered exactly, in which case the buffer content is undefined.
+     */
+    private boolean renderDirectly(final Template template, final LogEntry entry, final Utf8Buffer out) {
+        final Object[] parts = (entry.pid() != entry.tid()) ? template.partsWithThread : template.partsWithoutThread;
+        for (final Object part : parts) {
+            if (part instanceof byte[]) {
+                final byte[] bytes = (byte[]) part;
+                out.writeBytes(bytes, 0, bytes.length);
+                continue;
+            }
+
+            final int fieldWithFlag = (Integer) part;
+            final boolean isEscaped = fieldWithFlag < 0;
+            final int field = isEscaped ? ~fieldWithFlag : fieldWithFlag;
+            final byte[][] escapes = isEscaped ? template.escapes : null;
+            final boolean isValueInterpreted = template.isValueInterpreted;
+
+            final boolean isWritten;
+            switch (field) {
+                case FIELD_LOG_LEVEL:
+                    mDigits[0] = (byte) entry.logLevelChar();
+                    isWritten = writeEscaped(mDigits, 0, 1, escapes, isValueInterpreted, out);
+                    break;
+                case FIELD_DATE:
+                    isWritten = writeDate(entry, escapes, out);
+                    break;
+                case FIELD_TAG: {
+                    final byte[] array = entry.payloadArray();
+                    isWritten = writeEscaped(array, entry.tagOffset(), entry.tagLength(), escapes, isValueInterpreted,
+                            out);
+                    break;
+                }
+                case FIELD_MESSAGE: {
+                    final byte[] array = entry.payloadArray();
+                    isWritten = writeEscaped(array, entry.messageOffset(), entry.messageLength(), escapes,
+                            isValueInterpreted, out);
+                    break;
+                }
+                case FIELD_PID:
+                    isWritten = writeNumber(entry.pid(), escapes, out);
+                    break;
+                case FIELD_TID:
+                    isWritten = writeNumber(entry.tid(), escapes, out);
+                    break;
+                case FIELD_PROCESS_NAME: {
+                    final String name = entry.getProcessName();
+                    if (name != mLastProcessName) {
+                        mLastProcessName = name;
+                        mLastProcessNameBytes = encode(name);
+                    }
+                    final byte[] bytes = mLastProcessNameBytes;
+                    isWritten = writeEscaped(bytes, 0, bytes.length, escapes, isValueInterpreted, out);
+                    break;
+                }
+                case FIELD_THREAD_NAME: {
+                    final String name = entry.getThreadName();
+                    if (name != mLastThreadName) {
+                        mLastThreadName = name;
+                        mLastThreadNameBytes = encode(name);
+                    }
+                    final byte[] bytes = mLastThreadNameBytes;
+                    isWritten = writeEscaped(bytes, 0, bytes.length, escapes, isValueInterpreted, out);
+                    break;
+                }
+                default:
+                    isWritten = false;
+                    break;
+            }
+            if (!isWritten) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encode(final String string) {
+        mScratch.reset();
+        mScratch.write(string, 0, string.length());
+        return Arrays.copyOf(mScratch.array(), mScratch.size());
+    }
+
+    private boolean writeNumber(final int number, final byte[][] escapes, final Utf8Buffer out) {
+        final byte[] digits = mDigits;
+        int position = digits.length;
+        long value = Math.abs((long) number);
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (number < 0) {
+            digits[--position] = '-';
+        }
+        return writeEscaped(digits, position, digits.length - position, escapes, false, out);
+    }
+
+    private boolean writeDate(final LogEntry entry, final byte[][] escapes, final Utf8Buffer out) {
+        final byte[] date = mDate;
+        final long second = entry.second();
+        if (second != mDateSecond) {
+            final long millis = second * 1000;
+            final long localSecond = (millis + TimeZone.getDefault().getOffset(millis)) / 1000;
+            final int secondOfDay = (int) (((localSecond % 86400) + 86400) % 86400);
+            putTwoDigits(date, 0, secondOfDay / 3600);
+            date[2] = ':';
+            putTwoDigits(date, 3, secondOfDay / 60 % 60);
+            date[5] = ':';
+            putTwoDigits(date, 6, secondOfDay % 60);
+            date[8] = '.';
+            mDateSecond = second;
+        }
+
+        final int nanosecond = entry.nanosecond();
+        if (nanosecond < 0 || nanosecond >= 1000000000) {
+            return false;
+        }
+        final int millis = nanosecond / 1000000;
+        date[9] = (byte) ('0' + millis / 100);
+        date[10] = (byte) ('0' + millis / 10 % 10);
+        date[11] = (byte) ('0' + millis % 10);
+        return writeEscaped(date, 0, date.length, escapes, false, out);
+    }
+
+    private static void putTwoDigits(final byte[] array, final int offset, final int value) {
+        array[offset] = (byte) ('0' + value / 10);
+        array[offset + 1] = (byte) ('0' + value % 10);
+    }
+
+    /**
+     * Writes UTF-8 bytes, escaping ASCII characters if needed.
+     *
+     * @param escapes            The escapes of ASCII characters, or null to write the bytes as is.
+     * @param isValueInterpreted Whether '{' cannot be written directly.
+     * @return false if the bytes cannot be written exactly like Chunk does, e.g. when the bytes are not valid UTF-8.
+     */
+    private static boolean writeEscaped(final byte[] bytes,
+                                        final int offset,
+                                        final int length,
+                                        final byte[][] escapes,
+                                        final boolean isValueInterpreted,
+                                        final Utf8Buffer out) {
+        final int end = offset + length;
+        int runStart = offset;
+        int i = offset;
+        while (i < end) {
+            final int b = bytes[i];
+            if (b >= 0) {
+                if (b < 2 || (b == '{' && isValueInterpreted)) {
+                    return false;
+                }
+                final byte[] escape = (escapes != null) ? escapes[b] : null;
+                if (escape != null) {
+                    out.writeBytes(bytes, runStart, i - runStart);
+                    out.writeBytes(escape, 0, escape.length);
+                    runStart = i + 1;
+                }
+                ++i;
+            } else {
+                final int sequenceLength = validUtf8SequenceLength(bytes, i, end);
+                if (sequenceLength == 0) {
+                    return false;
+                }
+                i += sequenceLength;
+            }
+        }
+        out.writeBytes(bytes, runStart, end - runStart);
+        return true;
+    }
+
+    /**
+     * @return The length of the valid UTF-8 multibyte sequence at the offset, or 0 if the sequence is invalid.
+     */
+    private static int validUtf8SequenceLength(final byte[] bytes, final int offset, final int end) {
+        final int b = bytes[offset] & 0xff;
+        final int length;
+        int min = 0x80;
+        int max = 0xbf;
+        if (b >= 0xc2 && b < 0xe0) {
+            length = 2;
+        } else if (b >= 0xe0 && b < 0xf0) {
+            length = 3;
+            if (b == 0xe0) {
+                min = 0xa0;
+            } else if (b == 0xed) {
+                max = 0x9f;
+            }
+        } else if (b >= 0xf0 && b < 0xf5) {
+            length = 4;
+            if (b == 0xf0) {
+                min = 0x90;
+            } else if (b == 0xf4) {
+                max = 0x8f;
+            }
+        } else {
+            return 0;
+        }
+        if (offset + length > end) {
+            return 0;
+        }
+        for (int i = 1; i < length; ++i) {
+            final int continuation = bytes[offset + i] & 0xff;
+            if (continuation < min || continuation > max) {
+                return 0;
+            }
+            min = 0x80;
+            max = 0xbf;
+        }
+        return length;
+    }
+}
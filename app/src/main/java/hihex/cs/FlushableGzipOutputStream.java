@@ -25,54 +25,127 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A replacement of {@code GZIPOutputStream(FileOutputStream)}, which can be flushed anytime to make sure everything
  * written so far is visible to readers from other processes.
+ *
+ * <p>Written bytes are collected in a direct buffer shared with the native code, which is only handed to zlib when it
+ * is full, or when the stream is flushed or closed. Thus writing usually does not cross JNI at all, and the native side
+ * never needs to pin or copy a Java array.</p>
  */
-public class FlushableGzipOutputStream extends OutputStream {
+public class FlushableGzipOutputStream extends OutputStream implements LogCompressor.Checkpointable {
+    private static final int BUFFER_SIZE = 65536;
+
+    // The flush modes of zlib.
+    private static final int Z_NO_FLUSH = 0;
+    private static final int Z_SYNC_FLUSH = 2;
+    private static final int Z_FULL_FLUSH = 3;
+
+    private static final boolean IS_AVAILABLE;
+
     static {
-        System.loadLibrary("catsaver");
+        boolean isAvailable;
+        try {
+            System.loadLibrary("catsaver");
+            isAvailable = true;
+        } catch (final UnsatisfiedLinkError e) {
+            isAvailable = false;
+        }
+        IS_AVAILABLE = isAvailable;
     }
 
-    private static native long nativeCreate(final String filename);
-
-    private static native void nativeClose(final long ptr);
+    /**
+     * Whether the native library can be loaded.
+     */
+    static boolean isAvailable() {
+        return IS_AVAILABLE;
+    }
 
-    private static native void nativeWrite(final long ptr, final byte[] buf, final int offset, final int length);
+    private static native long nativeCreate(final String filename, final String mode);
 
-    private static native void nativePutc(final long ptr, final int c);
+    private static native void nativeClose(final long ptr);
 
-    private static native void nativeFlush(final long ptr);
+    /**
+     * Compresses the first {@code length} bytes of the direct buffer, then flushes the file with the zlib flush mode,
+     * unless it is {@link #Z_NO_FLUSH}.
+     *
+     * @throws IOException if the address of the buffer cannot be obtained.
+     */
+    private static native void nativeWrite(final long ptr,
+                                           final ByteBuffer buffer,
+                                           final int length,
+                                           final int flushMode) throws IOException;
 
     private long mNative;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
-    public FlushableGzipOutputStream(final File file) throws FileNotFoundException {
-        mNative = nativeCreate(file.getPath());
+    /**
+     * @param mode The mode of {@code gzopen()}, e.g. "wb6" or "wb9f".
+     */
+    public FlushableGzipOutputStream(final File file, final String mode) throws FileNotFoundException {
+        mNative = nativeCreate(file.getPath(), mode);
         if (mNative == 0) {
             throw new FileNotFoundException(file + " cannot be written");
         }
     }
 
+    /**
+     * Hands the buffered bytes to zlib.
+     */
+    private void drain(final int flushMode) throws IOException {
+        final int length = mBuffer.position();
+        if (length != 0 || flushMode != Z_NO_FLUSH) {
+            nativeWrite(mNative, mBuffer, length, flushMode);
+            mBuffer.clear();
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        nativeClose(mNative);
-        mNative = 0;
+        if (mNative == 0) {
+            return;
+        }
+        try {
+            drain(Z_NO_FLUSH);
+        } finally {
+            nativeClose(mNative);
+            mNative = 0;
+        }
     }
 
     @Override
     public void flush() throws IOException {
-        nativeFlush(mNative);
+        drain(Z_SYNC_FLUSH);
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        drain(Z_FULL_FLUSH);
     }
 
     @Override
     public void write(final byte[] buffer, final int offset, final int count) throws IOException {
         Preconditions.checkPositionIndexes(offset, offset + count, buffer.length);
-        nativeWrite(mNative, buffer, offset, count);
+        int position = offset;
+        int remaining = count;
+        while (remaining > 0) {
+            if (!mBuffer.hasRemaining()) {
+                drain(Z_NO_FLUSH);
+            }
+            final int length = Math.min(remaining, mBuffer.remaining());
+            mBuffer.put(buffer, position, length);
+            position += length;
+            remaining -= length;
+        }
     }
 
     @Override
     public void write(final int oneByte) throws IOException {
-        nativePutc(mNative, oneByte);
+        if (!mBuffer.hasRemaining()) {
+            drain(Z_NO_FLUSH);
+        }
+        mBuffer.put((byte) oneByte);
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+/**
+ * An open-addressing hash map from int to non-null values, with linear probing. Unlike {@code HashMap<Integer, V>},
+ * looking up a key does not box it.
+ *
+ * <p>The map has a fixed capacity and does not support removal. It is meant to be filled once and then only read, e.g.
+ * as an index of an immutable snapshot. Reading is thread-safe once the map is safely published.</p>
+ */
+final class IntMap<V> {
+    private final int[] mKeys;
+    private final Object[] mValues;
+    private final int mMask;
+    private int mSize;
+
+    /**
+     * @param capacity The maximum number of keys to be put into the map.
+     */
+    IntMap(final int capacity) {
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        mKeys = new int[tableSize];
+        mValues = new Object[tableSize];
+        mMask = tableSize - 1;
+    }
+
+    private static int hash(final int key) {
+        final int hash = key * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Puts a value into the map, replacing the existing value of the key.
+     */
+    void put(final int key, final V value) {
+        int slot = hash(key) & mMask;
+        while (mValues[slot] != null) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mSize * 2 >= mKeys.length) {
+            throw new IllegalStateException("IntMap is full");
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        ++mSize;
+    }
+
+    /**
+     * @return The value of the key, or null if absent.
+     */
+    @SuppressWarnings("unchecked")
+    V get(final int key) {
+        int slot = hash(key) & mMask;
+        while (true) {
+            final Object value = mValues[slot];
+            if (value == null) {
+                return null;
+            }
+            if (mKeys[slot] == key) {
+                return (V) value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+}
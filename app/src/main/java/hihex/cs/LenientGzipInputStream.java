@@ -0,0 +1,89 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses a gzip stream which may be unfinished, e.g. a log file still being written, or one left behind by a
+ * crash. Everything which can be decoded is returned, and a truncated stream simply ends instead of throwing
+ * {@link EOFException}.
+ *
+ * <p>It can also decompress raw deflate data without the gzip header, e.g. from a checkpoint in the middle of a log
+ * file (see {@link LogCheckpoints}).</p>
+ */
+final class LenientGzipInputStream extends InputStream {
+    private final InputStream mCompressed;
+    private final Inflater mRawInflater;
+    private InflaterInputStream mInput;
+    private boolean mIsEnded;
+
+    LenientGzipInputStream(final InputStream compressed) {
+        this(compressed, false);
+    }
+
+    /**
+     * @param isRaw Whether the stream is raw deflate data instead of a gzip file.
+     */
+    LenientGzipInputStream(final InputStream compressed, final boolean isRaw) {
+        mCompressed = compressed;
+        mRawInflater = isRaw ? new Inflater(true) : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] buffer = new byte[1];
+        return (read(buffer, 0, 1) < 0) ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (mIsEnded) {
+            return -1;
+        }
+        try {
+            if (mInput == null) {
+                // The header is read by the constructor, which fails on an empty file.
+                mInput = (mRawInflater != null) ? new InflaterInputStream(mCompressed, mRawInflater)
+                        : new GZIPInputStream(mCompressed);
+            }
+            final int count = mInput.read(buffer, offset, length);
+            if (count < 0) {
+                mIsEnded = true;
+            }
+            return count;
+        } catch (final EOFException e) {
+            mIsEnded = true;
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mRawInflater != null) {
+            mRawInflater.end();
+        }
+        mCompressed.close();
+    }
+}
@@ -19,27 +19,36 @@
 
 package hihex.cs;
 
-import com.google.common.eventbus.Subscribe;
-
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import fi.iki.elonen.NanoHTTPD;
 
+/**
+ * Sends the live log entries as server-sent events. The entries are read from the {@link LiveHub}, and filtered by a
+ * {@link LiveFilter}. If the client cannot keep up or the rate limit is reached, a {@code dropped} event tells how many
+ * entries are skipped.
+ */
 public class LiveEventSource extends NanoHTTPD.Response {
-    final LinkedBlockingQueue<LogEntry> mEntries = new LinkedBlockingQueue<>();
+    private static final long PING_INTERVAL = 10000;
+
+    private static final byte[] MESSAGE_PREFIX = "event: message\ndata: ".getBytes();
+    private static final byte[] DROPPED_PREFIX = "event: dropped\ndata: ".getBytes();
+    private static final byte[] EVENT_SUFFIX = "\n\n".getBytes();
+    private static final byte[] PING = "event: ping\n\n".getBytes();
 
-    public LiveEventSource() {
+    private final LiveHub mHub;
+    private final LiveFilter mFilter;
+
+    public LiveEventSource(final LiveHub hub, final LiveFilter filter) {
         super(Status.OK, "text/event-stream", "");
+        mHub = hub;
+        mFilter = filter;
     }
 
     @Override
@@ -47,47 +56,49 @@ public class LiveEventSource extends NanoHTTPD.Response {
         // Do not call super(). The operation of SSE here is totally different from the normal fixed-length source and
         // chunked-encoding response.
 
+        final LiveHub.Subscription subscription = mHub.subscribe(mFilter);
         try {
-            Events.bus.register(this);
-
             final SimpleDateFormat dateFormat = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.ROOT);
             dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-            final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-            writer.write("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\nDate: ");
-            writer.write(dateFormat.format(new Date()));
-            writer.write("\r\nConnection: keep-alive\r\n\r\n");
-            writer.flush();
+            final OutputStream output = new BufferedOutputStream(outputStream);
+            output.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\nDate: "
+                    + dateFormat.format(new Date()) + "\r\nConnection: keep-alive\r\n\r\n").getBytes());
+            output.flush();
 
             while (true) {
-                final LogEntry entry = mEntries.poll(10, TimeUnit.SECONDS);
-                // We use poll() with timeout instead of take(), so that there will be a finite time before we call
-                // writer.flush(). The flush() call ensures that if the peer closed the connection, we will eventually
-                // notice we can no longer send anything and throw an IOException. This in turn interrupts the infinite
-                // loop and terminate the callback thread.
+                byte[] json = subscription.next(0);
+                if (json == null) {
+                    // Send everything at once when the client has caught up.
+                    output.flush();
+                    json = subscription.next(PING_INTERVAL);
+                }
+                // We wait with a timeout, so that there will be a finite time before we call flush(). The flush() call
+                // ensures that if the peer closed the connection, we will eventually notice we can no longer send
+                // anything and throw an IOException. This in turn interrupts the infinite loop and terminate the
+                // callback thread.
 
-                if (entry != null) {
-                    writer.write("event: message\ndata: ");
-                    entry.writeJSON(writer);
-                    writer.write("\n\n");
-                } else {
-                    writer.write("event: ping\n\n");
+                final long droppedCount = subscription.takeDroppedCount();
+                if (droppedCount > 0) {
+                    output.write(DROPPED_PREFIX);
+                    output.write(Long.toString(droppedCount).getBytes());
+                    output.write(EVENT_SUFFIX);
+                }
+                if (json != null) {
+                    output.write(MESSAGE_PREFIX);
+                    output.write(json);
+                    output.write(EVENT_SUFFIX);
+                } else if (droppedCount == 0) {
+                    output.write(PING);
+                }
+                if (json == null) {
+                    output.flush();
                 }
-                writer.flush();
             }
         } catch (final IOException | InterruptedException e) {
-            //throw new RuntimeException(e);
+            // The peer closed the connection.
         } finally {
-            Events.bus.unregister(this);
-        }
-    }
-
-    @Subscribe
-    public void log(final Events.LiveEntry entry) {
-        try {
-            mEntries.put(new LogEntry(entry.entry));
-        } catch (final InterruptedException e) {
-            // Ignored, the queue is unbounded.
+            subscription.close();
         }
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The entries wanted by a live-events connection, from the query parameters of the request:
+ *
+ * <ul>
+ * <li>{@code pid} — comma-separated process IDs</li>
+ * <li>{@code process} — regex of the process name</li>
+ * <li>{@code tag} — comma-separated tags</li>
+ * <li>{@code level} — the minimum log level, e.g. {@code W}</li>
+ * <li>{@code message} — regex of the message</li>
+ * <li>{@code rate} — the maximum number of entries sent per second</li>
+ * </ul>
+ *
+ * <p>The conditions except the PIDs are compiled into a {@link LogEntryFilter} rule. The filter is applied by the
+ * subscriber before the entry is serialized.</p>
+ */
+public final class LiveFilter {
+    public static final LiveFilter ALL = new LiveFilter(new int[0], null, 0);
+
+    private static final String LEVELS = "VDIWEF";
+
+    /**
+     * The sorted PIDs to match, or empty to match every PID.
+     */
+    private final int[] mPids;
+
+    /**
+     * The rule to match, or null to match every entry.
+     */
+    private final LogEntryFilter.Entry mRule;
+
+    private final int mMaxRate;
+
+    private LiveFilter(final int[] pids, final LogEntryFilter.Entry rule, final int maxRate) {
+        mPids = pids;
+        mRule = rule;
+        mMaxRate = maxRate;
+    }
+
+    /**
+     * Parses the filter from the query parameters.
+     *
+     * @throws IllegalArgumentException if a parameter is invalid.
+     */
+    public static LiveFilter parse(final Map<String, String> parameters) throws IllegalArgumentException {
+        final String pidString = parameters.get("pid");
+        final String process = parameters.get("process");
+        final String tagString = parameters.get("tag");
+        final String levelString = parameters.get("level");
+        final String message = parameters.get("message");
+        final String rateString = parameters.get("rate");
+
+        int[] pids = new int[0];
+        if (pidString != null) {
+            final String[] pieces = pidString.split(",");
+            pids = new int[pieces.length];
+            for (int i = 0; i < pieces.length; ++i) {
+                pids[i] = Integer.parseInt(pieces[i].trim());
+            }
+            Arrays.sort(pids);
+        }
+
+        Set<String> tags = null;
+        if (tagString != null) {
+            tags = new HashSet<>();
+            for (final String tag : tagString.split(",")) {
+                tags.add(tag.trim());
+            }
+        }
+
+        String level = null;
+        if (levelString != null) {
+            final String upperLevel = levelString.toUpperCase();
+            final int levelIndex = LEVELS.indexOf(upperLevel.equals("A") ? "F" : upperLevel);
+            if (upperLevel.length() != 1 || levelIndex < 0) {
+                throw new IllegalArgumentException("Invalid log level: " + levelString);
+            }
+            level = LEVELS.substring(levelIndex);
+        }
+
+        final int maxRate = (rateString != null) ? Math.max(0, Integer.parseInt(rateString)) : 0;
+
+        final LogEntryFilter.Entry rule = (process == null && tags == null && level == null && message == null) ? null
+                : LogEntryFilter.compileRule(level, tags, message, process);
+        return new LiveFilter(pids, rule, maxRate);
+    }
+
+    /**
+     * Checks whether the entry should be sent.
+     *
+     * @param context The matching context of the calling thread.
+     */
+    public boolean matches(final LogEntry entry, final MatchContext context) {
+        if (mPids.length != 0 && Arrays.binarySearch(mPids, entry.pid()) < 0) {
+            return false;
+        }
+        if (mRule == null) {
+            return true;
+        }
+        return mRule.matches(entry, entry.getProcessName(), context);
+    }
+
+    /**
+     * The maximum number of matching entries sent per second, or 0 if unlimited.
+     */
+    public int maxRate() {
+        return mMaxRate;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fans the live log entries out to the {@link LiveEventSource}s.
+ *
+ * <p>The collector publishes every entry once into a bounded ring shared by all subscribers, as an event holding a copy
+ * of the entry. Every subscriber reads the ring with its own cursor. A subscriber falling more than {@link #RING_SIZE}
+ * events behind skips the overwritten ones, and is told how many were dropped. So the collector never blocks, nor does
+ * any work per subscriber, and a stalled browser costs no memory.</p>
+ *
+ * <p>Every subscriber skips the entries rejected by its {@link LiveFilter}. The entry is serialized as JSON by the
+ * first subscriber accepting the event, and the bytes are shared by the others. An entry nobody wants is never
+ * serialized.</p>
+ */
+public final class LiveHub {
+    private static final int RING_SIZE = 4096;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private static final class Event {
+        final long sequence;
+        final LogEntry entry;
+
+        /**
+         * The entry serialized as JSON, or null if not serialized yet. Two subscribers may both serialize the entry,
+         * which is harmless since the results are the same.
+         */
+        private volatile byte[] mJson;
+
+        Event(final long sequence, final LogEntry entry) {
+            this.sequence = sequence;
+            this.entry = entry;
+        }
+
+        byte[] json(final Utf8Buffer buffer) {
+            byte[] json = mJson;
+            if (json == null) {
+                buffer.reset();
+                try {
+                    entry.writeJSON(buffer);
+                } catch (final IOException e) {
+                    // Impossible with a Utf8Buffer.
+                    throw new AssertionError(e);
+                }
+                json = Arrays.copyOf(buffer.array(), buffer.size());
+                mJson = json;
+            }
+            return json;
+        }
+    }
+
+    private final Event[] mRing = new Event[RING_SIZE];
+
+    /**
+     * The sequence number of the next event. The event is put into the ring before this is incremented.
+     */
+    private volatile long mHead;
+
+    private volatile int mSubscriberCount;
+
+    /**
+     * The number of subscribers waiting for the next event. Guarded by {@code this}.
+     */
+    private volatile int mWaiterCount;
+
+    /**
+     * Publishes an entry to the subscribers. Called from the collector only. Nothing is done if no one is subscribed.
+     */
+    public void publish(final LogEntry entry) {
+        if (mSubscriberCount == 0) {
+            return;
+        }
+
+        final long sequence = mHead;
+        mRing[(int) sequence & RING_MASK] = new Event(sequence, entry.detach());
+        mHead = sequence + 1;
+
+        if (mWaiterCount > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the entries published from now on. The subscription must be closed.
+     *
+     * @param filter The entries to receive.
+     */
+    public Subscription subscribe(final LiveFilter filter) {
+        synchronized (this) {
+            ++mSubscriberCount;
+        }
+        return new Subscription(mHead, filter);
+    }
+
+    /**
+     * The read cursor of a subscriber. Not thread-safe.
+     */
+    public final class Subscription {
+        private long mCursor;
+        private long mDroppedCount;
+        private boolean mIsClosed;
+        private final LiveFilter mFilter;
+        private final MatchContext mMatchContext = new MatchContext();
+        private final Utf8Buffer mBuffer = new Utf8Buffer(512);
+
+        /**
+         * The second of the current rate-limiting window, and the number of entries sent in it.
+         */
+        private long mRateSecond;
+        private int mRateCount;
+
+        private Subscription(final long cursor, final LiveFilter filter) {
+            mCursor = cursor;
+            mFilter = filter;
+        }
+
+        /**
+         * Waits for the next event.
+         *
+         * @param timeout The longest time to wait, in milliseconds.
+         * @return The entry serialized as JSON, or null if nothing is published in time.
+         */
+        public byte[] next(final long timeout) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                final long head = mHead;
+                while (mCursor < head) {
+                    if (head - mCursor > RING_SIZE) {
+                        mDroppedCount += head - RING_SIZE - mCursor;
+                        mCursor = head - RING_SIZE;
+                    }
+                    final Event event = mRing[(int) mCursor & RING_MASK];
+                    ++mCursor;
+                    if (event.sequence != mCursor - 1) {
+                        // Overwritten since the head was read.
+                        ++mDroppedCount;
+                    } else if (mFilter.matches(event.entry, mMatchContext)) {
+                        if (isRateExceeded()) {
+                            ++mDroppedCount;
+                        } else {
+                            return event.json(mBuffer);
+                        }
+                    }
+                }
+
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                synchronized (LiveHub.this) {
+                    ++mWaiterCount;
+                    try {
+                        if (mHead == mCursor) {
+                            LiveHub.this.wait(remaining);
+                        }
+                    } finally {
+                        --mWaiterCount;
+                    }
+                }
+            }
+        }
+
+        private boolean isRateExceeded() {
+            final int maxRate = mFilter.maxRate();
+            if (maxRate == 0) {
+                return false;
+            }
+            final long second = System.currentTimeMillis() / 1000;
+            if (second != mRateSecond) {
+                mRateSecond = second;
+                mRateCount = 0;
+            }
+            if (mRateCount >= maxRate) {
+                return true;
+            }
+            ++mRateCount;
+            return false;
+        }
+
+        /**
+         * Returns the number of events skipped since the last call, because the subscriber was too slow.
+         */
+        public long takeDroppedCount() {
+            final long droppedCount = mDroppedCount;
+            mDroppedCount = 0;
+            return droppedCount;
+        }
+
+        public void close() {
+            if (!mIsClosed) {
+                mIsClosed = true;
+                synchronized (LiveHub.this) {
+                    --mSubscriberCount;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.util.Log;
+
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The metadata of every log file, so the files need not be listed and stat'ed to show the index or to remove expired
+ * logs.
+ *
+ * <p>The catalog is persisted as an append-only journal of records: a file is opened, a file is closed (with its final
+ * size and entry counts), or a file is deleted. The journal is replayed at startup and compacted when it has grown much
+ * larger than the catalog. It is then reconciled with a single listing of the log folder, so files removed or added
+ * behind our back are noticed; only the added files need to be stat'ed.</p>
+ *
+ * <p>Closed files are also kept in age order with their total size, so {@link #selectExpired(long, long)} only visits
+ * the files it selects.</p>
+ */
+final class LogCatalog {
+    private static final int RECORD_OPEN = 1;
+    private static final int RECORD_CLOSE = 2;
+    private static final int RECORD_DELETE = 3;
+
+    /**
+     * The log levels counted, from {@link Log#VERBOSE} to {@link Log#ASSERT}.
+     */
+    static final int LEVEL_COUNT = Log.ASSERT - Log.VERBOSE + 1;
+
+    /**
+     * Compact the journal when it has this many records more than needed.
+     */
+    private static final int COMPACT_SLACK = 256;
+
+    /**
+     * The metadata of a log file. Items are immutable; the catalog keeps the sink of a file still being recorded, and
+     * takes its numbers from the sink when listed.
+     */
+    static final class Item {
+        final String name;
+        final int pid;
+        final String processName;
+        final long startTime;
+
+        /**
+         * The time of the last write to the file.
+         */
+        final long lastModified;
+
+        /**
+         * The size of the compressed file.
+         */
+        final long size;
+
+        /**
+         * The size of the uncompressed content, or -1 if unknown.
+         */
+        final long uncompressedSize;
+
+        /**
+         * Whether the file is still being recorded in this session.
+         */
+        final boolean isRecording;
+
+        private final int[] mLevelCounts;
+        private final LogSink mSink;
+
+        private Item(final String name, final int pid, final String processName, final long startTime,
+                     final long lastModified, final long size, final long uncompressedSize, final int[] levelCounts,
+                     final boolean isRecording, final LogSink sink) {
+            this.name = name;
+            this.pid = pid;
+            this.processName = processName;
+            this.startTime = startTime;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.uncompressedSize = uncompressedSize;
+            this.isRecording = isRecording;
+            mLevelCounts = levelCounts;
+            mSink = sink;
+        }
+
+        private static Item closed(final String name, final int pid, final String processName, final long startTime,
+                                   final long lastModified, final long size, final long uncompressedSize,
+                                   final int[] levelCounts) {
+            return new Item(name, pid, processName, startTime, lastModified, size, uncompressedSize, levelCounts,
+                    false, null);
+        }
+
+        /**
+         * The number of entries of the log level written to the file.
+         */
+        int levelCount(final int logLevel) {
+            final int index = logLevel - Log.VERBOSE;
+            return (index >= 0 && index < LEVEL_COUNT) ? mLevelCounts[index] : 0;
+        }
+
+        private Item close(final long endTime, final long size, final long uncompressedSize, final int[] levelCounts) {
+            return closed(name, pid, processName, startTime, endTime, size, uncompressedSize, levelCounts);
+        }
+
+        /**
+         * Takes the current numbers of a file being recorded.
+         */
+        private Item snapshot() {
+            if (mSink == null) {
+                return this;
+            }
+            return new Item(name, pid, processName, startTime, mSink.lastModified(), mSink.estimatedSize(),
+                    mSink.writtenSize(), mSink.levelCounts(), true, null);
+        }
+    }
+
+    /**
+     * Sorts items from the most recently modified.
+     */
+    private static final Comparator<Item> NEWEST_FIRST = new Comparator<Item>() {
+        @Override
+        public int compare(final Item a, final Item b) {
+            if (a.lastModified != b.lastModified) {
+                return (a.lastModified < b.lastModified) ? 1 : -1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final File mFolder;
+    private final File mJournalPath;
+    private final HashMap<String, Item> mItems = new HashMap<>();
+
+    /**
+     * The closed files, the least recently modified first, and their total size.
+     */
+    private final TreeSet<Item> mClosedItems = new TreeSet<>(Collections.reverseOrder(NEWEST_FIRST));
+    private long mClosedSize;
+
+    private final ArrayList<Item> mRecordingItems = new ArrayList<>();
+    private DataOutputStream mJournal;
+    private int mRecordCount;
+
+    LogCatalog(final File folder, final File journalPath) {
+        mFolder = folder;
+        mJournalPath = journalPath;
+        load();
+    }
+
+    private void load() {
+        // Items without a close record were being recorded when CatSaver stopped. Their sizes are read from the files.
+        final HashSet<String> unclosedNames = new HashSet<>();
+        boolean needsCompact = replay(unclosedNames);
+
+        final String[] names = mFolder.list();
+        final HashSet<String> existingNames = new HashSet<>(Arrays.asList((names != null) ? names : new String[0]));
+        if (mItems.keySet().retainAll(existingNames)) {
+            needsCompact = true;
+        }
+        for (final String name : existingNames) {
+            final Item item = mItems.get(name);
+            if (item == null || unclosedNames.contains(name)) {
+                final File path = new File(mFolder, name);
+                final long lastModified = path.lastModified();
+                final Item newItem = (item != null) ? item
+                        : Item.closed(name, -1, "", lastModified, lastModified, 0, -1, new int[LEVEL_COUNT]);
+                mItems.put(name, newItem.close(lastModified, path.length(), -1, newItem.mLevelCounts));
+                needsCompact = true;
+            }
+        }
+
+        if (needsCompact || mRecordCount > mItems.size() * 2 + COMPACT_SLACK) {
+            compact();
+        }
+
+        for (final Item item : mItems.values()) {
+            index(item);
+        }
+    }
+
+    /**
+     * Adds the item to the age order or the recording list. Must be called with the lock held.
+     */
+    private void index(final Item item) {
+        if (item.isRecording) {
+            mRecordingItems.add(item);
+        } else {
+            mClosedItems.add(item);
+            mClosedSize += item.size;
+        }
+    }
+
+    private void unindex(final Item item) {
+        if (item.isRecording) {
+            mRecordingItems.remove(item);
+        } else if (mClosedItems.remove(item)) {
+            mClosedSize -= item.size;
+        }
+    }
+
+    /**
+     * Puts the item into the catalog, replacing the item of the same name. Must be called with the lock held.
+     */
+    private void put(final Item item) {
+        final Item oldItem = mItems.put(item.name, item);
+        if (oldItem != null) {
+            unindex(oldItem);
+        }
+        index(item);
+    }
+
+    /**
+     * Reads the journal into the catalog.
+     *
+     * @param unclosedNames Receives the names of the files without a close record.
+     * @return Whether the journal is damaged and should be rewritten.
+     */
+    private boolean replay(final HashSet<String> unclosedNames) {
+        final DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalPath)));
+        } catch (final FileNotFoundException e) {
+            return true;
+        }
+
+        try {
+            while (true) {
+                final int type = input.read();
+                if (type < 0) {
+                    return false;
+                }
+                final String name = input.readUTF();
+                switch (type) {
+                    case RECORD_OPEN: {
+                        final int pid = input.readInt();
+                        final String processName = input.readUTF();
+                        final long startTime = input.readLong();
+                        mItems.put(name, Item.closed(name, pid, processName, startTime, startTime, 0, -1,
+                                new int[LEVEL_COUNT]));
+                        unclosedNames.add(name);
+                        break;
+                    }
+                    case RECORD_CLOSE: {
+                        final long endTime = input.readLong();
+                        final long size = input.readLong();
+                        final long uncompressedSize = input.readLong();
+                        final int[] levelCounts = new int[LEVEL_COUNT];
+                        for (int i = 0; i < LEVEL_COUNT; ++i) {
+                            levelCounts[i] = input.readInt();
+                        }
+                        final Item item = mItems.get(name);
+                        if (item != null) {
+                            mItems.put(name, item.close(endTime, size, uncompressedSize, levelCounts));
+                            unclosedNames.remove(name);
+                        }
+                        break;
+                    }
+                    case RECORD_DELETE:
+                        mItems.remove(name);
+                        unclosedNames.remove(name);
+                        break;
+                    default:
+                        CsLog.w("Unknown record in the log catalog, rebuilding it.");
+                        return true;
+                }
+                ++mRecordCount;
+            }
+        } catch (final EOFException e) {
+            // The last record is incomplete, probably because CatSaver was killed while writing it.
+            return true;
+        } catch (final IOException e) {
+            CsLog.e("Failed to read the log catalog. " + e);
+            return true;
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+    }
+
+    private static void writeOpenRecord(final DataOutputStream output, final Item item) throws IOException {
+        output.write(RECORD_OPEN);
+        output.writeUTF(item.name);
+        output.writeInt(item.pid);
+        output.writeUTF(item.processName);
+        output.writeLong(item.startTime);
+    }
+
+    private static void writeCloseRecord(final DataOutputStream output, final Item item) throws IOException {
+        output.write(RECORD_CLOSE);
+        output.writeUTF(item.name);
+        output.writeLong(item.lastModified);
+        output.writeLong(item.size);
+        output.writeLong(item.uncompressedSize);
+        for (final int count : item.mLevelCounts) {
+            output.writeInt(count);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the records needed to describe the current catalog.
+     */
+    private void compact() {
+        closeJournal();
+
+        final File tempPath = new File(mJournalPath.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath)));
+            int recordCount = 0;
+            for (final Item item : mItems.values()) {
+                writeOpenRecord(output, item);
+                ++recordCount;
+                if (!item.isRecording) {
+                    writeCloseRecord(output, item);
+                    ++recordCount;
+                }
+            }
+            output.close();
+            output = null;
+            if (!tempPath.renameTo(mJournalPath)) {
+                throw new IOException("Cannot replace " + mJournalPath);
+            }
+            mRecordCount = recordCount;
+        } catch (final IOException e) {
+            CsLog.e("Failed to compact the log catalog. " + e);
+            closeQuietly(output);
+            tempPath.delete();
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            Closeables.close(closeable, true);
+        } catch (final IOException e) {
+            // Ignore.
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            closeQuietly(mJournal);
+            mJournal = null;
+        }
+    }
+
+    private DataOutputStream journal() throws IOException {
+        if (mJournal == null) {
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalPath, true)));
+        }
+        return mJournal;
+    }
+
+    /**
+     * Notes that a file is being recorded.
+     */
+    synchronized void open(final LogSink sink, final int pid, final String processName, final long startTime) {
+        final String name = sink.path().getName();
+        final Item item = new Item(name, pid, processName, startTime, startTime, 0, 0, null, true, sink);
+        put(item);
+        try {
+            final DataOutputStream journal = journal();
+            writeOpenRecord(journal, item);
+            journal.flush();
+            ++mRecordCount;
+        } catch (final IOException e) {
+            CsLog.e("Failed to update the log catalog. " + e);
+        }
+    }
+
+    /**
+     * Notes that a file has been completely written. Called by the writer stage once the file is closed.
+     */
+    synchronized void close(final LogSink sink, final long size) {
+        final String name = sink.path().getName();
+        final Item item = mItems.get(name);
+        if (item == null || item.mSink != sink) {
+            // The file has been deleted while it was being recorded.
+            return;
+        }
+
+        final Item closedItem = item.close(sink.lastModified(), size, sink.writtenSize(), sink.levelCounts());
+        put(closedItem);
+        try {
+            final DataOutputStream journal = journal();
+            writeCloseRecord(journal, closedItem);
+            journal.flush();
+            ++mRecordCount;
+        } catch (final IOException e) {
+            CsLog.e("Failed to update the log catalog. " + e);
+        }
+    }
+
+    /**
+     * Notes that a file has been deleted.
+     */
+    synchronized void remove(final String name) {
+        final Item item = mItems.remove(name);
+        if (item == null) {
+            return;
+        }
+        unindex(item);
+        try {
+            final DataOutputStream journal = journal();
+            journal.write(RECORD_DELETE);
+            journal.writeUTF(name);
+            journal.flush();
+            ++mRecordCount;
+        } catch (final IOException e) {
+            CsLog.e("Failed to update the log catalog. " + e);
+        }
+        if (mRecordCount > mItems.size() * 2 + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    /**
+     * Selects the closed files to be removed, from the least recently modified, until the remaining files are newer
+     * than the expire date, and their total size (including the files being recorded) is within the limit.
+     *
+     * @param expireDate   Files modified at or before this time are selected.
+     * @param maxTotalSize The limit of the total size, or -1 if unlimited.
+     */
+    synchronized List<Item> selectExpired(final long expireDate, final long maxTotalSize) {
+        long totalSize = mClosedSize;
+        for (final Item item : mRecordingItems) {
+            totalSize += item.mSink.estimatedSize();
+        }
+
+        final ArrayList<Item> expiredItems = new ArrayList<>();
+        for (final Item item : mClosedItems) {
+            if (item.lastModified > expireDate && (maxTotalSize < 0 || totalSize <= maxTotalSize)) {
+                break;
+            }
+            expiredItems.add(item);
+            totalSize -= item.size;
+        }
+        return expiredItems;
+    }
+
+    /**
+     * The modification time of the least recently modified closed file, or {@link Long#MAX_VALUE} if there is none.
+     */
+    synchronized long oldestModifiedTime() {
+        return mClosedItems.isEmpty() ? Long.MAX_VALUE : mClosedItems.first().lastModified;
+    }
+
+    /**
+     * Obtains every file in the catalog, the most recently modified first.
+     */
+    synchronized List<Item> list() {
+        final ArrayList<Item> items = new ArrayList<>(mItems.size());
+        for (final Item item : mItems.values()) {
+            items.add(item.snapshot());
+        }
+        Collections.sort(items, NEWEST_FIRST);
+        return items;
+    }
+}
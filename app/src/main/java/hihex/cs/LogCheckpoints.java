@@ -0,0 +1,155 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * The checkpoints of an HTML log file, kept in a small file next to the log.
+ *
+ * <p>At a checkpoint, the compressor was reset ({@link LogCompressor.Checkpointable}), so the log can be decompressed
+ * starting from there. The first checkpoint is exactly at the end of the header ({@link LogSink#endHeader()}). The
+ * writer stage makes the other ones every {@link LogSink#CHECKPOINT_SIZE} bytes, so a part of a long log can be read
+ * by decompressing at most that much before it ({@link #open(File, File, long, long)}).</p>
+ *
+ * <p>Every checkpoint is a record of its offsets in the uncompressed and the compressed file. The offsets of the
+ * entries at a given time are found in the {@link SearchIndex}.</p>
+ */
+final class LogCheckpoints {
+    private static final int RECORD_SIZE = 16;
+
+    private final File mPath;
+
+    /**
+     * Created when the first checkpoint is added. Only used by the writer stage.
+     */
+    private DataOutputStream mOutput;
+
+    LogCheckpoints(final File path) {
+        mPath = path;
+    }
+
+    /**
+     * Records a checkpoint. Called from the writer stage only.
+     *
+     * @param uncompressedOffset The offset of the checkpoint in the uncompressed content.
+     * @param compressedOffset   The offset of the checkpoint in the compressed file.
+     */
+    void add(final long uncompressedOffset, final long compressedOffset) {
+        try {
+            if (mOutput == null) {
+                mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mPath), RECORD_SIZE));
+            }
+            mOutput.writeLong(uncompressedOffset);
+            mOutput.writeLong(compressedOffset);
+            mOutput.flush();
+        } catch (final IOException e) {
+            CsLog.e("Failed to write checkpoints. " + e);
+        }
+    }
+
+    void close() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (final IOException e) {
+                CsLog.e("Failed to close checkpoints. " + e);
+            }
+        }
+    }
+
+    /**
+     * Opens a part of a log: the header, followed by the content between the two offsets. Only the content from the
+     * checkpoint before the start is decompressed.
+     *
+     * @param logPath The compressed log file.
+     * @param path    The checkpoints of the log.
+     * @param start   The uncompressed offset of the content.
+     * @param end     The uncompressed offset after the content, or -1 to read until the end of the file.
+     * @return The uncompressed content, or absent if the log has no checkpoints.
+     */
+    static Optional<InputStream> open(final File logPath, final File path, final long start, final long end)
+            throws IOException {
+        int count = 0;
+        long[] uncompressedOffsets = new long[16];
+        long[] compressedOffsets = new long[16];
+        final DataInputStream input;
+        try {
+            input = new DataInputStream(new FileInputStream(path));
+        } catch (final FileNotFoundException e) {
+            return Optional.absent();
+        }
+        try {
+            // A record may be half-written if the log is being recorded.
+            for (long remaining = path.length(); remaining >= RECORD_SIZE; remaining -= RECORD_SIZE) {
+                if (count == uncompressedOffsets.length) {
+                    uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, count * 2);
+                    compressedOffsets = Arrays.copyOf(compressedOffsets, count * 2);
+                }
+                uncompressedOffsets[count] = input.readLong();
+                compressedOffsets[count] = input.readLong();
+                ++count;
+            }
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+        if (count == 0) {
+            return Optional.absent();
+        }
+
+        final long headerEnd = uncompressedOffsets[0];
+        final long contentStart = Math.max(start, headerEnd);
+        int checkpoint = 0;
+        while (checkpoint + 1 < count && uncompressedOffsets[checkpoint + 1] <= contentStart) {
+            ++checkpoint;
+        }
+
+        final InputStream header = ByteStreams.limit(new LenientGzipInputStream(new FileInputStream(logPath)),
+                headerEnd);
+        final FileInputStream file = new FileInputStream(logPath);
+        InputStream content;
+        try {
+            ByteStreams.skipFully(file, compressedOffsets[checkpoint]);
+            content = new LenientGzipInputStream(file, true);
+            ByteStreams.skipFully(content, contentStart - uncompressedOffsets[checkpoint]);
+        } catch (final IOException e) {
+            header.close();
+            file.close();
+            throw e;
+        }
+        if (end >= 0) {
+            content = ByteStreams.limit(content, Math.max(0, end - contentStart));
+        }
+        return Optional.<InputStream>of(new SequenceInputStream(header, content));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression engine of log files. Every engine writes a gzip file which can be flushed anytime to make sure
+ * everything written so far is visible to readers.
+ *
+ * <p>This class does not depend on Android, so the engines can be run and benchmarked on a plain JVM.</p>
+ */
+public abstract class LogCompressor {
+    public static final String ENGINE_NATIVE = "native";
+    public static final String ENGINE_JAVA = "java";
+
+    public static final String STRATEGY_DEFAULT = "default";
+    public static final String STRATEGY_FILTERED = "filtered";
+    public static final String STRATEGY_HUFFMAN_ONLY = "huffman";
+
+    public static final int MIN_LEVEL = 0;
+    public static final int MAX_LEVEL = 9;
+    public static final int DEFAULT_LEVEL = 6;
+
+    protected final int mLevel;
+    protected final String mStrategy;
+
+    private LogCompressor(final int level, final String strategy) {
+        mLevel = level;
+        mStrategy = strategy;
+    }
+
+    /**
+     * Creates a compressor. If the requested engine is not available on this device, the other one is used instead.
+     *
+     * @param engine   {@link #ENGINE_NATIVE} or {@link #ENGINE_JAVA}.
+     * @param level    The compression level, from 0 (not compressed) to 9 (smallest). Out-of-range levels are clamped.
+     * @param strategy One of the {@code STRATEGY_*} constants.
+     */
+    public static LogCompressor create(final String engine, final int level, final String strategy) {
+        final int clampedLevel = clampLevel(level);
+        final boolean shouldUseJava = ENGINE_JAVA.equals(engine) ? JavaCompressor.isAvailable()
+                : !NativeCompressor.isAvailable();
+        if (shouldUseJava) {
+            return new JavaCompressor(clampedLevel, strategy);
+        } else {
+            return new NativeCompressor(clampedLevel, strategy);
+        }
+    }
+
+    public static int clampLevel(final int level) {
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * The engine actually used, {@link #ENGINE_NATIVE} or {@link #ENGINE_JAVA}.
+     */
+    public abstract String engine();
+
+    /**
+     * Creates a new compressed file. The stream is {@link Checkpointable}.
+     */
+    public abstract OutputStream open(final File path) throws IOException;
+
+    /**
+     * A compressed stream which can be reset, so the file can be decompressed starting from that point.
+     */
+    public interface Checkpointable {
+        /**
+         * Flushes the stream like {@link OutputStream#flush()}, and starts a new deflate stream at a byte boundary
+         * without any history ({@code FULL_FLUSH}). A raw inflater can start at the current length of the file.
+         */
+        void checkpoint() throws IOException;
+    }
+
+    /**
+     * zlib's gzopen() with a {@code Z_SYNC_FLUSH} on every flush. See {@link FlushableGzipOutputStream}.
+     */
+    private static final class NativeCompressor extends LogCompressor {
+        NativeCompressor(final int level, final String strategy) {
+            super(level, strategy);
+        }
+
+        static boolean isAvailable() {
+            return FlushableGzipOutputStream.isAvailable();
+        }
+
+        @Override
+        public String engine() {
+            return ENGINE_NATIVE;
+        }
+
+        @Override
+        public OutputStream open(final File path) throws IOException {
+            final String mode;
+            switch (mStrategy) {
+                case STRATEGY_FILTERED:
+                    mode = "wb" + mLevel + 'f';
+                    break;
+                case STRATEGY_HUFFMAN_ONLY:
+                    mode = "wb" + mLevel + 'h';
+                    break;
+                default:
+                    mode = "wb" + mLevel;
+                    break;
+            }
+            return new FlushableGzipOutputStream(path, mode);
+        }
+    }
+
+    /**
+     * {@link Deflater} with a {@code SYNC_FLUSH} on every flush. It needs no native library, but sync flush is only
+     * available since Java 7 (API 19).
+     */
+    private static final class JavaCompressor extends LogCompressor {
+        private static final int BUFFER_SIZE = 65536;
+
+        private static final boolean IS_SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+
+        JavaCompressor(final int level, final String strategy) {
+            super(level, strategy);
+        }
+
+        static boolean isAvailable() {
+            return IS_SYNC_FLUSH_SUPPORTED;
+        }
+
+        private static boolean isSyncFlushSupported() {
+            try {
+                Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+                GZIPOutputStream.class.getConstructor(OutputStream.class, int.class, boolean.class);
+                return true;
+            } catch (final NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String engine() {
+            return ENGINE_JAVA;
+        }
+
+        @Override
+        public OutputStream open(final File path) throws IOException {
+            final int strategy;
+            switch (mStrategy) {
+                case STRATEGY_FILTERED:
+                    strategy = Deflater.FILTERED;
+                    break;
+                case STRATEGY_HUFFMAN_ONLY:
+                    strategy = Deflater.HUFFMAN_ONLY;
+                    break;
+                default:
+                    strategy = Deflater.DEFAULT_STRATEGY;
+                    break;
+            }
+
+            final FileOutputStream file = new FileOutputStream(path);
+            try {
+                return new CheckpointableGzipOutputStream(file, mLevel, strategy);
+            } catch (final IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+    }
+
+    private static final class CheckpointableGzipOutputStream extends GZIPOutputStream implements Checkpointable {
+        CheckpointableGzipOutputStream(final OutputStream output, final int level, final int strategy)
+                throws IOException {
+            super(output, JavaCompressor.BUFFER_SIZE, true);
+            // Nothing is compressed yet, so changing the parameters here applies to the whole file.
+            def.setLevel(level);
+            def.setStrategy(strategy);
+        }
+
+        @Override
+        public void checkpoint() throws IOException {
+            if (!def.finished()) {
+                int length;
+                while ((length = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) {
+                    out.write(buf, 0, length);
+                }
+            }
+            out.flush();
+        }
+    }
+}
@@ -24,20 +24,19 @@ import android.util.Pair;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
-import com.google.common.io.ByteStreams;
-import com.google.common.primitives.Bytes;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Writer;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * An entry reported by logcat.
+ *
+ * <p>The entry is a view over the payload of a binary {@code logger_entry} frame, usually located inside the buffer of
+ * a {@link LogEntryReader}. The content is only valid until the next frame is read into this entry.</p>
  */
 public final class LogEntry {
     private static final byte[] SYSTEM_RESTART_PAYLOAD = "\4SystemServer\0Entered the Android system server!".getBytes(Charsets.ISO_8859_1);
@@ -55,14 +54,17 @@ public final class LogEntry {
     private static final byte[] KILL_PROCESS_PAYLOAD_PREFIX = "\4ActivityManager\0Process ".getBytes(Charsets.ISO_8859_1);
     private static final Pattern KILL_PROCESS_PATTERN = Pattern.compile("^Process \\S+ \\(pid ([0-9]+)\\) has died\\.?$");
 
+    private static final byte[] JNI_SIGNAL_PAYLOAD_PREFIX = "\7libc\0".getBytes(Charsets.ISO_8859_1);
     private static final Pattern JNI_SIGNAL_PATTERN = Pattern.compile("^Fatal signal (?:[0-9]+) \\([0-9A-Z?]+\\)");
 
     private static final byte[] ANR_PAYLOAD_PREFIX_DALVIKVM = "\4dalvikvm\0Wrote stack traces to '/data/anr/traces.txt'".getBytes(Charsets.ISO_8859_1);
     private static final byte[] ANR_PAYLOAD_PREFIX_ZYGOTE = "\4zygote\0Wrote stack traces to '/data/anr/traces.txt'".getBytes(Charsets.ISO_8859_1);
     private static final byte[] ANR_PAYLOAD_PREFIX_ART = "\4art\0Wrote stack traces to '/data/anr/traces.txt'".getBytes(Charsets.ISO_8859_1);
 
-    private final byte[] mSharedArray;
-    private final ByteBuffer mSharedBuffer;
+    private static final byte[] EMPTY_PAYLOAD = {0};
+
+    private byte[] mArray = EMPTY_PAYLOAD;
+    private int mPayloadOffset;
 
     private int mPid;
     private int mTid;
@@ -77,13 +79,11 @@ public final class LogEntry {
     private String mThreadName = "[unknown thread]";
 
     public LogEntry() {
-        mSharedArray = new byte[5120];
-        mSharedBuffer = ByteBuffer.wrap(mSharedArray).order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public LogEntry(final LogEntry entry) {
-        mSharedArray = new byte[] {entry.mSharedArray[0]};
-        mSharedBuffer = null;
+        mArray = new byte[] {entry.mArray[entry.mPayloadOffset]};
+        mPayloadOffset = 0;
         mTag = Optional.of(entry.tag());
         mMessage = Optional.of(entry.message());
 
@@ -98,28 +98,85 @@ public final class LogEntry {
     }
 
     /**
-     * Replace the current entry with the content of the input stream.
+     * Points this entry to a new frame payload. Called by {@link LogEntryReader}.
+     *
+     * @param array         The array containing the payload. The array is not copied.
+     * @param payloadOffset The offset of the payload (the log level byte) inside the array.
+     * @param payloadLength The length of the payload, including the terminating NUL of the message.
      */
-    public void read(final InputStream stream) throws IOException {
-        ByteStreams.readFully(stream, mSharedArray, 0, 4);
-        mPayloadLength = mSharedBuffer.getShort(0);
-        int headerLength = mSharedBuffer.getShort(2);
-        if (headerLength != 24) {
-            // FIXME In logger_entry(_v1) the __pad can be filled with garbage. We don't know if we are targeting v1 or
-            //       not. Maybe do an actual ioctl() check in the future.
-            headerLength = 20;
+    void wrap(final byte[] array,
+              final int payloadOffset,
+              final int payloadLength,
+              final int pid,
+              final int tid,
+              final int sec,
+              final int nsec) {
+        mArray = array;
+        mPayloadOffset = payloadOffset;
+        mPayloadLength = payloadLength;
+        mPid = pid;
+        mTid = tid;
+        mSec = sec;
+        mNSec = nsec;
+
+        final int payloadEnd = payloadOffset + payloadLength;
+        int tagSeparator = payloadLength;
+        for (int i = payloadOffset + 1; i < payloadEnd; ++i) {
+            if (array[i] == 0) {
+                tagSeparator = i - payloadOffset;
+                break;
+            }
         }
-        ByteStreams.readFully(stream, mSharedArray, 0, headerLength - 4);
-        mPid = mSharedBuffer.getInt(0);
-        mTid = mSharedBuffer.getInt(4);
-        mSec = mSharedBuffer.getInt(8);
-        mNSec = mSharedBuffer.getInt(12);
-        ByteStreams.readFully(stream, mSharedArray, 0, mPayloadLength);
-        mTagSeparator = Bytes.indexOf(mSharedArray, (byte) 0);
+        mTagSeparator = tagSeparator;
         mTag = Optional.absent();
         mMessage = Optional.absent();
     }
 
+    /**
+     * Replaces the content of this entry with a copy of another entry. The payload array owned by this entry is reused
+     * if it is large enough. Used by {@link LogEntryQueue} to move entries between threads.
+     */
+    void copyFrom(final LogEntry entry) {
+        final int payloadLength = entry.mPayloadLength;
+        if (mArray == EMPTY_PAYLOAD || mArray.length < payloadLength) {
+            mArray = new byte[Math.max(payloadLength, 512)];
+        }
+        System.arraycopy(entry.mArray, entry.mPayloadOffset, mArray, 0, payloadLength);
+        mPayloadOffset = 0;
+        mPayloadLength = payloadLength;
+        mTagSeparator = entry.mTagSeparator;
+        mPid = entry.mPid;
+        mTid = entry.mTid;
+        mSec = entry.mSec;
+        mNSec = entry.mNSec;
+        mTag = entry.mTag;
+        mMessage = entry.mMessage;
+        mPackageName = entry.mPackageName;
+        mThreadName = entry.mThreadName;
+    }
+
+    /**
+     * Returns a copy of this entry with a payload array of its own, sized exactly. Used to keep an entry around without
+     * holding a large buffer.
+     */
+    LogEntry detach() {
+        final LogEntry entry = new LogEntry();
+        if (mPayloadLength > 0) {
+            entry.mArray = Arrays.copyOfRange(mArray, mPayloadOffset, mPayloadOffset + mPayloadLength);
+        }
+        entry.mPayloadLength = mPayloadLength;
+        entry.mTagSeparator = mTagSeparator;
+        entry.mPid = mPid;
+        entry.mTid = mTid;
+        entry.mSec = mSec;
+        entry.mNSec = mNSec;
+        entry.mTag = mTag;
+        entry.mMessage = mMessage;
+        entry.mPackageName = mPackageName;
+        entry.mThreadName = mThreadName;
+        return entry;
+    }
+
     public int pid() {
         return mPid;
     }
@@ -128,12 +185,26 @@ public final class LogEntry {
         return mTid;
     }
 
+    /**
+     * The seconds part of the timestamp, since the Unix epoch.
+     */
+    int second() {
+        return mSec;
+    }
+
+    /**
+     * The nanoseconds part of the timestamp.
+     */
+    int nanosecond() {
+        return mNSec;
+    }
+
     public Date timestamp() {
         return new Date(mSec * 1000L + mNSec / 1_000_000L);
     }
 
     public int logLevel() {
-        return mSharedArray[0];
+        return mArray[mPayloadOffset];
     }
 
     public static char logLevelChar(final int logLevel) {
@@ -161,26 +232,81 @@ public final class LogEntry {
 
     public String tag() {
         if (!mTag.isPresent()) {
-            mTag = Optional.of(new String(mSharedArray, 1, mTagSeparator - 1, Charsets.UTF_8));
+            mTag = Optional.of(new String(mArray, tagOffset(), tagLength(), Charsets.UTF_8));
         }
         return mTag.get();
     }
 
     public String message() {
         if (!mMessage.isPresent()) {
-            final int messageLength = mPayloadLength - mTagSeparator - 2;
-            mMessage = Optional.of(new String(mSharedArray, mTagSeparator + 1, messageLength, Charsets.UTF_8));
+            mMessage = Optional.of(new String(mArray, messageOffset(), messageLength(), Charsets.UTF_8));
         }
         return mMessage.get();
     }
 
+    /**
+     * The array containing the raw UTF-8 payload, for matching the tag or message without decoding them. The tag and
+     * message are located with {@link #tagOffset()}, {@link #tagLength()}, {@link #messageOffset()} and
+     * {@link #messageLength()}.
+     */
+    byte[] payloadArray() {
+        return mArray;
+    }
+
+    /**
+     * The offset of the whole payload (the log level byte, the tag and the message) inside {@link #payloadArray()}.
+     */
+    int payloadOffset() {
+        return mPayloadOffset;
+    }
+
+    int payloadLength() {
+        return mPayloadLength;
+    }
+
+    int tagOffset() {
+        return mPayloadOffset + 1;
+    }
+
+    int tagLength() {
+        return mTagSeparator - 1;
+    }
+
+    int messageOffset() {
+        return mPayloadOffset + mTagSeparator + 1;
+    }
+
+    int messageLength() {
+        return Math.max(0, mPayloadLength - mTagSeparator - 2);
+    }
+
+    /**
+     * Checks whether the raw message starts with the UTF-8 bytes, without decoding the message.
+     */
+    boolean messageStartsWith(final byte[] prefix) {
+        final int length = prefix.length;
+        if (messageLength() < length) {
+            return false;
+        }
+        final byte[] array = mArray;
+        final int offset = messageOffset();
+        for (int i = 0; i < length; ++i) {
+            if (array[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean payloadStartsWith(final byte[] prefix) {
         final int length = prefix.length;
         if (mPayloadLength < length) {
             return false;
         }
+        final byte[] array = mArray;
+        final int offset = mPayloadOffset;
         for (int i = 0; i < length; ++i) {
-            if (mSharedArray[i] != prefix[i]) {
+            if (array[offset + i] != prefix[i]) {
                 return false;
             }
         }
@@ -200,17 +326,16 @@ public final class LogEntry {
      *
      * @return The pair of the new PID and process name if it is a start-process entry, null otherwise.
      */
-    public Pair<Integer, String> checkStartProcessInfo() {
+    public Pair<Integer, String> checkStartProcessInfo(final MatchContext context) {
         if (payloadStartsWith(START_PROCESS_PAYLOAD_PREFIX)) {
-            final String message = message();
-            final Matcher matcher = START_PROCESS_PATTERN.matcher(message);
+            final Matcher matcher = context.messageMatcher(START_PROCESS_PATTERN, this);
             if (matcher.find()) {
                 final String processName = matcher.group(1);
                 final String pidString = matcher.group(2);
                 final Integer pid = Integer.decode(pidString);
                 return Pair.create(pid, processName);
             }
-            final Matcher matcherLollipop = START_PROCESS_PATTERN_LOLLIPOP_MR1.matcher(message);
+            final Matcher matcherLollipop = context.messageMatcher(START_PROCESS_PATTERN_LOLLIPOP_MR1, this);
             if (matcherLollipop.find()) {
                 final String pidString = matcherLollipop.group(1);
                 final String processName = matcherLollipop.group(2);
@@ -226,7 +351,7 @@ public final class LogEntry {
      *
      * @return The PID of the process being killed if it is an end-process entry, -1 otherwise.
      */
-    public int checkEndProcessInfo() {
+    public int checkEndProcessInfo(final MatchContext context) {
         final Pattern pattern;
         if (payloadStartsWith(FORCE_STOP_PROCESS_PAYLOAD_PREFIX)) {
             pattern = FORCE_STOP_PROCESS_PATTERN;
@@ -236,7 +361,7 @@ public final class LogEntry {
             return -1;
         }
 
-        final Matcher matcher = pattern.matcher(message());
+        final Matcher matcher = context.messageMatcher(pattern, this);
         if (matcher.find()) {
             final String pidString = matcher.group(1);
             return Integer.parseInt(pidString);
@@ -245,12 +370,12 @@ public final class LogEntry {
         }
     }
 
-    public boolean isJniCrash() {
-        if (logLevel() != Log.ASSERT || !"libc".equals(tag())) {
+    public boolean isJniCrash(final MatchContext context) {
+        if (!payloadStartsWith(JNI_SIGNAL_PAYLOAD_PREFIX)) {
             return false;
         }
 
-        final Matcher matcher = JNI_SIGNAL_PATTERN.matcher(message());
+        final Matcher matcher = context.messageMatcher(JNI_SIGNAL_PATTERN, this);
         return matcher.find();
     }
 
@@ -280,16 +405,24 @@ public final class LogEntry {
 
     public void populateProcessName(final PidDatabase database) {
         final int pid = pid();
-        mPackageName = database.getProcessName(pid);
-
         final Optional<PidEntry> entry = database.getEntry(pid);
         if (entry.isPresent()) {
+            mPackageName = entry.get().processName;
             mThreadName = entry.get().getThreadName(tid());
         } else {
+            mPackageName = database.getProcessName(pid);
             mThreadName = "TID:" + tid();
         }
     }
 
+    /**
+     * Sets the process and thread names directly, e.g. when the entry is read back from a {@link BinaryLog}.
+     */
+    void setNames(final String processName, final String threadName) {
+        mPackageName = processName;
+        mThreadName = threadName;
+    }
+
     public String getProcessName() {
         return mPackageName;
     }
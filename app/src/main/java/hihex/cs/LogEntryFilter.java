@@ -21,10 +21,12 @@ package hihex.cs;
 
 import android.util.Log;
 
+import com.google.common.base.Charsets;
 import com.moandjiezana.toml.Toml;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -34,13 +36,18 @@ public final class LogEntryFilter {
 
     private static final Pattern UNIVERSAL_PATTERN = Pattern.compile("\\A");
 
-    private final Entry[] ignores;
+    private final RuleIndex ignores;
 
-    private final Entry[] snatches;
+    private final RuleIndex snatches;
+
+    /**
+     * The target bitmaps for the last seen {@link RecordingTargets}.
+     */
+    private volatile TargetBitmaps mTargetBitmaps;
 
     private LogEntryFilter(final Entry[] ignores, final Entry[] snatches) {
-        this.ignores = ignores;
-        this.snatches = snatches;
+        this.ignores = new RuleIndex(ignores);
+        this.snatches = new RuleIndex(snatches);
     }
 
     public static LogEntryFilter parse(final String source) throws IllegalStateException, PatternSyntaxException {
@@ -50,36 +57,299 @@ public final class LogEntryFilter {
         return new LogEntryFilter(ignores, snatches);
     }
 
-    private static HashSet<String> match(final Entry[] filterEntries,
-                                         final LogEntry entry,
-                                         final String source,
-                                         final Collection<String> targets) {
-        final HashSet<String> matchingTargets = new HashSet<>();
+    /**
+     * Compiles a single rule outside of a filter, e.g. to filter the entries of a live-events connection. Null
+     * arguments match everything.
+     *
+     * @param level   The log level letters to match, as in the {@code level} key of the TOML rules.
+     * @param tags    The tags to match.
+     * @param message The regex of the message.
+     * @param source  The regex of the process name.
+     */
+    static Entry compileRule(final String level, final Set<String> tags, final String message, final String source)
+            throws PatternSyntaxException {
+        final RawEntry rawEntry = new RawEntry();
+        rawEntry.level = level;
+        rawEntry.tags = tags;
+        rawEntry.message = message;
+        rawEntry.source = source;
+        return rawEntry.compile(0);
+    }
+
+    /**
+     * Adds the targets of a matching rule to the routes. Snatching rules add their targets and ignoring rules remove
+     * theirs.
+     */
+    private static void applyTargets(final long[] ruleTargets, final long[] routes, final boolean isSnatch) {
+        for (int i = 0; i < routes.length; ++i) {
+            if (isSnatch) {
+                routes[i] |= ruleTargets[i];
+            } else {
+                routes[i] &= ~ruleTargets[i];
+            }
+        }
+    }
+
+    /**
+     * Checks whether applying the targets of a rule would change the routes. If not, the rule does not need to be
+     * matched at all.
+     */
+    private static boolean wouldChange(final long[] ruleTargets, final long[] routes, final boolean isSnatch) {
+        for (int i = 0; i < routes.length; ++i) {
+            final long changed = isSnatch ? (ruleTargets[i] & ~routes[i]) : (ruleTargets[i] & routes[i]);
+            if (changed != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void matchCandidates(final Entry[] candidates,
+                                        final long[][] targetsOfRules,
+                                        final LogEntry entry,
+                                        final String source,
+                                        final MatchContext context,
+                                        final long[] routes,
+                                        final boolean isSnatch) {
+        for (final Entry filterEntry : candidates) {
+            final long[] ruleTargets = targetsOfRules[filterEntry.id];
+            if (wouldChange(ruleTargets, routes, isSnatch)
+                    && filterEntry.matchesSourceAndMessage(entry, source, context)) {
+                applyTargets(ruleTargets, routes, isSnatch);
+            }
+        }
+    }
+
+    private static void match(final RuleIndex index,
+                              final long[][] targetsOfRules,
+                              final LogEntry entry,
+                              final String source,
+                              final MatchContext context,
+                              final long[] routes,
+                              final boolean isSnatch) {
+        final int logLevel = entry.logLevel();
+        if (logLevel < 0 || logLevel >= RuleIndex.LEVEL_COUNT) {
+            // Garbage log level, fallback to check every rule.
+            for (final Entry filterEntry : index.allRules) {
+                if (filterEntry.matches(entry, source, context)) {
+                    applyTargets(targetsOfRules[filterEntry.id], routes, isSnatch);
+                }
+            }
+            return;
+        }
+
+        final RuleIndex.Level level = index.levels[logLevel];
+        matchCandidates(level.wildcardTagRules, targetsOfRules, entry, source, context, routes, isSnatch);
+        final Entry[] candidates = level.taggedRules.get(entry);
+        if (candidates != null) {
+            matchCandidates(candidates, targetsOfRules, entry, source, context, routes, isSnatch);
+        }
+    }
+
+    private TargetBitmaps getTargetBitmaps(final RecordingTargets targets) {
+        TargetBitmaps bitmaps = mTargetBitmaps;
+        if (bitmaps == null || bitmaps.targets != targets) {
+            bitmaps = new TargetBitmaps(targets, ignores.allRules, snatches.allRules);
+            mTargetBitmaps = bitmaps;
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Finds the targets which the entry should be written to.
+     *
+     * @param source  The process name of the entry.
+     * @param targets The processes being recorded.
+     * @param context The matching context of the calling thread.
+     * @return The bitmap of slots in {@code targets} to write to. The array is owned by the context, and is only valid
+     * until the next call.
+     */
+    public long[] filter(final LogEntry entry,
+                         final String source,
+                         final RecordingTargets targets,
+                         final MatchContext context) {
+        final TargetBitmaps bitmaps = getTargetBitmaps(targets);
+        final long[] routes = context.routes(targets.wordCount());
+
+        match(snatches, bitmaps.snatches, entry, source, context, routes, true);
+        final int sourceSlot = targets.slotOf(source);
+        if (sourceSlot >= 0) {
+            routes[sourceSlot >>> 6] |= 1L << sourceSlot;
+        }
+        routes[RecordingTargets.LIVE_SLOT >>> 6] |= 1L << RecordingTargets.LIVE_SLOT;
+        match(ignores, bitmaps.ignores, entry, source, context, routes, false);
+        return routes;
+    }
+
+    /**
+     * The targets of every rule, as bitmaps of the slots of a {@link RecordingTargets}.
+     */
+    private static final class TargetBitmaps {
+        final RecordingTargets targets;
+        final long[][] ignores;
+        final long[][] snatches;
+
+        TargetBitmaps(final RecordingTargets targets, final Entry[] ignores, final Entry[] snatches) {
+            this.targets = targets;
+            this.ignores = compute(targets, ignores);
+            this.snatches = compute(targets, snatches);
+        }
 
-        for (final Entry filterEntry : filterEntries) {
-            if (filterEntry.matches(entry, source)) {
-                for (final String target : targets) {
-                    if (filterEntry.targetMatches(target)) {
-                        matchingTargets.add(target);
+        private static long[][] compute(final RecordingTargets targets, final Entry[] rules) {
+            final long[][] result = new long[rules.length][];
+            for (final Entry rule : rules) {
+                final long[] bitmap = new long[targets.wordCount()];
+                for (int slot = 0; slot < targets.size(); ++slot) {
+                    if (rule.targetMatches(targets.name(slot))) {
+                        bitmap[slot >>> 6] |= 1L << slot;
                     }
                 }
+                result[rule.id] = bitmap;
             }
+            return result;
         }
-        return matchingTargets;
     }
 
-    public HashSet<String> filter(final LogEntry entry, final String source, final Set<String> targets) {
-        final HashSet<String> snatched = match(snatches, entry, source, targets);
-        if (targets.contains(source)) {
-            snatched.add(source);
+    /**
+     * The rules grouped by log level and tag, so that only the rules which can possibly match an entry are evaluated.
+     */
+    private static final class RuleIndex {
+        /**
+         * Log levels are between {@link Log#VERBOSE} and {@link Log#ASSERT}, so 8 slots are enough.
+         */
+        static final int LEVEL_COUNT = 8;
+
+        static final class Level {
+            /**
+             * Rules which apply to all tags.
+             */
+            final Entry[] wildcardTagRules;
+
+            /**
+             * Rules which apply to specific tags, indexed by the tag.
+             */
+            final TagTable taggedRules;
+
+            Level(final Entry[] wildcardTagRules, final TagTable taggedRules) {
+                this.wildcardTagRules = wildcardTagRules;
+                this.taggedRules = taggedRules;
+            }
+        }
+
+        final Entry[] allRules;
+
+        final Level[] levels = new Level[LEVEL_COUNT];
+
+        RuleIndex(final Entry[] rules) {
+            allRules = rules;
+
+            for (int logLevel = 0; logLevel < LEVEL_COUNT; ++logLevel) {
+                final ArrayList<Entry> wildcardTagRules = new ArrayList<>();
+                final HashMap<String, ArrayList<Entry>> taggedRules = new HashMap<>();
+                for (final Entry rule : rules) {
+                    if ((rule.logLevelBitmask & 1 << logLevel) == 0) {
+                        continue;
+                    }
+                    if (rule.tags == UniversalSet.<String>instance()) {
+                        wildcardTagRules.add(rule);
+                        continue;
+                    }
+                    for (final String tag : rule.tags) {
+                        ArrayList<Entry> list = taggedRules.get(tag);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            taggedRules.put(tag, list);
+                        }
+                        list.add(rule);
+                    }
+                }
+
+                final TagTable compiledTaggedRules = new TagTable(taggedRules);
+                final Entry[] compiledWildcardTagRules = wildcardTagRules.toArray(new Entry[wildcardTagRules.size()]);
+                levels[logLevel] = new Level(compiledWildcardTagRules, compiledTaggedRules);
+            }
+        }
+    }
+
+    /**
+     * An open-addressing hash table from tags to rules. The keys are stored as UTF-8 bytes, so it can be looked up
+     * using the raw payload of a log entry without decoding the tag.
+     */
+    private static final class TagTable {
+        private final byte[][] mKeys;
+        private final Entry[][] mValues;
+        private final int mMask;
+
+        TagTable(final Map<String, ArrayList<Entry>> rules) {
+            int capacity = 1;
+            while (capacity < rules.size() * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new byte[capacity][];
+            mValues = new Entry[capacity][];
+            mMask = capacity - 1;
+
+            for (final Map.Entry<String, ArrayList<Entry>> pair : rules.entrySet()) {
+                final byte[] key = pair.getKey().getBytes(Charsets.UTF_8);
+                final ArrayList<Entry> list = pair.getValue();
+                int slot = hash(key, 0, key.length) & mMask;
+                while (mKeys[slot] != null) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = key;
+                mValues[slot] = list.toArray(new Entry[list.size()]);
+            }
+        }
+
+        private static int hash(final byte[] array, final int offset, final int length) {
+            int hash = length;
+            for (int i = offset; i < offset + length; ++i) {
+                hash = 31 * hash + array[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Finds the rules for the tag of the entry.
+         *
+         * @return The rules, or null if there are no rules for this tag.
+         */
+        Entry[] get(final LogEntry entry) {
+            final byte[] array = entry.payloadArray();
+            final int offset = entry.tagOffset();
+            final int length = entry.tagLength();
+            int slot = hash(array, offset, length) & mMask;
+            while (true) {
+                final byte[] key = mKeys[slot];
+                if (key == null) {
+                    return null;
+                }
+                if (regionEquals(key, array, offset, length)) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mMask;
+            }
+        }
+
+        private static boolean regionEquals(final byte[] key, final byte[] array, final int offset, final int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if (key[i] != array[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
         }
-        snatched.add(LIVE_SOURCE);
-        final HashSet<String> ignored = match(ignores, entry, source, snatched);
-        snatched.removeAll(ignored);
-        return snatched;
     }
 
     static final class Entry {
+        /**
+         * The position of this rule in its rule list.
+         */
+        final int id;
+
         /**
          * The bitmask of all filtered log levels. For instance, to filter the Debug and Verbose levels, this field should
          * be set to {@code 1 << 2 | 1 << 3}.
@@ -88,38 +358,79 @@ public final class LogEntryFilter {
 
         final Set<String> tags;
 
+        /**
+         * The pattern to match the message, or null to match every message.
+         */
         final Pattern messagePattern;
 
+        /**
+         * The UTF-8 literal prefix that every message matching {@link #messagePattern} must start with, so that most
+         * messages can be rejected without being decoded. Null if the pattern has no literal prefix.
+         */
+        final byte[] messagePrefix;
+
+        /**
+         * Whether the message pattern consists of the literal prefix only, so the prefix alone decides the match.
+         */
+        final boolean isMessagePrefixExact;
+
         final Pattern sourcePackage;
 
         final Pattern targetPackage;
 
-        Entry(final int logLevelBitmask,
+        Entry(final int id,
+              final int logLevelBitmask,
               final Set<String> tags,
               final Pattern messagePattern,
               final Pattern sourcePackage,
               final Pattern targetPackage) {
+            this.id = id;
             this.logLevelBitmask = logLevelBitmask;
             this.tags = tags;
             this.messagePattern = messagePattern;
             this.sourcePackage = sourcePackage;
             this.targetPackage = targetPackage;
+
+            final LiteralPrefix prefix = LiteralPrefix.extract(messagePattern);
+            if (prefix != null) {
+                messagePrefix = prefix.prefix.getBytes(Charsets.UTF_8);
+                isMessagePrefixExact = prefix.isExact;
+            } else {
+                messagePrefix = null;
+                isMessagePrefixExact = false;
+            }
         }
 
-        boolean matches(final LogEntry entry, final String source) {
+        boolean matches(final LogEntry entry, final String source, final MatchContext context) {
             if ((logLevelBitmask & 1 << entry.logLevel()) == 0) {
                 return false;
             }
             if (!tags.contains(entry.tag())) {
                 return false;
             }
-            if (!messagePattern.matcher(entry.message()).find()) {
+            return matchesSourceAndMessage(entry, source, context);
+        }
+
+        /**
+         * Checks the source and the message, assuming the log level and tag are already known to match. The message is
+         * only looked at if this rule has a message pattern, and is never decoded into a String.
+         */
+        boolean matchesSourceAndMessage(final LogEntry entry, final String source, final MatchContext context) {
+            if (sourcePackage != UNIVERSAL_PATTERN && !context.matcher(sourcePackage, source).find()) {
                 return false;
             }
-            if (!sourcePackage.matcher(source).find()) {
-                return false;
+            if (messagePattern == null) {
+                return true;
             }
-            return true;
+            if (messagePrefix != null) {
+                if (!entry.messageStartsWith(messagePrefix)) {
+                    return false;
+                }
+                if (isMessagePrefixExact) {
+                    return true;
+                }
+            }
+            return context.messageMatcher(messagePattern, entry).find();
         }
 
         boolean targetMatches(final String target) {
@@ -127,6 +438,87 @@ public final class LogEntryFilter {
         }
     }
 
+    /**
+     * The literal prefix of a regular expression anchored at the start, e.g. {@code "Start proc "} of
+     * {@code "^Start proc (\\S+)"}.
+     */
+    static final class LiteralPrefix {
+        private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+        private static final int REPLACEMENT_CHARACTER = 0xfffd;
+
+        final String prefix;
+
+        /**
+         * Whether the whole pattern is the literal prefix, i.e. {@code find()} succeeds if and only if the input starts
+         * with the prefix.
+         */
+        final boolean isExact;
+
+        private LiteralPrefix(final String prefix, final boolean isExact) {
+            this.prefix = prefix;
+            this.isExact = isExact;
+        }
+
+        /**
+         * Extracts the literal prefix of the pattern.
+         *
+         * @return The prefix, or null if the pattern is not anchored or has no literal prefix.
+         */
+        static LiteralPrefix extract(final Pattern pattern) {
+            if (pattern == null || pattern.flags() != 0) {
+                return null;
+            }
+            final String regex = pattern.pattern();
+            // A top-level alternation would invalidate the anchor. Be conservative and reject every '|'.
+            if (!regex.startsWith("^") || regex.indexOf('|') >= 0) {
+                return null;
+            }
+
+            final StringBuilder prefix = new StringBuilder();
+            final int length = regex.length();
+            int i = 1;
+            while (i < length) {
+                final int c = regex.codePointAt(i);
+                final int literal;
+                final int literalLength;
+                if (c == '\\') {
+                    if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        // Escapes like \d or \Q are not literal (enough).
+                        break;
+                    }
+                    literal = regex.codePointAt(i + 1);
+                    literalLength = 1 + Character.charCount(literal);
+                } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                    break;
+                } else {
+                    literal = c;
+                    literalLength = Character.charCount(c);
+                }
+
+                // U+FFFD also matches malformed bytes in the message, and a lone surrogate has no UTF-8 form, so
+                // neither can be compared byte by byte.
+                if (literal == REPLACEMENT_CHARACTER || (literal >= Character.MIN_SURROGATE
+                        && literal <= Character.MAX_SURROGATE)) {
+                    break;
+                }
+
+                // A quantifier after the literal makes it optional or repeatable.
+                final int next = i + literalLength;
+                if (next < length && "?*+{".indexOf(regex.charAt(next)) >= 0) {
+                    break;
+                }
+
+                prefix.appendCodePoint(literal);
+                i = next;
+            }
+
+            if (prefix.length() == 0) {
+                return null;
+            }
+            return new LiteralPrefix(prefix.toString(), i == length);
+        }
+    }
+
     private static final class RawEntry {
         public String level;
         public Set<String> tags;
@@ -134,20 +526,20 @@ public final class LogEntryFilter {
         public String source;
         public String target;
 
-        private Entry compile() throws PatternSyntaxException {
+        private Entry compile(final int id) throws PatternSyntaxException {
             final int bitmask = parseLogLevelBitmask();
             final Set<String> realTags = (tags == null) ? UniversalSet.<String>instance() : tags;
-            final Pattern messagePattern = (message == null) ? UNIVERSAL_PATTERN : Pattern.compile(message);
+            final Pattern messagePattern = (message == null) ? null : Pattern.compile(message);
             final Pattern sourcePattern = (source == null) ? UNIVERSAL_PATTERN : Pattern.compile(source);
             final Pattern targetPattern = (target == null) ? UNIVERSAL_PATTERN : Pattern.compile(target);
-            return new Entry(bitmask, realTags, messagePattern, sourcePattern, targetPattern);
+            return new Entry(id, bitmask, realTags, messagePattern, sourcePattern, targetPattern);
         }
 
         static Entry[] compile(final RawEntry[] rawEntries) {
             final Entry[] entries = new Entry[rawEntries.length];
             int i = 0;
             for (final RawEntry rawEntry : rawEntries) {
-                entries[i] = rawEntry.compile();
+                entries[i] = rawEntry.compile(i);
                 ++i;
             }
             return entries;
@@ -0,0 +1,141 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer single-consumer queue of log entries.
+ *
+ * <p>All slots are allocated up front and reused, so passing an entry from one thread to another does not allocate
+ * (except when an entry is larger than any entry previously seen by the slot). If the queue is full, the entry is
+ * dropped and counted instead of blocking the producer.</p>
+ *
+ * <p>The producer calls {@link #claim()}, fills the returned slot, then calls {@link #publish()}. The consumer calls
+ * {@link #take()}, processes the returned slot, then calls {@link #release()}.</p>
+ */
+public final class LogEntryQueue {
+    private final LogEntry[] mSlots;
+    private final int mMask;
+
+    /**
+     * The number of slots ever released by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * The number of slots ever published by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private volatile Thread mWaitingConsumer;
+    private volatile boolean mIsClosed;
+
+    /**
+     * @param capacity The number of slots. Must be a power of 2.
+     */
+    public LogEntryQueue(final int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+        mSlots = new LogEntry[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            mSlots[i] = new LogEntry();
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Obtains the next free slot for writing.
+     *
+     * @return The slot, or null if the queue is full. In this case the entry is counted as dropped.
+     */
+    public LogEntry claim() {
+        final long tail = mTail.get();
+        if (tail - mHead.get() >= mSlots.length) {
+            mDroppedCount.incrementAndGet();
+            return null;
+        }
+        return mSlots[(int) tail & mMask];
+    }
+
+    /**
+     * Makes the slot returned by {@link #claim()} visible to the consumer.
+     */
+    public void publish() {
+        mTail.set(mTail.get() + 1);
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Stops the queue. After all published entries are consumed, {@link #take()} will return null.
+     */
+    public void close() {
+        mIsClosed = true;
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits for the next published slot.
+     *
+     * @return The slot, or null if the queue is closed.
+     */
+    public LogEntry take() throws InterruptedException {
+        final long head = mHead.get();
+        while (mTail.get() == head) {
+            if (mIsClosed) {
+                return null;
+            }
+            mWaitingConsumer = Thread.currentThread();
+            if (mTail.get() == head && !mIsClosed) {
+                // The timeout is just a safety net, publish() will wake us up.
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            mWaitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Returns the slot obtained from {@link #take()} to the producer.
+     */
+    public void release() {
+        mHead.set(mHead.get() + 1);
+    }
+
+    /**
+     * The number of entries dropped because the consumer could not keep up.
+     */
+    public long droppedCount() {
+        return mDroppedCount.get();
+    }
+}
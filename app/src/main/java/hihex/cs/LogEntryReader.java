@@ -0,0 +1,124 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the binary output of {@code logcat -B}.
+ *
+ * <p>The stream is read in bulk into a large reusable buffer, and each {@code logger_entry} frame is sliced out of the
+ * buffer in place. The {@link LogEntry} filled by {@link #read(LogEntry)} is a view into this buffer, and is only valid
+ * until the next call.</p>
+ */
+public final class LogEntryReader {
+    /**
+     * The size of the buffer. It must be able to hold the largest possible frame (a 28-byte header plus a payload of up
+     * to 65535 bytes), and should be large enough to keep a burst of logs with a single read() call.
+     */
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private final InputStream mStream;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * The start of the unconsumed data in the buffer.
+     */
+    private int mStart;
+
+    /**
+     * The end of the valid data in the buffer.
+     */
+    private int mEnd;
+
+    public LogEntryReader(final InputStream stream) {
+        mStream = stream;
+    }
+
+    private int getShort(final int offset) {
+        final byte[] buffer = mBuffer;
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+    }
+
+    private int getInt(final int offset) {
+        final byte[] buffer = mBuffer;
+        return (buffer[offset] & 0xff)
+                | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16
+                | buffer[offset + 3] << 24;
+    }
+
+    /**
+     * Ensures there are at least {@code length} bytes of unconsumed data in the buffer, reading from the stream if
+     * needed.
+     */
+    private void fill(final int length) throws IOException {
+        if (mEnd - mStart >= length) {
+            return;
+        }
+
+        // Move the incomplete frame to the front, so the rest of the buffer can be filled. This is a small copy which
+        // only happens once per buffer-full.
+        if (mStart + length > BUFFER_SIZE) {
+            final int remaining = mEnd - mStart;
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, remaining);
+            mStart = 0;
+            mEnd = remaining;
+        }
+
+        while (mEnd - mStart < length) {
+            final int count = mStream.read(mBuffer, mEnd, BUFFER_SIZE - mEnd);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            mEnd += count;
+        }
+    }
+
+    /**
+     * Replace the content of the entry with the next frame from the stream.
+     */
+    public void read(final LogEntry entry) throws IOException {
+        fill(4);
+        final int start = mStart;
+        final int payloadLength = getShort(start);
+        int headerLength = getShort(start + 2);
+        if (headerLength != 24) {
+            // FIXME In logger_entry(_v1) the __pad can be filled with garbage. We don't know if we are targeting v1 or
+            //       not. Maybe do an actual ioctl() check in the future.
+            headerLength = 20;
+        }
+
+        final int frameLength = headerLength + payloadLength;
+        fill(frameLength);
+
+        // fill() may have moved the frame.
+        final int frameStart = mStart;
+        entry.wrap(mBuffer,
+                frameStart + headerLength,
+                payloadLength,
+                getInt(frameStart + 4),
+                getInt(frameStart + 8),
+                getInt(frameStart + 12),
+                getInt(frameStart + 16));
+        mStart = frameStart + frameLength;
+    }
+}
@@ -21,14 +21,15 @@ package hihex.cs;
 
 import android.content.Context;
 
-import com.google.common.collect.Ordering;
-import com.google.common.collect.TreeMultimap;
+import com.google.common.base.Optional;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
 
 public final class LogFiles {
     /**
@@ -36,72 +37,141 @@ public final class LogFiles {
      */
     private final File mLogFolder;
 
-    public LogFiles(final Context context) {
+    private final Preferences mPreferences;
+
+    /**
+     * The metadata of the logs, kept next to the log folder.
+     */
+    private final LogCatalog mCatalog;
+
+    private final LogRetention mRetention;
+
+    private final SearchIndex mSearchIndex;
+
+    /**
+     * The folder of the {@link LogCheckpoints} of the logs, named after the logs.
+     */
+    private final File mCheckpointFolder;
+
+    public LogFiles(final Context context, final Preferences preferences) {
+        mPreferences = preferences;
         mLogFolder = new File(context.getFilesDir(), "logs");
         mLogFolder.mkdir();
-    }
+        mCatalog = new LogCatalog(mLogFolder, new File(context.getFilesDir(), "logs.journal"));
+        mRetention = new LogRetention(this, preferences);
 
-    public TreeMultimap<Long, File> list() {
-        final File[] files = mLogFolder.listFiles();
-        final TreeMultimap<Long, File> sortedFiles =
-                TreeMultimap.create(Ordering.natural().reverse(), Ordering.natural());
-        for (final File file : files) {
-            sortedFiles.put(file.lastModified(), file);
+        final HashMap<String, Long> startTimes = new HashMap<>();
+        for (final LogCatalog.Item item : mCatalog.list()) {
+            startTimes.put(item.name, item.startTime);
+        }
+        mSearchIndex = new SearchIndex(new File(context.getFilesDir(), "index"), startTimes);
+
+        mCheckpointFolder = new File(context.getFilesDir(), "checkpoints");
+        mCheckpointFolder.mkdir();
+        final File[] checkpoints = mCheckpointFolder.listFiles();
+        for (final File file : (checkpoints != null) ? checkpoints : new File[0]) {
+            if (!startTimes.containsKey(file.getName())) {
+                file.delete();
+            }
         }
-        return sortedFiles;
     }
 
-    public void removeExpired(final Preferences preferences) {
-        long purgeDuration = preferences.getPurgeDuration();
-        long purgeFilesize = preferences.getPurgeFilesize();
-
-        final TreeMultimap<Long, File> files = list();
+    /**
+     * Lists the log files, the most recently modified first. The file system is not accessed.
+     */
+    public List<LogCatalog.Item> list() {
+        return mCatalog.list();
+    }
 
-        // Don't use `TreeMultimap.create(files)`! The key comparator will be reverted to the natural one.
-        final TreeMultimap<Long, File> filesToKeep = TreeMultimap.create(Ordering.natural().reverse(), Ordering.natural());
-        filesToKeep.putAll(files);
+    /**
+     * Removes the logs older than the purge duration, and the oldest logs exceeding the purge file size, in the
+     * background. Files being recorded are never removed, but their sizes count.
+     */
+    public void removeExpired() {
+        mRetention.request();
+    }
 
-        if (purgeDuration >= 0) {
-            final long expireDate = System.currentTimeMillis() - purgeDuration;
-            filesToKeep.asMap().tailMap(expireDate).clear();
+    void deleteExpired(final long expireDate, final long maxTotalSize) {
+        for (final LogCatalog.Item item : mCatalog.selectExpired(expireDate, maxTotalSize)) {
+            delete(item.name);
         }
+    }
 
-        if (purgeFilesize >= 0) {
-            final Iterator<File> iterator = filesToKeep.values().iterator();
-            long currentFilesize = 0;
-            while (iterator.hasNext()) {
-                final File file = iterator.next();
-                if (currentFilesize > purgeFilesize) {
-                    iterator.remove();
-                } else {
-                    currentFilesize += file.length();
-                }
-            }
-        }
+    long oldestModifiedTime() {
+        return mCatalog.oldestModifiedTime();
+    }
 
-        files.entries().removeAll(filesToKeep.entries());
-        for (final File file : files.values()) {
-            file.delete();
-        }
+    /**
+     * Searches the logs recorded by CatSaver, without reading the log files.
+     *
+     * @see SearchIndex#search(String, int)
+     */
+    public List<SearchIndex.Hit> search(final String query, final int limit) throws IOException {
+        return mSearchIndex.search(query, limit);
     }
 
-    public File getNewPath(final String name, final String extension) {
+    /**
+     * Finds a free filename, and creates an empty file there so it is not taken by anyone else before the file is
+     * actually written.
+     */
+    public File getNewPath(final String name, final String extension) throws IOException {
         for (int i = 0;; ++ i) {
             final String suffix = (i != 0) ? (" (" + i + ')' + extension) : extension;
             final File path = new File(mLogFolder, name + suffix);
-            if (!path.exists()) {
+            if (path.createNewFile()) {
                 return path;
             }
         }
     }
 
-    public InputStream open(final String fileName) throws FileNotFoundException {
+    /**
+     * Creates a new compressed log file for writing, using the compressor chosen in the preferences. Files with the
+     * {@link BinaryLog#EXTENSION} are written in the binary format. The file itself is created by the writer stage.
+     *
+     * @param path        The path of the new file.
+     * @param stage       The writer stage which will compress and write the content in the background.
+     * @param pid         The process being recorded.
+     * @param processName The name of the process being recorded.
+     */
+    public LogSink openSink(final File path, final LogWriterStage stage, final int pid, final String processName) {
+        final long startTime = System.currentTimeMillis();
+        final SearchSegment segment = mSearchIndex.openSegment(path.getName(), pid, processName, startTime);
+        final LogCheckpoints checkpoints = new LogCheckpoints(new File(mCheckpointFolder, path.getName()));
+        final LogSink sink = new LogSink(path, mPreferences.getCompressor(), stage, mCatalog, segment, checkpoints,
+                BinaryLog.isBinaryLog(path.getName()));
+        mCatalog.open(sink, pid, processName, startTime);
+        return sink;
+    }
+
+    public FileInputStream open(final String fileName) throws FileNotFoundException {
         final File path = new File(mLogFolder, fileName);
         return new FileInputStream(path);
     }
 
+    /**
+     * Opens the part of an HTML log covering a time range, without decompressing the rest: the header, followed by
+     * the entries in the range.
+     *
+     * @param from The start of the range, in seconds since the epoch.
+     * @param to   The end of the range, in seconds since the epoch.
+     * @return The uncompressed content, or absent if the log cannot be read this way (it is binary, or was recorded
+     * before checkpoints existed).
+     */
+    public Optional<InputStream> openRange(final String fileName, final long from, final long to)
+            throws IOException {
+        final Optional<long[]> range = mSearchIndex.entryRange(fileName, from, to);
+        if (!range.isPresent()) {
+            return Optional.absent();
+        }
+        return LogCheckpoints.open(new File(mLogFolder, fileName), new File(mCheckpointFolder, fileName),
+                range.get()[0], range.get()[1]);
+    }
+
     public void delete(final String fileName) {
         final File path = new File(mLogFolder, fileName);
         path.delete();
+        mCatalog.remove(fileName);
+        mSearchIndex.remove(fileName);
+        new File(mCheckpointFolder, fileName).delete();
     }
 }
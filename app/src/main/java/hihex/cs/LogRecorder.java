@@ -18,25 +18,48 @@
 
 package hihex.cs;
 
+import android.os.SystemClock;
 import android.util.Pair;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Writer;
 import java.util.regex.Pattern;
 
 /**
  * The thread that collects logcat events into files.
+ *
+ * <p>The collector is a pipeline of three stages. The {@link LogcatReader} drains the logcat pipe into a
+ * {@link LogEntryQueue}. This thread (the filter stage) takes entries from the queue, filters and renders them, and
+ * routes the rendered bytes to the {@link LogSink} of every target. Finally the {@link LogWriterStage} of each target
+ * process compresses the content of its sinks into the files. A stage which cannot keep up makes the previous stage
+ * drop entries instead of blocking it.</p>
  */
 public final class LogRecorder implements Runnable {
+    private static final int QUEUE_CAPACITY = 2048;
+
+    /**
+     * Minimum interval between reports of dropped entries, so that we don't flood the log we are reading.
+     */
+    private static final long DROP_REPORT_INTERVAL = 10000;
+
     private final Config mConfig;
     private int[] mDebuggedPids = Config.EMPTY_PID_ARRAY;
 
+    private final Utf8Buffer mEntryBuffer = new Utf8Buffer(4096);
+    private boolean mIsEntryRendered;
+    private final EntryRenderer mEntryRenderer;
+    private final MatchContext mMatchContext = new MatchContext();
+
+    private long mReportedReaderDrops;
+    private long mReportedWriterDrops;
+    private long mLastDropReportTime;
+
     public LogRecorder(final Config config) {
         mConfig = config;
+        mEntryRenderer = config.renderer.newEntryRenderer();
 
         Events.bus.register(this);
     }
@@ -54,59 +77,91 @@ public final class LogRecorder implements Runnable {
             }
 
             final Process process = runtime.exec(new String[]{"logcat", "-B"});
-            final LogEntry entry = new LogEntry();
-            final InputStream stream = process.getInputStream();
+            final LogEntryQueue queue = new LogEntryQueue(QUEUE_CAPACITY);
+            final Thread readerThread = new Thread(new LogcatReader(process.getInputStream(), queue), "Logcat reader");
+            readerThread.start();
 
             while (true) {
-                entry.read(stream);
-                if (entry.isSystemRestart()) {
-                    mConfig.refreshPids();
+                final LogEntry entry = queue.take();
+                if (entry == null) {
+                    break;
                 }
-
-                final int pid = entry.pid();
-                if (pid == mConfig.systemServerPid()) {
-                    handleSystemServerLog(entry);
-                } else if (pid == mConfig.debuggerdPid()) {
-                    handleDebuggerdLog(entry);
+                try {
+                    processEntry(entry);
+                } finally {
+                    queue.release();
                 }
+                reportDroppedEntries(queue);
+            }
 
-                final int[] writeToPids = mConfig.getFilteredPidsForLog(entry);
-                if (entry.isJniCrash()) {
-                    mDebuggedPids = writeToPids;
-                }
-                for (final int targetPid : writeToPids) {
-                    final Optional<Writer> optWriter = mConfig.splitLogAndGetWriter(targetPid);
-                    if (optWriter.isPresent()) {
-                        final Writer writer = optWriter.get();
-                        writeLogEntry(writer, entry);
-                        if (entry.isAnr()) {
-                            writeAnrTraces(writer, pid);
-                            if (pid != targetPid) {
-                                writeAnrTraces(writer, targetPid);
-                            }
-                        }
+        } catch (final IOException | InterruptedException e) {
+            CsLog.e("Encountered exception when recording LogCat", e);
+        }
+    }
+
+    private void processEntry(final LogEntry entry) throws IOException {
+        mIsEntryRendered = false;
+
+        if (entry.isSystemRestart()) {
+            mConfig.refreshPids();
+        }
+
+        final int pid = entry.pid();
+        if (pid == mConfig.systemServerPid()) {
+            handleSystemServerLog(entry);
+        } else if (pid == mConfig.debuggerdPid()) {
+            handleDebuggerdLog(entry);
+        }
+
+        final int[] writeToPids = mConfig.getFilteredPidsForLog(entry, mMatchContext);
+        if (entry.isJniCrash(mMatchContext)) {
+            mDebuggedPids = writeToPids;
+        }
+        for (final int targetPid : writeToPids) {
+            final Optional<LogSink> optWriter = mConfig.splitLogAndGetWriter(targetPid);
+            if (optWriter.isPresent()) {
+                final LogSink writer = optWriter.get();
+                offerLogEntry(writer, entry);
+                if (entry.isAnr()) {
+                    writeAnrTraces(writer, pid);
+                    if (pid != targetPid) {
+                        writeAnrTraces(writer, targetPid);
                     }
                 }
-                if (writeToPids != Config.EMPTY_PID_ARRAY) {
-                    // Note that getFilteredPidsForLog() returns EMPTY_PID_ARRAY_LIVE_ALLOWED if live logging is
-                    // possible for this entry. Only when the entry is filtered out it will return EMPTY_PID_ARRAY.
-                    Events.bus.post(new Events.LiveEntry(entry));
-                }
             }
+        }
+        if (writeToPids != Config.EMPTY_PID_ARRAY) {
+            // Note that getFilteredPidsForLog() returns EMPTY_PID_ARRAY_LIVE_ALLOWED if live logging is possible for
+            // this entry. Only when the entry is filtered out it will return EMPTY_PID_ARRAY.
+            mConfig.liveHub.publish(entry);
+        }
+    }
 
-        } catch (final IOException | InterruptedException e) {
-            CsLog.e("Encountered exception when recording LogCat", e);
+    private void reportDroppedEntries(final LogEntryQueue queue) {
+        final long readerDrops = queue.droppedCount();
+        final long writerDrops = LogWriterStage.totalDroppedCount();
+        if (readerDrops == mReportedReaderDrops && writerDrops == mReportedWriterDrops) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastDropReportTime < DROP_REPORT_INTERVAL) {
+            return;
         }
+        mLastDropReportTime = now;
+        CsLog.w("Collector overflow: dropped " + (readerDrops - mReportedReaderDrops) + " entries before filtering and "
+                + (writerDrops - mReportedWriterDrops) + " entries before writing");
+        mReportedReaderDrops = readerDrops;
+        mReportedWriterDrops = writerDrops;
     }
 
     private void handleSystemServerLog(final LogEntry entry) throws IOException {
-        final Pair<Integer, String> startProcessInfo = entry.checkStartProcessInfo();
+        final Pair<Integer, String> startProcessInfo = entry.checkStartProcessInfo(mMatchContext);
         if (startProcessInfo != null) {
             createProcess(entry, startProcessInfo.first, startProcessInfo.second);
             return;
         }
 
-        final int endProcessPid = entry.checkEndProcessInfo();
+        final int endProcessPid = entry.checkEndProcessInfo(mMatchContext);
         if (endProcessPid != -1) {
             deleteProcess(entry, endProcessPid);
         }
@@ -118,9 +173,9 @@ public final class LogRecorder implements Runnable {
         }
 
         for (final int pid : mDebuggedPids) {
-            final Optional<Writer> writer = mConfig.splitLogAndGetWriter(pid);
+            final Optional<LogSink> writer = mConfig.splitLogAndGetWriter(pid);
             if (writer.isPresent()) {
-                writeLogEntry(writer.get(), entry);
+                offerLogEntry(writer.get(), entry);
             }
         }
 
@@ -130,13 +185,14 @@ public final class LogRecorder implements Runnable {
     }
 
     private void createProcess(final LogEntry entry, final int pid, final String processName) throws IOException {
-        final Preferences preferences = mConfig.preferences;
+        mConfig.pidDatabase.addProcess(pid, processName);
+
         final Pattern filter = mConfig.preferences.getFilter();
         if (!filter.matcher(processName).find()) {
             return;
         }
 
-        mConfig.logFiles.removeExpired(preferences);
+        mConfig.logFiles.removeExpired();
 
         final Optional<Writer> optWriter = mConfig.startRecording(pid, Optional.of(processName), entry.timestamp());
         if (optWriter.isPresent()) {
@@ -157,10 +213,39 @@ public final class LogRecorder implements Runnable {
                 return null;
             }
         });
+        mConfig.pidDatabase.removeProcess(pid);
     }
 
     private void writeLogEntry(final Writer writer, final LogEntry entry) throws IOException {
-        mConfig.renderer.writeLogEntry(writer, entry);
+        if (writer instanceof LogSink && ((LogSink) writer).isBinary()) {
+            ((LogSink) writer).writeEntry(entry);
+        } else {
+            if (writer instanceof LogSink) {
+                final LogSink sink = (LogSink) writer;
+                final long offset = sink.position();
+                mConfig.renderer.writeLogEntry(writer, entry);
+                sink.countEntry(offset, entry);
+            } else {
+                mConfig.renderer.writeLogEntry(writer, entry);
+            }
+        }
+    }
+
+    /**
+     * Offers the entry to the sink. For HTML sinks, the entry is rendered into the entry buffer once, on first use, so
+     * it can be sent to multiple sinks.
+     */
+    private void offerLogEntry(final LogSink sink, final LogEntry entry) throws IOException {
+        if (sink.isBinary()) {
+            sink.offerEntry(entry);
+            return;
+        }
+        if (!mIsEntryRendered) {
+            mEntryBuffer.reset();
+            mEntryRenderer.render(entry, mEntryBuffer);
+            mIsEntryRendered = true;
+        }
+        sink.offer(entry, mEntryBuffer.array(), 0, mEntryBuffer.size());
     }
 
     private void writeAnrTraces(final Writer writer, final int pid) throws IOException {
@@ -0,0 +1,98 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Removes expired log files in the background, so the collector never waits for the file system.
+ *
+ * <p>The service wakes up when requested (a new file is being recorded, or the settings changed), when the oldest log
+ * is about to expire, and every {@link #CHECK_INTERVAL} to notice the recording files growing. Each run only visits
+ * the files it removes, see {@link LogCatalog#selectExpired(long, long)}.</p>
+ */
+final class LogRetention implements Runnable {
+    /**
+     * The longest time between two runs, in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 60000;
+
+    private final LogFiles mLogFiles;
+    private final Preferences mPreferences;
+    private Thread mThread;
+    private boolean mIsRequested;
+
+    LogRetention(final LogFiles logFiles, final Preferences preferences) {
+        mLogFiles = logFiles;
+        mPreferences = preferences;
+    }
+
+    /**
+     * Asks the service to remove expired files soon. Never blocks.
+     */
+    synchronized void request() {
+        mIsRequested = true;
+        if (mThread == null) {
+            Events.bus.register(this);
+            mThread = new Thread(this, "Log retention");
+            mThread.setDaemon(true);
+            mThread.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    @Subscribe
+    public void onPreferencesUpdated(final Events.PreferencesUpdated preferences) {
+        request();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                mIsRequested = false;
+            }
+
+            final long purgeDuration = mPreferences.getPurgeDuration();
+            final long now = System.currentTimeMillis();
+            final long expireDate = (purgeDuration >= 0) ? now - purgeDuration : Long.MIN_VALUE;
+            mLogFiles.deleteExpired(expireDate, mPreferences.getPurgeFilesize());
+
+            long sleepTime = CHECK_INTERVAL;
+            if (purgeDuration >= 0) {
+                final long oldestTime = mLogFiles.oldestModifiedTime();
+                if (oldestTime != Long.MAX_VALUE) {
+                    sleepTime = Math.max(1, Math.min(sleepTime, oldestTime + purgeDuration - now + 1));
+                }
+            }
+
+            synchronized (this) {
+                if (!mIsRequested) {
+                    try {
+                        wait(sleepTime);
+                    } catch (final InterruptedException e) {
+                        mThread = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
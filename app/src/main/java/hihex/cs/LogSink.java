@@ -0,0 +1,704 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The writing end of a log file.
+ *
+ * <p>Everything written to the sink is put into a bounded byte ring, which is drained into the (slow, compressing)
+ * output stream by the {@link LogWriterStage} of the process. The producer side is guarded by the writer
+ * {@link #lock}; the ring itself is a single-producer single-consumer queue and does not allocate.</p>
+ *
+ * <p>Log entries are added with {@link #offer(LogEntry, byte[], int, int)}, which drops the entry if the ring is full.
+ * Anything written through the {@link Writer} interface (headers, footers, ANR traces) is never dropped, and waits for
+ * space instead.</p>
+ *
+ * <p>The writer stage makes sync points in the compressed file (flushes which keep the compression dictionary) after
+ * {@link #SYNC_SIZE} bytes or {@link #SYNC_INTERVAL}, so little is lost if CatSaver crashes. Reading the file while it
+ * is being recorded does not flush it: {@link #openContent()} returns the file up to the last sync point, followed by
+ * a copy of everything written after it.</p>
+ *
+ * <p>Every {@link #CHECKPOINT_SIZE} bytes, and right after the header, an HTML sink makes a checkpoint instead, where
+ * the compressor is reset, so the file can be read from there without decompressing what comes before. See
+ * {@link LogCheckpoints}.</p>
+ *
+ * <p>The compressed file is created by the writer stage too, so starting a new file (e.g. when splitting) costs the
+ * collector thread nothing but a ring. The sink also keeps byte and entry counters, so {@link #estimatedSize()} can
+ * tell the size of the compressed file without touching the file system, and the {@link LogCatalog} is told the final
+ * numbers once the file is closed.</p>
+ *
+ * <p>A binary sink writes a {@link BinaryLog} instead of HTML. Entries are added with {@link #offerEntry(LogEntry)}
+ * unrendered, and text written through the Writer interface is stored as text records.</p>
+ */
+public final class LogSink extends Writer {
+    private static final int RING_SIZE = 256 * 1024;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /**
+     * Text written through the Writer interface is encoded and committed to the ring in chunks of this size.
+     */
+    private static final int STAGING_LIMIT = 8192;
+
+    /**
+     * Make a sync point when this many bytes are written after the last one.
+     */
+    private static final int SYNC_SIZE = 65536;
+
+    /**
+     * Make a sync point when the oldest byte written after the last one is older than this, in milliseconds.
+     */
+    private static final long SYNC_INTERVAL = 5000;
+
+    /**
+     * Make a checkpoint instead of a sync point when this many bytes are written after the last checkpoint.
+     */
+    static final int CHECKPOINT_SIZE = 256 * 1024;
+
+    private final File mPath;
+    private final LogCompressor mCompressor;
+    private final LogWriterStage mStage;
+    private final LogCatalog mCatalog;
+    private final SearchSegment mSearchSegment;
+
+    /**
+     * The checkpoints of an HTML sink, or null if the sink is binary.
+     */
+    private final LogCheckpoints mCheckpoints;
+
+    /**
+     * The compressed file, opened by the writer stage when it first drains the sink.
+     */
+    private OutputStream mStream;
+
+    private final byte[] mRing = new byte[RING_SIZE];
+
+    /**
+     * The number of bytes ever consumed by the writer stage.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * The number of bytes ever committed by the producers.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final Utf8Buffer mStaging = new Utf8Buffer(STAGING_LIMIT * 2);
+
+    /**
+     * The encoder of a binary sink, or null if the sink writes HTML.
+     */
+    private final BinaryLog.Encoder mEncoder;
+    private final Utf8Buffer mRecord;
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * The number of entries written of each log level, from {@link Log#VERBOSE}. Guarded by the writer lock.
+     */
+    private final int[] mLevelCounts = new int[LogCatalog.LEVEL_COUNT];
+
+    /**
+     * The time of the last write to the file.
+     */
+    private volatile long mLastModified = System.currentTimeMillis();
+
+    /**
+     * The number of flushes requested by producers, and the number of flushes done by the writer stage.
+     */
+    private final AtomicLong mRequestedFlushes = new AtomicLong();
+    private volatile long mCompletedFlushes;
+    private final Object mFlushLock = new Object();
+
+    private volatile boolean mIsClosing;
+    private volatile boolean mIsClosed;
+
+    /**
+     * Guards the sync point state below, and the movement of {@link #mHead}, so readers get a consistent view.
+     */
+    private final Object mSyncLock = new Object();
+
+    /**
+     * The last sync point. Both lengths are published together, so readers never mix two different sync points.
+     */
+    private volatile SyncPoint mSyncPoint = SyncPoint.START;
+
+    /**
+     * Everything written to the stream after the last sync point.
+     */
+    private final Utf8Buffer mUnsynced = new Utf8Buffer(16384);
+
+    /**
+     * When the first byte after the last sync point was written. Only used by the writer stage.
+     */
+    private long mUnsyncedSince;
+
+    /**
+     * The offset of the end of the header, or -1 before {@link #endHeader()} is called.
+     */
+    private volatile long mContentStart = -1;
+
+    /**
+     * The uncompressed offset of the last checkpoint, or -1 before the first one. Only used by the writer stage.
+     */
+    private long mCheckpointInput = -1;
+
+    LogSink(final File path, final LogCompressor compressor, final LogWriterStage stage, final LogCatalog catalog,
+            final SearchSegment searchSegment, final LogCheckpoints checkpoints, final boolean isBinary) {
+        mPath = path;
+        mCompressor = compressor;
+        mStage = stage;
+        mCatalog = catalog;
+        mSearchSegment = searchSegment;
+        mCheckpoints = isBinary ? null : checkpoints;
+        if (isBinary) {
+            mEncoder = new BinaryLog.Encoder();
+            mRecord = new Utf8Buffer(4096);
+        } else {
+            mEncoder = null;
+            mRecord = null;
+        }
+        stage.register(this);
+
+        if (isBinary) {
+            BinaryLog.Encoder.writeMagic(mRecord);
+            // The ring is empty, so this always succeeds.
+            tryPut(mRecord.array(), 0, mRecord.size());
+        }
+    }
+
+    public boolean isBinary() {
+        return mEncoder != null;
+    }
+
+    public File path() {
+        return mPath;
+    }
+
+    /**
+     * Counts and indexes an entry written to the sink. Must be called with the writer lock held.
+     *
+     * @param offset The offset of the entry in the uncompressed file.
+     */
+    private void addEntry(final long offset, final LogEntry entry) {
+        final int index = entry.logLevel() - Log.VERBOSE;
+        if (index >= 0 && index < mLevelCounts.length) {
+            ++mLevelCounts[index];
+        }
+        mSearchSegment.add(offset, entry);
+    }
+
+    /**
+     * Marks the end of the header. The first checkpoint is made exactly here, so a part of the log read from the
+     * checkpoints starts with the header and nothing else.
+     */
+    public void endHeader() throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            commitStaging();
+            mContentStart = mTail.get();
+        }
+        mStage.wakeUp();
+    }
+
+    /**
+     * The offset in the uncompressed file where the next thing written through the Writer interface will be.
+     */
+    public long position() {
+        synchronized (lock) {
+            return mTail.get() + mStaging.size();
+        }
+    }
+
+    /**
+     * Counts and indexes an entry written through the Writer interface.
+     *
+     * @param offset The {@link #position()} before the entry is written.
+     */
+    public void countEntry(final long offset, final LogEntry entry) {
+        synchronized (lock) {
+            addEntry(offset, entry);
+        }
+    }
+
+    /**
+     * Tries to put the bytes into the ring.
+     *
+     * @return Whether the bytes are written. If false, nothing is written.
+     */
+    private boolean tryPut(final byte[] bytes, final int offset, final int length) {
+        final long tail = mTail.get();
+        if (RING_SIZE - (tail - mHead.get()) < length) {
+            return false;
+        }
+
+        final int start = (int) tail & RING_MASK;
+        final int firstPart = Math.min(length, RING_SIZE - start);
+        System.arraycopy(bytes, offset, mRing, start, firstPart);
+        System.arraycopy(bytes, offset + firstPart, mRing, 0, length - firstPart);
+
+        mTail.set(tail + length);
+        mStage.wakeUp();
+        return true;
+    }
+
+    /**
+     * Puts the bytes into the ring, waiting for the writer stage to make room if needed.
+     */
+    private void put(final byte[] bytes, final int offset, final int length) throws InterruptedIOException {
+        int position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final int available = (int) (RING_SIZE - (mTail.get() - mHead.get()));
+            final int count = Math.min(remaining, available);
+            if (count > 0) {
+                tryPut(bytes, position, count);
+                position += count;
+                remaining -= count;
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private void commitStaging() throws IOException {
+        final int size = mStaging.size();
+        if (size > 0) {
+            if (mEncoder != null) {
+                mRecord.reset();
+                mEncoder.encodeTextHeader(size, mRecord);
+                put(mRecord.array(), 0, mRecord.size());
+            }
+            put(mStaging.array(), 0, size);
+            mStaging.reset();
+        }
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (mIsClosing) {
+            throw new IOException("Log sink is closed");
+        }
+    }
+
+    /**
+     * Adds a rendered log entry. If the writer stage cannot keep up and the ring is full, the entry is dropped.
+     *
+     * @param entry The entry rendered into the bytes.
+     * @return Whether the entry is written.
+     */
+    public boolean offer(final LogEntry entry, final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            commitStaging();
+            final long entryOffset = mTail.get();
+            if (tryPut(bytes, offset, length)) {
+                addEntry(entryOffset, entry);
+                return true;
+            }
+        }
+        mDroppedCount.incrementAndGet();
+        LogWriterStage.countDropped();
+        return false;
+    }
+
+    /**
+     * Adds an unrendered log entry to a binary sink. If the writer stage cannot keep up and the ring is full, the entry
+     * is dropped.
+     *
+     * @return Whether the entry is written.
+     */
+    public boolean offerEntry(final LogEntry entry) throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            commitStaging();
+            mRecord.reset();
+            mEncoder.encodeEntry(entry, mRecord);
+            final long entryOffset = mTail.get();
+            if (tryPut(mRecord.array(), 0, mRecord.size())) {
+                mEncoder.commit();
+                addEntry(entryOffset, entry);
+                return true;
+            }
+            mEncoder.rollback();
+        }
+        mDroppedCount.incrementAndGet();
+        LogWriterStage.countDropped();
+        return false;
+    }
+
+    /**
+     * Adds an unrendered log entry to a binary sink, waiting for space instead of dropping it.
+     */
+    public void writeEntry(final LogEntry entry) throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            commitStaging();
+            mRecord.reset();
+            mEncoder.encodeEntry(entry, mRecord);
+            mEncoder.commit();
+            final long entryOffset = mTail.get();
+            put(mRecord.array(), 0, mRecord.size());
+            addEntry(entryOffset, entry);
+        }
+    }
+
+    @Override
+    public void write(final char[] buffer, final int offset, final int count) throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            mStaging.write(buffer, offset, count);
+            if (mStaging.size() >= STAGING_LIMIT) {
+                commitStaging();
+            }
+        }
+    }
+
+    @Override
+    public void write(final String str, final int offset, final int count) throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            mStaging.write(str, offset, count);
+            if (mStaging.size() >= STAGING_LIMIT) {
+                commitStaging();
+            }
+        }
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        synchronized (lock) {
+            checkNotClosed();
+            mStaging.write(c);
+        }
+    }
+
+    /**
+     * Waits until everything written so far is flushed to the file up to a sync point, so it can be read by others.
+     * Readers should prefer {@link #openContent()}, which does not need to flush.
+     */
+    @Override
+    public void flush() throws IOException {
+        final long flushId;
+        synchronized (lock) {
+            checkNotClosed();
+            commitStaging();
+            flushId = mRequestedFlushes.incrementAndGet();
+        }
+        mStage.wakeUp();
+
+        synchronized (mFlushLock) {
+            while (mCompletedFlushes < flushId && !mIsClosed) {
+                try {
+                    mFlushLock.wait();
+                } catch (final InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the sink. The actual file will be closed asynchronously after everything is written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (mIsClosing) {
+                return;
+            }
+            try {
+                commitStaging();
+            } finally {
+                mIsClosing = true;
+                mStage.wakeUp();
+            }
+        }
+    }
+
+    /**
+     * The number of entries dropped because the writer stage could not keep up.
+     */
+    public long droppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * The number of entries of each log level written so far, from {@link Log#VERBOSE}.
+     */
+    public int[] levelCounts() {
+        synchronized (lock) {
+            return mLevelCounts.clone();
+        }
+    }
+
+    /**
+     * The size of the uncompressed content written so far.
+     */
+    public long writtenSize() {
+        return mTail.get();
+    }
+
+    /**
+     * The time of the last write to the file.
+     */
+    public long lastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Estimates the size of the compressed file, including everything already written to the sink. The part after the
+     * last sync point is assumed to compress like the part before it, or like the previous files if too little has been
+     * synced to tell.
+     */
+    public long estimatedSize() {
+        // The tail is read after the sync point, so it can never be behind it.
+        final SyncPoint syncPoint = mSyncPoint;
+        final long pending = mTail.get() - syncPoint.input;
+        final float ratio = (syncPoint.input >= LogWriterStage.MIN_RATIO_SAMPLE_SIZE)
+                ? (float) syncPoint.length / syncPoint.input : mStage.compressionRatio();
+        return syncPoint.length + (long) (pending * ratio);
+    }
+
+    /**
+     * Opens the uncompressed content written so far, without flushing the file.
+     */
+    public InputStream openContent() throws IOException {
+        final long syncedLength;
+        final byte[] tail;
+        synchronized (mSyncLock) {
+            syncedLength = mSyncPoint.length;
+
+            // The head cannot move while we hold the lock, so the bytes between the head and the tail of the ring are
+            // not overwritten while being copied.
+            final long head = mHead.get();
+            final long ringTail = mTail.get();
+            final int unsyncedSize = mUnsynced.size();
+            final int ringLength = (int) (ringTail - head);
+            tail = new byte[unsyncedSize + ringLength];
+            System.arraycopy(mUnsynced.array(), 0, tail, 0, unsyncedSize);
+            final int start = (int) head & RING_MASK;
+            final int firstPart = Math.min(ringLength, RING_SIZE - start);
+            System.arraycopy(mRing, start, tail, unsyncedSize, firstPart);
+            System.arraycopy(mRing, 0, tail, unsyncedSize + firstPart, ringLength - firstPart);
+        }
+
+        final InputStream unsynced = new ByteArrayInputStream(tail);
+        if (syncedLength == 0) {
+            // The file may not even be created yet.
+            return unsynced;
+        }
+        final InputStream file = ByteStreams.limit(new FileInputStream(mPath), syncedLength);
+        return new SequenceInputStream(new LenientGzipInputStream(file), unsynced);
+    }
+
+    /**
+     * Writes everything in the ring into the file, and makes a sync point if needed. Called from the writer stage
+     * only.
+     *
+     * @return Whether anything is done.
+     */
+    boolean drain() {
+        if (mIsClosed) {
+            return false;
+        }
+
+        // Read the closing flag and flush requests before the tail, so nothing committed before close() or flush() is
+        // missed.
+        final boolean isClosing = mIsClosing;
+        final long requestedFlushes = mRequestedFlushes.get();
+        final long head = mHead.get();
+        final long tail = mTail.get();
+
+        boolean didWork = false;
+        try {
+            if (mStream == null) {
+                openStream();
+            }
+            final boolean canCheckpoint = mCheckpoints != null && mStream instanceof LogCompressor.Checkpointable;
+            if (tail != head) {
+                final long contentStart = mContentStart;
+                synchronized (mSyncLock) {
+                    if (mUnsynced.size() == 0) {
+                        mUnsyncedSince = SystemClock.elapsedRealtime();
+                    }
+                    if (canCheckpoint && mCheckpointInput < 0 && contentStart >= head && contentStart <= tail) {
+                        // The first checkpoint separates the header from the entries. Nothing written after the
+                        // header can be drained before it, since the header end is published before the tail moves.
+                        writeRing(head, contentStart);
+                        checkpoint(contentStart);
+                        writeRing(contentStart, tail);
+                    } else {
+                        writeRing(head, tail);
+                    }
+                    mHead.set(tail);
+                }
+                mLastModified = System.currentTimeMillis();
+                didWork = true;
+            }
+            mSearchSegment.process();
+
+            final int unsyncedSize = mUnsynced.size();
+            final boolean shouldSync = requestedFlushes != mCompletedFlushes || unsyncedSize >= SYNC_SIZE
+                    || (unsyncedSize > 0 && SystemClock.elapsedRealtime() - mUnsyncedSince >= SYNC_INTERVAL);
+            if (shouldSync && !isClosing) {
+                synchronized (mSyncLock) {
+                    final long input = mHead.get();
+                    if (canCheckpoint && mCheckpointInput >= 0 && input - mCheckpointInput >= CHECKPOINT_SIZE) {
+                        checkpoint(input);
+                    } else {
+                        mStream.flush();
+                        setSyncPoint(input);
+                    }
+                }
+                final SyncPoint syncPoint = mSyncPoint;
+                mStage.updateCompressionRatio(syncPoint.input, syncPoint.length);
+                didWork = true;
+            }
+        } catch (final IOException e) {
+            // Discard the data, there is nothing we can do about it. Moving the head is still needed to unblock the
+            // producers.
+            synchronized (mSyncLock) {
+                mHead.set(tail);
+            }
+            CsLog.e("Failed to write log file. " + e);
+        }
+
+        if (isClosing) {
+            try {
+                mStream.close();
+            } catch (final IOException e) {
+                CsLog.e("Failed to close log file. " + e);
+            }
+            final long size = mPath.length();
+            mStage.updateCompressionRatio(mHead.get(), size);
+            mCatalog.close(this, size);
+            mSearchSegment.finish();
+            if (mCheckpoints != null) {
+                mCheckpoints.close();
+            }
+            mIsClosed = true;
+            didWork = true;
+        }
+
+        if (requestedFlushes != mCompletedFlushes || isClosing) {
+            synchronized (mFlushLock) {
+                mCompletedFlushes = requestedFlushes;
+                mFlushLock.notifyAll();
+            }
+        }
+
+        return didWork;
+    }
+
+    /**
+     * Writes the bytes of the ring between the two positions into the file. Must be called with the sync lock held.
+     */
+    private void writeRing(final long from, final long to) throws IOException {
+        final int start = (int) from & RING_MASK;
+        final int length = (int) (to - from);
+        final int firstPart = Math.min(length, RING_SIZE - start);
+        mStream.write(mRing, start, firstPart);
+        mUnsynced.writeBytes(mRing, start, firstPart);
+        if (firstPart < length) {
+            mStream.write(mRing, 0, length - firstPart);
+            mUnsynced.writeBytes(mRing, 0, length - firstPart);
+        }
+    }
+
+    /**
+     * Makes a sync point where the file can also be decompressed from. Must be called with the sync lock held.
+     *
+     * @param input The number of bytes consumed from the ring so far.
+     */
+    private void checkpoint(final long input) throws IOException {
+        ((LogCompressor.Checkpointable) mStream).checkpoint();
+        setSyncPoint(input);
+        mCheckpointInput = input;
+        mCheckpoints.add(input, mSyncPoint.length);
+    }
+
+    /**
+     * Records a sync point after the stream is flushed. Must be called with the sync lock held.
+     *
+     * @param input The number of bytes consumed from the ring so far.
+     */
+    private void setSyncPoint(final long input) {
+        mSyncPoint = new SyncPoint(input, mPath.length());
+        mUnsynced.reset();
+    }
+
+    /**
+     * Creates the compressed file. If it cannot be created, everything written to the sink is discarded.
+     */
+    private void openStream() throws IOException {
+        try {
+            mStream = mCompressor.open(mPath);
+        } catch (final IOException e) {
+            mStream = ByteStreams.nullOutputStream();
+            throw e;
+        }
+    }
+
+    boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * A point where everything written so far is readable from the file.
+     */
+    private static final class SyncPoint {
+        static final SyncPoint START = new SyncPoint(0, 0);
+
+        /**
+         * The number of bytes consumed from the ring, i.e. the uncompressed length of the file.
+         */
+        final long input;
+
+        /**
+         * The length of the compressed file.
+         */
+        final long length;
+
+        SyncPoint(final long input, final long length) {
+            this.input = input;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The writer stage of a recorded process. A background thread which drains the {@link LogSink}s of one process into
+ * their compressed files, so that compression does not block the collector thread, and a process which logs a lot
+ * does not delay the logs of other processes.
+ *
+ * <p>Every {@link PidEntry} of the same process shares the same stage, so the footer of a split file is always
+ * written before the header of its continuation. The thread is only running while the process has open sinks.</p>
+ */
+public final class LogWriterStage implements Runnable {
+    private static final AtomicLong sTotalDroppedCount = new AtomicLong();
+
+    /**
+     * The compression ratio assumed before any file is written. Logs typically compress to 10-20% with gzip.
+     */
+    private static final float DEFAULT_COMPRESSION_RATIO = 0.15f;
+
+    /**
+     * Files with less uncompressed content than this are dominated by the header and the gzip overhead, and do not tell
+     * the compression ratio of the logs.
+     */
+    static final long MIN_RATIO_SAMPLE_SIZE = 65536;
+
+    /**
+     * The compression ratio last seen in the files of any process.
+     */
+    private static volatile float sLastCompressionRatio = DEFAULT_COMPRESSION_RATIO;
+
+    private final String mThreadName;
+    private final CopyOnWriteArrayList<LogSink> mSinks = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mHasPendingWork = new AtomicBoolean();
+    private volatile Thread mThread;
+
+    /**
+     * The compressed size per uncompressed byte last seen in the files of this process. Starts from the ratio of other
+     * processes, so the first file of the process is not split too early.
+     */
+    private volatile float mCompressionRatio = sLastCompressionRatio;
+
+    public LogWriterStage(final int pid) {
+        mThreadName = "Log writer " + pid;
+    }
+
+    synchronized void register(final LogSink sink) {
+        mSinks.add(sink);
+        if (mThread == null) {
+            mThread = new Thread(this, mThreadName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Notifies the stage that some sinks have pending data.
+     */
+    void wakeUp() {
+        if (mHasPendingWork.compareAndSet(false, true)) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    float compressionRatio() {
+        return mCompressionRatio;
+    }
+
+    void updateCompressionRatio(final long uncompressedSize, final long compressedSize) {
+        if (uncompressedSize >= MIN_RATIO_SAMPLE_SIZE && compressedSize > 0) {
+            final float ratio = (float) compressedSize / uncompressedSize;
+            mCompressionRatio = ratio;
+            sLastCompressionRatio = ratio;
+        }
+    }
+
+    static void countDropped() {
+        sTotalDroppedCount.incrementAndGet();
+    }
+
+    /**
+     * The number of entries dropped by all sinks because their writer stages could not keep up.
+     */
+    public static long totalDroppedCount() {
+        return sTotalDroppedCount.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            mHasPendingWork.set(false);
+
+            boolean didWork = false;
+            for (final LogSink sink : mSinks) {
+                didWork |= sink.drain();
+                if (sink.isClosed()) {
+                    mSinks.remove(sink);
+                }
+            }
+
+            synchronized (this) {
+                if (mSinks.isEmpty()) {
+                    mThread = null;
+                    return;
+                }
+            }
+
+            if (!didWork && !mHasPendingWork.get()) {
+                // The timeout is just a safety net, wakeUp() will unpark us.
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The reader stage of the log collector. It does nothing but draining the logcat pipe into a {@link LogEntryQueue}, so
+ * that the kernel log buffer never overflows because the later stages are slow.
+ */
+public final class LogcatReader implements Runnable {
+    private final InputStream mStream;
+    private final LogEntryQueue mQueue;
+
+    public LogcatReader(final InputStream stream, final LogEntryQueue queue) {
+        mStream = stream;
+        mQueue = queue;
+    }
+
+    @Override
+    public void run() {
+        final LogEntryReader reader = new LogEntryReader(mStream);
+        final LogEntry entry = new LogEntry();
+        try {
+            while (true) {
+                reader.read(entry);
+                final LogEntry slot = mQueue.claim();
+                if (slot != null) {
+                    slot.copyFrom(entry);
+                    mQueue.publish();
+                }
+            }
+        } catch (final IOException e) {
+            CsLog.e("Encountered exception when reading LogCat", e);
+        } finally {
+            mQueue.close();
+        }
+    }
+}
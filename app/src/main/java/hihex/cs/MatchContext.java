@@ -0,0 +1,79 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reusable state for filtering log entries on the collector thread.
+ *
+ * <p>It keeps one {@link Matcher} per pattern, which is reset instead of created for every entry. Messages are matched
+ * against {@link LogEntry#message()}, which is decoded at most once per entry. It also holds the bitmap used to route
+ * the entry to its targets. This class is not thread-safe, it must only be used by the thread which owns it.</p>
+ */
+public final class MatchContext {
+    /**
+     * Patterns from replaced filters are never used again. Forget all matchers when there are too many of them.
+     */
+    private static final int MAX_MATCHERS = 1024;
+
+    private final IdentityHashMap<Pattern, Matcher> mMatchers = new IdentityHashMap<>();
+    private long[] mRoutes = new long[1];
+
+    /**
+     * Obtains the matcher of the pattern, reset to the new input.
+     */
+    public Matcher matcher(final Pattern pattern, final CharSequence input) {
+        Matcher matcher = mMatchers.get(pattern);
+        if (matcher == null) {
+            if (mMatchers.size() >= MAX_MATCHERS) {
+                mMatchers.clear();
+            }
+            matcher = pattern.matcher(input);
+            mMatchers.put(pattern, matcher);
+        } else {
+            matcher.reset(input);
+        }
+        return matcher;
+    }
+
+    /**
+     * Obtains the matcher of the pattern, reset to the message of the entry.
+     */
+    public Matcher messageMatcher(final Pattern pattern, final LogEntry entry) {
+        return matcher(pattern, entry.message());
+    }
+
+    /**
+     * Obtains a cleared bitmap for routing an entry to its targets.
+     *
+     * @param wordCount The number of longs required.
+     */
+    public long[] routes(final int wordCount) {
+        if (mRoutes.length != wordCount) {
+            mRoutes = new long[wordCount];
+        } else {
+            Arrays.fill(mRoutes, 0);
+        }
+        return mRoutes;
+    }
+}
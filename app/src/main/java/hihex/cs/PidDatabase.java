@@ -35,19 +35,39 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
  * A database of {@link PidEntry}. Each entry consists of a running process ID (pid), process name, and the filename and
  * writer of the corresponding process.
+ *
+ * <p>Queries never block: they read an immutable {@link Snapshot}, which is replaced whenever the database is
+ * modified. Modifications are synchronized with each other.</p>
  */
 public final class PidDatabase {
     private static final File PROC_FILE = new File("/proc");
     private static final Pattern UNSAFE_SHELL_CHARACTERS = Pattern.compile("[^0-9a-zA-Z_@%+=:,./-]");
 
+    /**
+     * The maximum number of names kept in {@link #mLookedUpNames}.
+     */
+    private static final int MAX_LOOKED_UP_NAMES = 1024;
 
-    private ArrayList<PidEntry> mEntries = new ArrayList<>();
+    /**
+     * The current content of the database. Readers use it without locking. Writers are serialized by the database
+     * lock, and publish their changes by replacing the snapshot.
+     */
+    private volatile Snapshot mSnapshot = new Snapshot(new ArrayList<PidEntry>(), null);
+
+    /**
+     * The names of processes seen in the log but not in the database, read by {@link #getProcessName(int)}. Dead
+     * processes are kept with a placeholder name, so they are not read again for every line they have left in the log.
+     * Cleared whenever the database is scanned, since the scan supersedes it.
+     */
+    private final ConcurrentHashMap<Integer, String> mLookedUpNames = new ConcurrentHashMap<>();
+
+    private Thread mScannerThread;
 
     /**
      * Finds the process name for a process ID.
@@ -98,43 +118,194 @@ public final class PidDatabase {
         return "PID:" + pidString;
     }
 
+    /**
+     * An immutable version of the database content.
+     */
+    private static final class Snapshot {
+        final List<PidEntry> entries;
+        final IntMap<PidEntry> entriesByPid;
+        final HashMap<String, Integer> pidsByName;
+        final RecordingTargets recordingTargets;
+
+        /**
+         * @param entries          The entries. The list must not be modified afterwards.
+         * @param recordingTargets The recording targets if they are unchanged from the previous snapshot, or null to
+         *                         compute them again.
+         */
+        Snapshot(final ArrayList<PidEntry> entries, final RecordingTargets recordingTargets) {
+            this.entries = Collections.unmodifiableList(entries);
+            entriesByPid = new IntMap<>(entries.size());
+            pidsByName = new HashMap<>(entries.size() * 2);
+            for (final PidEntry entry : entries) {
+                if (entriesByPid.get(entry.pid) == null) {
+                    entriesByPid.put(entry.pid, entry);
+                }
+                if (!pidsByName.containsKey(entry.processName)) {
+                    pidsByName.put(entry.processName, entry.pid);
+                }
+            }
+
+            if (recordingTargets != null) {
+                this.recordingTargets = recordingTargets;
+            } else {
+                final ArrayList<String> names = new ArrayList<>();
+                final ArrayList<Integer> pids = new ArrayList<>();
+                final HashSet<String> seenNames = new HashSet<>();
+                for (final PidEntry entry : entries) {
+                    if (entry.writer.isPresent() && seenNames.add(entry.processName)) {
+                        names.add(entry.processName);
+                        pids.add(entry.pid);
+                    }
+                }
+                this.recordingTargets = new RecordingTargets(names, pids);
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot. Must be called with the database lock held.
+     *
+     * @param isRecordingChanged Whether any process has started or stopped recording.
+     */
+    private void publish(final ArrayList<PidEntry> entries, final boolean isRecordingChanged) {
+        mSnapshot = new Snapshot(entries, isRecordingChanged ? null : mSnapshot.recordingTargets);
+    }
+
     /**
      * Refreshes the list of running processes. If any processes are recorded but is dead after this call, the
      * corresponding log files will be closed.
+     *
+     * <p>Only the names of new processes are read. Processes reported by the ActivityManager are usually already known
+     * from {@link #addProcess(int, String)}, so this is mostly just listing /proc.</p>
      */
-    public synchronized void refresh() {
-        // Dump all running processes from /proc
+    public void refresh() {
+        scan(false);
+    }
+
+    /**
+     * Like {@link #refresh()}, but rereads the names of every process, to catch processes which have renamed
+     * themselves or PIDs which have been reused unnoticed.
+     */
+    public void resync() {
+        scan(true);
+    }
+
+    /**
+     * Starts the scanner thread, which calls {@link #resync()} periodically.
+     */
+    public synchronized void startScanner(final long resyncInterval) {
+        if (mScannerThread != null) {
+            return;
+        }
+        mScannerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(resyncInterval);
+                        resync();
+                    }
+                } catch (final InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "Process scanner");
+        mScannerThread.setDaemon(true);
+        mScannerThread.setPriority(Thread.MIN_PRIORITY);
+        mScannerThread.start();
+    }
+
+    public synchronized void stopScanner() {
+        if (mScannerThread != null) {
+            mScannerThread.interrupt();
+            mScannerThread = null;
+        }
+    }
+
+    private void scan(final boolean isFull) {
+        // Dump all running processes from /proc. This is slow, so it is done without holding the lock.
+        final Snapshot scannedSnapshot = mSnapshot;
         final HashMap<Integer, String> pidToProcessNames = new HashMap<>();
         for (final String pidString : PROC_FILE.list()) {
             if (!TextUtils.isDigitsOnly(pidString)) {
                 continue;
             }
             final int pid = Integer.parseInt(pidString);
-            final String processName = getProcessName(pidString);
+            final PidEntry knownEntry = scannedSnapshot.entriesByPid.get(pid);
+            final String processName;
+            if (knownEntry != null && !isFull) {
+                processName = knownEntry.processName;
+            } else {
+                processName = getProcessName(pidString);
+            }
             pidToProcessNames.put(pid, processName);
         }
 
-        // Record all entries that are dead.
-        final ArrayList<PidEntry> removableEntries = new ArrayList<>();
-        for (final PidEntry entry : mEntries) {
-            final Object isExistingProcess = pidToProcessNames.remove(entry.pid);
-            if (isExistingProcess == null) {
-                removableEntries.add(entry);
-                entry.close();
+        synchronized (this) {
+            final ArrayList<PidEntry> entries = new ArrayList<>();
+            boolean isRecordingChanged = false;
+            for (final PidEntry entry : mSnapshot.entries) {
+                final String processName = pidToProcessNames.remove(entry.pid);
+                final boolean isScanned = scannedSnapshot.entriesByPid.get(entry.pid) == entry;
+                if (processName == null && isScanned) {
+                    isRecordingChanged |= entry.writer.isPresent();
+                    entry.close();
+                } else if (processName != null && isScanned && !entry.writer.isPresent()
+                        && !processName.equals(entry.processName)) {
+                    entries.add(new PidEntry(entry.pid, processName));
+                } else {
+                    // Entries changed while scanning are kept, they are newer than the scan.
+                    entries.add(entry);
+                }
+            }
+
+            for (final Map.Entry<Integer, String> input : pidToProcessNames.entrySet()) {
+                entries.add(new PidEntry(input.getKey(), input.getValue()));
             }
+            publish(entries, isRecordingChanged);
+            mLookedUpNames.clear();
         }
-        mEntries.removeAll(removableEntries);
+    }
 
-        // Do the update.
-        for (final Map.Entry<Integer, String> input : pidToProcessNames.entrySet()) {
-            mEntries.add(new PidEntry(input.getKey(), input.getValue()));
+    /**
+     * Adds a newly started process, e.g. as reported by the ActivityManager. If the process is already known under
+     * another name and not being recorded, its entry is replaced.
+     */
+    public synchronized void addProcess(final int pid, final String processName) {
+        mLookedUpNames.remove(pid);
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
+        final int index = getEntryIndex(entries, pid);
+        if (index < 0) {
+            entries.add(new PidEntry(pid, processName));
+        } else {
+            final PidEntry oldEntry = entries.get(index);
+            if (oldEntry.writer.isPresent() || processName.equals(oldEntry.processName)) {
+                return;
+            }
+            entries.set(index, new PidEntry(pid, processName));
         }
+        publish(entries, false);
+    }
+
+    /**
+     * Removes a process which has died, e.g. as reported by the ActivityManager.
+     */
+    public synchronized void removeProcess(final int pid) {
+        mLookedUpNames.remove(pid);
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
+        final int index = getEntryIndex(entries, pid);
+        if (index < 0) {
+            return;
+        }
+        final PidEntry oldEntry = entries.remove(index);
+        oldEntry.close();
+        publish(entries, oldEntry.writer.isPresent());
     }
 
     /**
      * Find the pid corresponding to the filename, if still recording. Returns -1 if not recording.
      */
-    public synchronized int findPid(final String filename) {
+    public int findPid(final String filename) {
         final PidEntry entry = findEntry(filename).orNull();
         return (entry != null) ? entry.pid : -1;
     }
@@ -145,8 +316,8 @@ public final class PidDatabase {
      * @param filename The name of the log file.
      * @return The process entry.
      */
-    public synchronized Optional<PidEntry> findEntry(final String filename) {
-        for (final PidEntry entry : mEntries) {
+    public Optional<PidEntry> findEntry(final String filename) {
+        for (final PidEntry entry : mSnapshot.entries) {
             if (entry.path.isPresent()) {
                 final String entryFilename = entry.path.get().getName();
                 if (filename.equals(entryFilename)) {
@@ -161,8 +332,8 @@ public final class PidDatabase {
      * Obtains the list of running processes. Each item of the list is a map that can be supplied to a Chunk template
      * for rendering.
      */
-    public synchronized List<HashMap<String, String>> runningProcesses() {
-        final ArrayList<PidEntry> entries = mEntries;
+    public List<HashMap<String, String>> runningProcesses() {
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
         Collections.sort(entries, new Comparator<PidEntry>() {
             @Override
             public int compare(final PidEntry lhs, final PidEntry rhs) {
@@ -197,18 +368,14 @@ public final class PidDatabase {
      * @param processName The exact name of the process
      * @return The corresponding process ID, or -1 if not found.
      */
-    public synchronized int findPidForExactProcessName(final String processName) {
-        for (final PidEntry entry : mEntries) {
-            if (processName.equals(entry.processName)) {
-                return entry.pid;
-            }
-        }
-        return -1;
+    public int findPidForExactProcessName(final String processName) {
+        final Integer pid = mSnapshot.pidsByName.get(processName);
+        return (pid != null) ? pid : -1;
     }
 
-    private int getEntryIndex(final int pid) {
+    private static int getEntryIndex(final List<PidEntry> entries, final int pid) {
         int i = 0;
-        for (final PidEntry entry : mEntries) {
+        for (final PidEntry entry : entries) {
             if (entry.pid == pid) {
                 return i;
             }
@@ -217,75 +384,90 @@ public final class PidDatabase {
         return -1;
     }
 
-    public synchronized Optional<PidEntry> getEntry(final int pid) {
-        final int index = getEntryIndex(pid);
-        if (index >= 0) {
-            return Optional.of(mEntries.get(index));
-        } else {
-            return Optional.absent();
-        }
+    public Optional<PidEntry> getEntry(final int pid) {
+        return Optional.fromNullable(mSnapshot.entriesByPid.get(pid));
     }
 
-    public synchronized String getProcessName(final int pid) {
-        final int index = getEntryIndex(pid);
-        if (index >= 0) {
-            return mEntries.get(index).processName;
-        } else {
-            return getProcessName(String.valueOf(pid));
+    /**
+     * Finds the name of a process. The name of a process not in the database is read from /proc once, and remembered
+     * until the next scan. A dead process is given a placeholder name.
+     */
+    public String getProcessName(final int pid) {
+        final PidEntry entry = mSnapshot.entriesByPid.get(pid);
+        if (entry != null) {
+            return entry.processName;
+        }
+
+        final String cachedName = mLookedUpNames.get(pid);
+        if (cachedName != null) {
+            return cachedName;
         }
+        final String processName = getProcessName(String.valueOf(pid));
+        if (mLookedUpNames.size() >= MAX_LOOKED_UP_NAMES) {
+            mLookedUpNames.clear();
+        }
+        mLookedUpNames.put(pid, processName);
+        return processName;
     }
 
     /**
      * Start recording logs for the specified pid.
+     *
+     * @param isBinary Whether to record into a compact {@link BinaryLog} instead of HTML.
      */
     public synchronized void startRecording(final int pid,
                                             final Optional<String> processName,
                                             final LogFiles logFiles,
                                             final Date timestamp,
+                                            final boolean isBinary,
                                             final Function<PidEntry, ?> initialize) throws IOException {
-        int index = getEntryIndex(pid);
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
+        final int index = getEntryIndex(entries, pid);
         final PidEntry oldEntry;
         if (index >= 0) {
-            oldEntry = mEntries.get(index);
+            oldEntry = entries.get(index);
         } else if (processName.isPresent()) {
             oldEntry = new PidEntry(pid, processName.get());
         } else {
             return;
         }
 
-        final PidEntry newEntry = oldEntry.open(logFiles, timestamp);
+        final PidEntry newEntry = oldEntry.open(logFiles, timestamp, isBinary);
         if (newEntry != oldEntry) {
             try {
                 initialize.apply(newEntry);
             } finally {
                 if (index >= 0) {
-                    mEntries.set(index, newEntry);
+                    entries.set(index, newEntry);
                 } else {
-                    mEntries.add(newEntry);
+                    entries.add(newEntry);
                 }
+                publish(entries, true);
             }
         }
     }
 
     public synchronized void stopRecording(final int pid, final Function<Writer, ?> cleanup) {
-        final int index = getEntryIndex(pid);
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
+        final int index = getEntryIndex(entries, pid);
         if (index < 0) {
             return;
         }
 
-        final PidEntry oldEntry = mEntries.get(index);
+        final PidEntry oldEntry = entries.get(index);
         if (oldEntry.writer.isPresent()) {
             cleanup.apply(oldEntry.writer.get());
         }
         final PidEntry newEntry = oldEntry.close();
         if (newEntry != oldEntry) {
-            mEntries.set(index, newEntry);
+            entries.set(index, newEntry);
+            publish(entries, true);
         }
     }
 
-    public synchronized int countRecordingEntries() {
+    public int countRecordingEntries() {
         int count = 0;
-        for (final PidEntry entry : mEntries) {
+        for (final PidEntry entry : mSnapshot.entries) {
             if (entry.writer.isPresent()) {
                 count += 1;
             }
@@ -293,22 +475,22 @@ public final class PidDatabase {
         return count;
     }
 
-    public synchronized Set<String> listRecordingProcessNames() {
-        final HashSet<String> result = new HashSet<>();
-        for (final PidEntry entry : mEntries) {
-            if (entry.writer.isPresent()) {
-                result.add(entry.processName);
-            }
-        }
-        return result;
+    /**
+     * Obtains the slots of the recording processes. The same instance is returned until a process starts or stops
+     * recording.
+     */
+    public RecordingTargets recordingTargets() {
+        return mSnapshot.recordingTargets;
     }
 
     public synchronized PidEntry splitEntry(final int pid, final LogFiles logFiles) {
-        final int index = getEntryIndex(pid);
-        final PidEntry oldEntry = mEntries.get(index);
+        final ArrayList<PidEntry> entries = new ArrayList<>(mSnapshot.entries);
+        final int index = getEntryIndex(entries, pid);
+        final PidEntry oldEntry = entries.get(index);
         try {
-            final PidEntry newEntry = mEntries.get(index).split(logFiles);
-            mEntries.set(index, newEntry);
+            final PidEntry newEntry = oldEntry.split(logFiles);
+            entries.set(index, newEntry);
+            publish(entries, false);
             return newEntry;
         } catch (final IOException e) {
             return oldEntry;
@@ -17,48 +17,55 @@
 
 package hihex.cs;
 
-import android.util.SparseArray;
-
-import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.io.Closeables;
-import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.Date;
 import java.util.Locale;
 
 public final class PidEntry {
     private static final String UNSAFE_FILENAME_PATTERN = "[^-_.,;a-zA-Z0-9]";
-    private static final String CONTINUED_SUFFIX = "( \\([^)]+\\))*\\.html\\.gz$";
+    private static final String HTML_EXTENSION = ".html.gz";
+    private static final String CONTINUED_SUFFIX = "( \\([^)]+\\))*\\.(html|cslog)\\.gz$";
 
     public final int pid;
     public final String processName;
     public final Optional<File> path;
-    public final Optional<Writer> writer;
-    private final SparseArray<String> mThreadNames;
+    public final Optional<LogSink> writer;
+    private final ThreadNameCache mThreadNames;
 
-    private PidEntry(final int pid, final String processName, final File path, final Writer writer, final SparseArray<String> threadNames) {
-        this.pid = pid;
-        this.processName = processName;
+    /**
+     * The background writer of this process, shared by every file it is recorded into.
+     */
+    private final LogWriterStage mWriterStage;
+
+    private PidEntry(final PidEntry entry, final File path, final LogSink writer) {
+        pid = entry.pid;
+        processName = entry.processName;
         this.path = Optional.of(path);
         this.writer = Optional.of(writer);
-        mThreadNames = threadNames;
+        mThreadNames = entry.mThreadNames;
+        mWriterStage = entry.mWriterStage;
     }
 
-    private PidEntry(final int pid, final String processName, final SparseArray<String> threadNames) {
-        this.pid = pid;
-        this.processName = processName;
+    private PidEntry(final PidEntry entry) {
+        pid = entry.pid;
+        processName = entry.processName;
         path = Optional.absent();
         writer = Optional.absent();
-        mThreadNames = threadNames;
+        mThreadNames = entry.mThreadNames;
+        mWriterStage = entry.mWriterStage;
     }
 
     public PidEntry(final int pid, final String processName) {
-        this(pid, processName, new SparseArray<String>());
+        this.pid = pid;
+        this.processName = processName;
+        path = Optional.absent();
+        writer = Optional.absent();
+        mThreadNames = new ThreadNameCache(pid);
+        mWriterStage = new LogWriterStage(pid);
     }
 
     /**
@@ -66,26 +73,22 @@ public final class PidEntry {
      */
     public PidEntry close() {
         if (writer.isPresent()) {
-            final Writer writer2 = writer.get();
+            // Closing the sink will flush everything asynchronously.
             try {
-                writer2.flush();
+                Closeables.close(writer.get(), true);
             } catch (final IOException e) {
-                CsLog.e("Failed to flush file, some data may not be written. " + e);
-            } finally {
-                try {
-                    Closeables.close(writer2, true);
-                } catch (IOException e) {
-                    // Ignore.
-                }
+                // Ignore.
             }
         }
-        return new PidEntry(pid, processName, mThreadNames);
+        return new PidEntry(this);
     }
 
     /**
      * Open a new file, using the timestamp to name the file if possible.
+     *
+     * @param isBinary Whether to write a compact {@link BinaryLog} instead of HTML.
      */
-    public PidEntry open(final LogFiles logFiles, final Date timestamp) throws IOException {
+    public PidEntry open(final LogFiles logFiles, final Date timestamp, final boolean isBinary) throws IOException {
         if (writer.isPresent()) {
             return this;
         }
@@ -94,10 +97,11 @@ public final class PidEntry {
         final String filePrefix = String.format(Locale.ROOT, "%2$s-%1$tF-%1$tH.%1$tM.%1$tS", timestamp, safeName);
 
         // We try "xxx.html.gz", "xxx (1).html.gz", "xxx (2).html.gz", ... until a filename is free to use.
-        final File path = logFiles.getNewPath(filePrefix, ".html.gz");
-        final Writer writer = new OutputStreamWriter(new FlushableGzipOutputStream(path), Charsets.UTF_8);
+        final String extension = isBinary ? BinaryLog.EXTENSION : HTML_EXTENSION;
+        final File path = logFiles.getNewPath(filePrefix, extension);
+        final LogSink writer = logFiles.openSink(path, mWriterStage, pid, processName);
 
-        return new PidEntry(pid, processName, path, writer, mThreadNames);
+        return new PidEntry(this, path, writer);
     }
 
     public PidEntry split(final LogFiles logFiles) throws IOException {
@@ -105,30 +109,22 @@ public final class PidEntry {
             return this;
         }
 
-        final String fileName = path.get().getName().replaceAll(CONTINUED_SUFFIX, "");
-        final File newPath = logFiles.getNewPath(fileName + " (continued)", ".html.gz");
-        final Writer newWriter = new OutputStreamWriter(new FlushableGzipOutputStream(newPath), Charsets.UTF_8);
+        final String oldFileName = path.get().getName();
+        final String fileName = oldFileName.replaceAll(CONTINUED_SUFFIX, "");
+        final String extension = BinaryLog.isBinaryLog(oldFileName) ? BinaryLog.EXTENSION : HTML_EXTENSION;
+        final File newPath = logFiles.getNewPath(fileName + " (continued)", extension);
+        final LogSink newWriter = logFiles.openSink(newPath, mWriterStage, pid, processName);
 
         close();
-        return new PidEntry(pid, processName, newPath, newWriter, mThreadNames);
+        return new PidEntry(this, newPath, newWriter);
     }
 
+    /**
+     * Obtains the name of a thread of this process. This never blocks; if the name is not known yet, a placeholder is
+     * returned while the name is read in the background.
+     */
     public String getThreadName(final int tid) {
-        final String cachedThreadName = mThreadNames.get(tid);
-        if (cachedThreadName != null) {
-            return cachedThreadName;
-        }
-
-        final File threadNameFile = new File("/proc/" + pid + "/task/" + tid + "/comm");
-        String threadName;
-        try {
-            threadName = Files.toString(threadNameFile, Charsets.UTF_8);
-        } catch (final IOException e) {
-            threadName = "TID:" + tid;
-        }
-        mThreadNames.append(tid, threadName);
-
-        return threadName;
+        return mThreadNames.get(tid);
     }
 
     @Override
@@ -43,6 +43,10 @@ public final class Preferences {
     public static final String SHARED_PREFS_RUN_ON_BOOT_KEY = "run_on_boot";
     public static final String SHARED_PREFS_LOG_FILTER_KEY = "log_filter";
     public static final String SHARED_PREFS_SPLIT_SIZE_KEY = "split_size";
+    public static final String SHARED_PREFS_BINARY_STORAGE_KEY = "binary_storage";
+    public static final String SHARED_PREFS_COMPRESSOR_ENGINE_KEY = "compressor_engine";
+    public static final String SHARED_PREFS_COMPRESSION_LEVEL_KEY = "compression_level";
+    public static final String SHARED_PREFS_COMPRESSION_STRATEGY_KEY = "compression_strategy";
 
     /**
      * The preferences.
@@ -64,6 +68,8 @@ public final class Preferences {
     private volatile long mPurgeDuration;
     private volatile long mSplitSize;
 
+    private volatile LogCompressor mCompressor;
+
     private static SharedPreferences getSharedPreferences(final Context context) {
         return context.getSharedPreferences("default", Context.MODE_PRIVATE);
     }
@@ -77,6 +83,7 @@ public final class Preferences {
         mPurgeDuration = mSharedPreferences.getLong(SHARED_PREFS_PURGE_DURATION_KEY, -1);
         mSplitSize = mSharedPreferences.getLong(SHARED_PREFS_SPLIT_SIZE_KEY, 32768);
         readLogFilter();
+        readCompressor();
     }
 
     private String readDefaultLogFilter() {
@@ -104,6 +111,12 @@ public final class Preferences {
         mLogFilter = LogEntryFilter.parse(logFilter);
     }
 
+    private void readCompressor() {
+        final String engine = mSharedPreferences.getString(SHARED_PREFS_COMPRESSOR_ENGINE_KEY,
+                LogCompressor.ENGINE_NATIVE);
+        mCompressor = LogCompressor.create(engine, getCompressionLevel(), getCompressionStrategy());
+    }
+
     public Pattern getFilter() {
         return mFilter;
     }
@@ -120,10 +133,32 @@ public final class Preferences {
         return mPurgeDuration;
     }
 
+    /**
+     * The compressor of new log files.
+     */
+    public LogCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    public int getCompressionLevel() {
+        return mSharedPreferences.getInt(SHARED_PREFS_COMPRESSION_LEVEL_KEY, LogCompressor.DEFAULT_LEVEL);
+    }
+
+    public String getCompressionStrategy() {
+        return mSharedPreferences.getString(SHARED_PREFS_COMPRESSION_STRATEGY_KEY, LogCompressor.STRATEGY_DEFAULT);
+    }
+
     public boolean shouldShowIndicator() {
         return mSharedPreferences.getBoolean(SHARED_PREFS_SHOW_INDICATOR_KEY, true);
     }
 
+    /**
+     * Whether new logs are stored in the compact {@link BinaryLog} format instead of HTML.
+     */
+    public boolean shouldUseBinaryStorage() {
+        return mSharedPreferences.getBoolean(SHARED_PREFS_BINARY_STORAGE_KEY, false);
+    }
+
     public static boolean shouldRunOnBoot(final Context context) {
         final SharedPreferences sharedPreferences = getSharedPreferences(context);
         return sharedPreferences.getBoolean(SHARED_PREFS_RUN_ON_BOOT_KEY, true);
@@ -138,6 +173,7 @@ public final class Preferences {
                                final long purgeDuration,
                                final boolean shouldShowIndicator,
                                final boolean shouldRunOnBoot,
+                               final boolean shouldUseBinaryStorage,
                                final long splitSize) {
         mFilter = filter;
         mPurgeFilesize = purgeFilesize;
@@ -149,6 +185,7 @@ public final class Preferences {
         editor.putLong(SHARED_PREFS_PURGE_DURATION_KEY, purgeDuration);
         editor.putBoolean(SHARED_PREFS_SHOW_INDICATOR_KEY, shouldShowIndicator);
         editor.putBoolean(SHARED_PREFS_RUN_ON_BOOT_KEY, shouldRunOnBoot);
+        editor.putBoolean(SHARED_PREFS_BINARY_STORAGE_KEY, shouldUseBinaryStorage);
         editor.putLong(SHARED_PREFS_SPLIT_SIZE_KEY, splitSize);
         editor.apply();
 
@@ -158,6 +195,19 @@ public final class Preferences {
         //eventBus.post(new Events.RecordIndicatorVisibility(shouldShowIndicator));
     }
 
+    /**
+     * Changes the compressor of log files. Files already being written are not affected.
+     */
+    public void updateCompressor(final String engine, final int level, final String strategy) {
+        final int clampedLevel = LogCompressor.clampLevel(level);
+        mCompressor = LogCompressor.create(engine, clampedLevel, strategy);
+        final SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(SHARED_PREFS_COMPRESSOR_ENGINE_KEY, engine);
+        editor.putInt(SHARED_PREFS_COMPRESSION_LEVEL_KEY, clampedLevel);
+        editor.putString(SHARED_PREFS_COMPRESSION_STRATEGY_KEY, strategy);
+        editor.apply();
+    }
+
     public void updateFilters(final Pattern filter, String logFilter) {
         if (logFilter == null) {
             mHasDefaultLogFilter = true;
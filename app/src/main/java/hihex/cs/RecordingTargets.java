@@ -0,0 +1,90 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The names of the processes being recorded, each assigned to a dense slot number, so that log entries can be routed
+ * using bitmaps of slots.
+ *
+ * <p>Slot {@link #LIVE_SLOT} is always the {@link LogEntryFilter#LIVE_SOURCE}. Instances are immutable, and a new
+ * instance is created by the {@link PidDatabase} whenever the set of recording processes changes.</p>
+ */
+public final class RecordingTargets {
+    public static final int LIVE_SLOT = 0;
+
+    private final String[] mNames;
+    private final int[] mPids;
+    private final HashMap<String, Integer> mSlots;
+
+    /**
+     * @param names The names of the recording processes, in slot order, excluding the live source.
+     * @param pids  The process ID of each name.
+     */
+    RecordingTargets(final ArrayList<String> names, final ArrayList<Integer> pids) {
+        final int size = names.size() + 1;
+        mNames = new String[size];
+        mPids = new int[size];
+        mSlots = new HashMap<>(size * 2);
+
+        mNames[LIVE_SLOT] = LogEntryFilter.LIVE_SOURCE;
+        mPids[LIVE_SLOT] = -1;
+        mSlots.put(LogEntryFilter.LIVE_SOURCE, LIVE_SLOT);
+        for (int i = 1; i < size; ++i) {
+            final String name = names.get(i - 1);
+            mNames[i] = name;
+            mPids[i] = pids.get(i - 1);
+            mSlots.put(name, i);
+        }
+    }
+
+    /**
+     * The number of slots, including the live source.
+     */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * The number of longs needed to store a bitmap of all slots.
+     */
+    public int wordCount() {
+        return (mNames.length + 63) >>> 6;
+    }
+
+    public String name(final int slot) {
+        return mNames[slot];
+    }
+
+    public int pid(final int slot) {
+        return mPids[slot];
+    }
+
+    /**
+     * Finds the slot of a process name.
+     *
+     * @return The slot, or -1 if the process is not being recorded.
+     */
+    public int slotOf(final String name) {
+        final Integer slot = mSlots.get(name);
+        return (slot != null) ? slot : -1;
+    }
+}
@@ -0,0 +1,1008 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The full-text search index of the log files.
+ *
+ * <p>Every log file is one or more segments of the index. The terms of an entry are its level, its tag and the words
+ * of the tag and the message. The segment of a file being recorded is built in memory by a {@link SearchSegment}; once
+ * the file is closed, or the segment grows too large, it is written as a {@link SearchRun}. When there are too many
+ * runs, the smallest ones are merged in the background, dropping the segments of deleted files.</p>
+ *
+ * <p>A search only reads the index, never the compressed log files. The hits give the offset of the entry in the
+ * uncompressed file.</p>
+ */
+public final class SearchIndex {
+    static final int MIN_TERM_LENGTH = 2;
+    static final int MAX_TERM_LENGTH = 32;
+
+    /**
+     * Merge the runs when there are more than this many.
+     */
+    private static final int MAX_RUNS = 8;
+
+    /**
+     * Rewrite a run when more than this fraction of its segments are deleted.
+     */
+    private static final float MAX_DELETED_FRACTION = 0.5f;
+
+    //{{{ Data types
+
+    /**
+     * A segment of the index, i.e. a log file.
+     */
+    static final class SegmentInfo {
+        final String name;
+        final int pid;
+        final String processName;
+        final long startTime;
+        final int entryCount;
+        final int minSecond;
+        final int maxSecond;
+        final String[] tags;
+
+        /**
+         * The location of the entry table in the run.
+         */
+        final long tableOffset;
+
+        SegmentInfo(final String name, final int pid, final String processName, final long startTime,
+                    final int entryCount, final int minSecond, final int maxSecond, final String[] tags,
+                    final long tableOffset) {
+            this.name = name;
+            this.pid = pid;
+            this.processName = processName;
+            this.startTime = startTime;
+            this.entryCount = entryCount;
+            this.minSecond = minSecond;
+            this.maxSecond = maxSecond;
+            this.tags = tags;
+            this.tableOffset = tableOffset;
+        }
+
+        void write(final DataOutputStream output) throws IOException {
+            output.writeUTF(name);
+            output.writeInt(pid);
+            output.writeUTF(processName);
+            output.writeLong(startTime);
+            output.writeInt(entryCount);
+            output.writeInt(minSecond);
+            output.writeInt(maxSecond);
+            output.writeLong(tableOffset);
+            output.writeInt(tags.length);
+            for (final String tag : tags) {
+                output.writeUTF(tag);
+            }
+        }
+
+        static SegmentInfo read(final DataInputStream input) throws IOException {
+            final String name = input.readUTF();
+            final int pid = input.readInt();
+            final String processName = input.readUTF();
+            final long startTime = input.readLong();
+            final int entryCount = input.readInt();
+            final int minSecond = input.readInt();
+            final int maxSecond = input.readInt();
+            final long tableOffset = input.readLong();
+            final String[] tags = new String[input.readInt()];
+            for (int i = 0; i < tags.length; ++i) {
+                tags[i] = input.readUTF();
+            }
+            return new SegmentInfo(name, pid, processName, startTime, entryCount, minSecond, maxSecond, tags,
+                    tableOffset);
+        }
+    }
+
+    /**
+     * The entries of a segment.
+     */
+    static final class EntryTable {
+        final long[] offsets;
+        final int[] seconds;
+
+        /**
+         * The log level in the top 8 bits, and the index to the tags of the segment in the rest.
+         */
+        final int[] levelTags;
+
+        EntryTable(final long[] offsets, final int[] seconds, final int[] levelTags) {
+            this.offsets = offsets;
+            this.seconds = seconds;
+            this.levelTags = levelTags;
+        }
+    }
+
+    /**
+     * A part of the index with one or more segments.
+     */
+    abstract static class Source {
+        abstract int segmentCount();
+
+        abstract SegmentInfo segment(final int segment);
+
+        abstract boolean isDeleted(final int segment);
+
+        /**
+         * The entries having the term, as sorted (segment, entry) pairs packed as {@code segment << 32 | entry}.
+         */
+        abstract long[] postings(final String term) throws IOException;
+
+        abstract EntryTable entryTable(final int segment) throws IOException;
+    }
+
+    /**
+     * A log entry matching the query.
+     */
+    public static final class Hit {
+        public final String fileName;
+
+        /**
+         * The offset of the entry in the uncompressed log file.
+         */
+        public final long offset;
+
+        /**
+         * The time of the entry, in milliseconds since the epoch. Only precise to a second.
+         */
+        public final long time;
+        public final char level;
+        public final String tag;
+        public final int pid;
+        public final String processName;
+
+        Hit(final String fileName, final long offset, final long time, final char level, final String tag,
+            final int pid, final String processName) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.time = time;
+            this.level = level;
+            this.tag = tag;
+            this.pid = pid;
+            this.processName = processName;
+        }
+
+        public void writeJSON(final JsonWriter json) throws IOException {
+            json.beginObject();
+            json.name("file").value(fileName);
+            json.name("offset").value(offset);
+            json.name("time").value(time);
+            json.name("level").value(String.valueOf(level));
+            json.name("tag").value(tag);
+            json.name("pid").value(pid);
+            json.name("process").value(processName);
+            json.endObject();
+        }
+    }
+
+    //}}}
+
+    //{{{ Terms
+
+    static String levelTerm(final char level) {
+        return "level:" + level;
+    }
+
+    static String tagTerm(final String tag) {
+        return "tag:" + tag.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isWordByte(final byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b < 0;
+    }
+
+    /**
+     * Splits UTF-8 text into lowercase words. Letters, digits, underscores and non-ASCII characters form words;
+     * everything else separates them. Words too short are skipped, and words too long are truncated.
+     *
+     * @param buffer A buffer of {@link #MAX_TERM_LENGTH} bytes.
+     */
+    static void tokenize(final byte[] bytes, final int start, final int end, final byte[] buffer,
+                         final List<String> terms) {
+        int i = start;
+        while (i < end) {
+            while (i < end && !isWordByte(bytes[i])) {
+                ++i;
+            }
+            int length = 0;
+            while (i < end && isWordByte(bytes[i])) {
+                final byte b = bytes[i++];
+                if (length < MAX_TERM_LENGTH) {
+                    buffer[length++] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+                }
+            }
+            if (length >= MIN_TERM_LENGTH) {
+                terms.add(new String(buffer, 0, length, Charsets.ISO_8859_1));
+            }
+        }
+    }
+
+    /**
+     * Parses a time into seconds since the epoch. The time is either a number of seconds since the epoch, a number of
+     * seconds before now if negative, or a local date like {@code 2015-06-01T12:00}.
+     *
+     * @throws IllegalArgumentException If the time cannot be parsed.
+     */
+    static long parseTime(final String time) {
+        if (time.matches("-?\\d+")) {
+            final long seconds = Long.parseLong(time);
+            return (seconds < 0) ? System.currentTimeMillis() / 1000 + seconds : seconds;
+        }
+        for (final String pattern : new String[]{"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"}) {
+            try {
+                final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+                format.setLenient(false);
+                return format.parse(time).getTime() / 1000;
+            } catch (final ParseException e) {
+                // Try the next pattern.
+            }
+        }
+        throw new IllegalArgumentException("Cannot parse the time: " + time);
+    }
+
+    //}}}
+
+    //{{{ Queries
+
+    /**
+     * A parsed query. The query is a list of words separated by spaces, all of which must be found in an entry. The
+     * following operators are also understood:
+     *
+     * <ul>
+     * <li>{@code tag:ActivityManager} &mdash; the tag of the entry, ignoring case.</li>
+     * <li>{@code level:W} &mdash; the minimum log level.</li>
+     * <li>{@code pid:1234}, {@code process:com.example} &mdash; the recorded process (the name is a substring).</li>
+     * <li>{@code file:name} &mdash; a substring of the log file name.</li>
+     * <li>{@code after:2015-06-01T12:00}, {@code before:...} &mdash; the time range, see
+     * {@link SearchIndex#parseTime(String)}.</li>
+     * </ul>
+     */
+    static final class Query {
+        final ArrayList<String> terms = new ArrayList<>();
+        int minLevel = Log.VERBOSE;
+        int pid = -1;
+        String processName;
+        String fileName;
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+
+        static Query parse(final String query) {
+            final Query result = new Query();
+            final byte[] buffer = new byte[MAX_TERM_LENGTH];
+            for (final String word : query.trim().split("\\s+")) {
+                final int colon = word.indexOf(':');
+                final String key = (colon > 0) ? word.substring(0, colon) : "";
+                final String value = word.substring(colon + 1);
+                switch (key) {
+                    case "tag":
+                        result.terms.add(tagTerm(value));
+                        break;
+                    case "level":
+                        result.minLevel = parseLevel(value);
+                        break;
+                    case "pid":
+                        result.pid = Integer.parseInt(value);
+                        break;
+                    case "process":
+                        result.processName = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "file":
+                        result.fileName = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "after":
+                        result.after = parseTime(value);
+                        break;
+                    case "before":
+                        result.before = parseTime(value);
+                        break;
+                    default:
+                        final byte[] bytes = word.getBytes(Charsets.UTF_8);
+                        tokenize(bytes, 0, bytes.length, buffer, result.terms);
+                        break;
+                }
+            }
+            return result;
+        }
+
+        private static int parseLevel(final String level) {
+            if (!level.isEmpty()) {
+                for (int i = Log.VERBOSE; i <= Log.ASSERT; ++i) {
+                    if (LogEntry.logLevelChar(i) == Character.toUpperCase(level.charAt(0))) {
+                        return i;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Unknown log level: " + level);
+        }
+
+        boolean matches(final SegmentInfo segment) {
+            return (pid < 0 || segment.pid == pid)
+                    && (processName == null || segment.processName.toLowerCase(Locale.ROOT).contains(processName))
+                    && (fileName == null || segment.name.toLowerCase(Locale.ROOT).contains(fileName))
+                    && (segment.entryCount == 0 || (segment.maxSecond >= after && segment.minSecond <= before));
+        }
+    }
+
+    private static long[] intersect(final long[] a, final long[] b) {
+        final long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                ++i;
+            } else if (a[i] > b[j]) {
+                ++j;
+            } else {
+                result[size++] = a[i];
+                ++i;
+                ++j;
+            }
+        }
+        return (size == result.length) ? result : Arrays.copyOf(result, size);
+    }
+
+    private static long[] union(final long[] a, final long[] b) {
+        final long[] result = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                result[size++] = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                result[size++] = b[j++];
+            } else {
+                result[size++] = a[i];
+                ++i;
+                ++j;
+            }
+        }
+        return (size == result.length) ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * A segment with entries matching the query.
+     */
+    private static final class Candidate {
+        final Source source;
+        final int segment;
+        final SegmentInfo info;
+
+        /**
+         * The matching entries in ascending order, or null if every entry matches.
+         */
+        final int[] entries;
+
+        Candidate(final Source source, final int segment, final SegmentInfo info, final int[] entries) {
+            this.source = source;
+            this.segment = segment;
+            this.info = info;
+            this.entries = entries;
+        }
+    }
+
+    private static final Comparator<Candidate> NEWEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(final Candidate a, final Candidate b) {
+            if (a.info.maxSecond != b.info.maxSecond) {
+                return (a.info.maxSecond < b.info.maxSecond) ? 1 : -1;
+            }
+            return (a.info.startTime < b.info.startTime) ? 1 : (a.info.startTime > b.info.startTime) ? -1 : 0;
+        }
+    };
+
+    private static void findCandidates(final Source source, final Query query, final List<Candidate> candidates)
+            throws IOException {
+        final int segmentCount = source.segmentCount();
+        final SegmentInfo[] segments = new SegmentInfo[segmentCount];
+        boolean hasSegment = false;
+        for (int i = 0; i < segmentCount; ++i) {
+            final SegmentInfo info = source.segment(i);
+            if (!source.isDeleted(i) && query.matches(info)) {
+                segments[i] = info;
+                hasSegment = true;
+            }
+        }
+        if (!hasSegment) {
+            return;
+        }
+
+        long[] postings = null;
+        for (final String term : query.terms) {
+            final long[] termPostings = source.postings(term);
+            postings = (postings == null) ? termPostings : intersect(postings, termPostings);
+            if (postings.length == 0) {
+                return;
+            }
+        }
+        if (query.minLevel > Log.VERBOSE) {
+            long[] levelPostings = SearchRun.EMPTY_POSTINGS;
+            for (int level = query.minLevel; level <= Log.ASSERT; ++level) {
+                levelPostings = union(levelPostings, source.postings(levelTerm(LogEntry.logLevelChar(level))));
+            }
+            postings = (postings == null) ? levelPostings : intersect(postings, levelPostings);
+        }
+
+        if (postings == null) {
+            for (int i = 0; i < segmentCount; ++i) {
+                if (segments[i] != null) {
+                    candidates.add(new Candidate(source, i, segments[i], null));
+                }
+            }
+            return;
+        }
+
+        int start = 0;
+        while (start < postings.length) {
+            final int segment = (int) (postings[start] >>> 32);
+            int end = start + 1;
+            while (end < postings.length && (int) (postings[end] >>> 32) == segment) {
+                ++end;
+            }
+            if (segment < segmentCount && segments[segment] != null) {
+                final int[] entries = new int[end - start];
+                for (int i = start; i < end; ++i) {
+                    entries[i - start] = (int) postings[i];
+                }
+                candidates.add(new Candidate(source, segment, segments[segment], entries));
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Searches the logs.
+     *
+     * @param query The query, see {@link Query}.
+     * @param limit The maximum number of hits.
+     * @return The hits, the newest log files first.
+     * @throws IllegalArgumentException If the query cannot be parsed.
+     */
+    public List<Hit> search(final String query, final int limit) throws IOException {
+        final Query parsedQuery = Query.parse(query);
+        final ArrayList<Hit> hits = new ArrayList<>();
+
+        mLock.readLock().lock();
+        try {
+            final ArrayList<Candidate> candidates = new ArrayList<>();
+            for (final SearchRun run : mRuns) {
+                findCandidates(run, parsedQuery, candidates);
+            }
+            for (final SearchSegment segment : mSegments) {
+                findCandidates(segment, parsedQuery, candidates);
+            }
+            Collections.sort(candidates, NEWEST_FIRST);
+
+            for (final Candidate candidate : candidates) {
+                final EntryTable table = candidate.source.entryTable(candidate.segment);
+                final int count = (candidate.entries != null) ? candidate.entries.length : table.offsets.length;
+                for (int i = count - 1; i >= 0; --i) {
+                    final int entry = (candidate.entries != null) ? candidate.entries[i] : i;
+                    if (entry >= table.offsets.length) {
+                        continue;
+                    }
+                    final int second = table.seconds[entry];
+                    if (second < parsedQuery.after || second > parsedQuery.before) {
+                        continue;
+                    }
+                    if (hits.size() >= limit) {
+                        return hits;
+                    }
+                    final int levelTag = table.levelTags[entry];
+                    final SegmentInfo info = candidate.info;
+                    final int tagIndex = levelTag & 0xffffff;
+                    hits.add(new Hit(info.name, table.offsets[entry], second * 1000L,
+                            LogEntry.logLevelChar(levelTag >>> 24),
+                            (tagIndex < info.tags.length) ? info.tags[tagIndex] : "", info.pid, info.processName));
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return hits;
+    }
+
+    /**
+     * Finds the entries of a log file in a time range.
+     *
+     * @param from The start of the range, in seconds since the epoch.
+     * @param to   The end of the range, in seconds since the epoch.
+     * @return The uncompressed offset of the first entry in the range, and the offset of the entry after the last one
+     * (-1 if that is the last entry of the file), or absent if the file is not indexed. Both offsets are 0 if no entry
+     * is in the range.
+     */
+    Optional<long[]> entryRange(final String fileName, final long from, final long to) throws IOException {
+        final ArrayList<EntryTable> tables = new ArrayList<>();
+        mLock.readLock().lock();
+        try {
+            // The entries of the file may be split into several segments.
+            for (final Source source : Iterables.<Source>concat(mRuns, mSegments)) {
+                for (int i = 0; i < source.segmentCount(); ++i) {
+                    if (!source.isDeleted(i) && source.segment(i).name.equals(fileName)) {
+                        tables.add(source.entryTable(i));
+                    }
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return tables.isEmpty() ? Optional.<long[]>absent() : Optional.of(entryRange(tables, from, to));
+    }
+
+    private static long[] entryRange(final List<EntryTable> tables, final long from, final long to) {
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        for (final EntryTable table : tables) {
+            for (int i = 0; i < table.seconds.length; ++i) {
+                final int second = table.seconds[i];
+                if (second >= from && second <= to) {
+                    first = Math.min(first, table.offsets[i]);
+                    last = Math.max(last, table.offsets[i]);
+                }
+            }
+        }
+        if (last < 0) {
+            return new long[]{0, 0};
+        }
+
+        // The offsets only increase in a file, so the entry after the last one is the nearest one after it.
+        long end = Long.MAX_VALUE;
+        for (final EntryTable table : tables) {
+            for (final long offset : table.offsets) {
+                if (offset > last) {
+                    end = Math.min(end, offset);
+                }
+            }
+        }
+        return new long[]{first, (end != Long.MAX_VALUE) ? end : -1};
+    }
+
+    //}}}
+
+    private final File mFolder;
+
+    /**
+     * Guards {@link #mRuns} and {@link #mSegments}. Searches hold the read lock, so runs are closed only after the
+     * write lock is taken.
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final ArrayList<SearchRun> mRuns = new ArrayList<>();
+    private final ArrayList<SearchSegment> mSegments = new ArrayList<>();
+
+    /**
+     * The runs being read by the merger, and those of them removed meanwhile. A removed run is only closed once the
+     * merger is done with it. Guarded by {@link #mLock}.
+     */
+    private List<SearchRun> mMergingRuns = Collections.emptyList();
+    private final ArrayList<SearchRun> mRemovedMergingRuns = new ArrayList<>();
+
+    private final Object mMergeLock = new Object();
+    private int mNextRunId;
+    private Thread mMergeThread;
+    private boolean mIsMergeRequested;
+    private boolean mIsClosed;
+
+    /**
+     * Loads the index from the folder.
+     *
+     * @param startTimes The start time of every existing log file. The segments of other files are dropped.
+     */
+    SearchIndex(final File folder, final Map<String, Long> startTimes) {
+        mFolder = folder;
+        folder.mkdirs();
+
+        final File[] files = folder.listFiles();
+        for (final File file : (files != null) ? files : new File[0]) {
+            final String name = file.getName();
+            if (!name.endsWith(SearchRun.EXTENSION)) {
+                // Left behind by an interrupted write.
+                file.delete();
+                continue;
+            }
+            try {
+                final int runId = Integer.parseInt(name.substring(0, name.length() - SearchRun.EXTENSION.length()));
+                mNextRunId = Math.max(mNextRunId, runId + 1);
+            } catch (final NumberFormatException e) {
+                file.delete();
+                continue;
+            }
+
+            final SearchRun run;
+            try {
+                run = new SearchRun(file);
+            } catch (final IOException | RuntimeException e) {
+                CsLog.w("Dropping a broken search index. " + e);
+                file.delete();
+                continue;
+            }
+            for (int i = 0; i < run.segmentCount(); ++i) {
+                final SegmentInfo info = run.segment(i);
+                final Long startTime = startTimes.get(info.name);
+                if (startTime == null || startTime != info.startTime) {
+                    run.markDeleted(i);
+                }
+            }
+            if (run.isAllDeleted()) {
+                run.close();
+                file.delete();
+            } else {
+                mRuns.add(run);
+            }
+        }
+
+        requestMerge();
+    }
+
+    private File newRunPath() {
+        synchronized (mMergeLock) {
+            return new File(mFolder, (mNextRunId++) + SearchRun.EXTENSION);
+        }
+    }
+
+    /**
+     * Starts indexing a new log file.
+     */
+    SearchSegment openSegment(final String name, final int pid, final String processName, final long startTime) {
+        final SearchSegment segment = new SearchSegment(this, name, pid, processName, startTime);
+        mLock.writeLock().lock();
+        try {
+            mSegments.add(segment);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return segment;
+    }
+
+    /**
+     * Writes the index of a closed log file into a run.
+     */
+    void finishSegment(final SearchSegment segment) {
+        final SearchRun run = segment.hasUnwrittenPart() ? writeRun(segment) : null;
+
+        mLock.writeLock().lock();
+        try {
+            mSegments.remove(segment);
+            addRun(segment, run);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        requestMerge();
+    }
+
+    /**
+     * Writes the index of a log file being recorded into a run, so the segment can start over with less memory.
+     */
+    void writePart(final SearchSegment segment) {
+        final SearchRun run = writeRun(segment);
+
+        mLock.writeLock().lock();
+        try {
+            // Searches must see the entries either in the segment or in the run, but never both.
+            segment.clearWrittenPart();
+            addRun(segment, run);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        requestMerge();
+    }
+
+    /**
+     * Writes the segment into a new run.
+     *
+     * @return The run, or null if the segment is deleted or cannot be written.
+     */
+    private SearchRun writeRun(final SearchSegment segment) {
+        if (segment.isDeleted(0)) {
+            return null;
+        }
+        final File path = newRunPath();
+        final File tempPath = new File(path.getPath() + ".tmp");
+        try {
+            segment.writeTo(tempPath);
+            if (!tempPath.renameTo(path)) {
+                throw new IOException("Cannot rename " + tempPath);
+            }
+            return new SearchRun(path);
+        } catch (final IOException e) {
+            CsLog.e("Failed to write the search index. " + e);
+            tempPath.delete();
+            path.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Adds the run written from the segment. Must be called with the write lock held.
+     */
+    private void addRun(final SearchSegment segment, final SearchRun run) {
+        if (run != null) {
+            if (segment.isDeleted(0)) {
+                // Deleted while being written.
+                run.markDeleted(0);
+            }
+            mRuns.add(run);
+        }
+    }
+
+    /**
+     * Drops the index of a deleted log file.
+     */
+    void remove(final String name) {
+        final ArrayList<SearchRun> deadRuns = new ArrayList<>();
+        boolean shouldMerge = false;
+        mLock.writeLock().lock();
+        try {
+            for (final SearchSegment segment : mSegments) {
+                if (segment.name().equals(name)) {
+                    segment.markDeleted();
+                }
+            }
+            for (final SearchRun run : mRuns) {
+                for (int i = 0; i < run.segmentCount(); ++i) {
+                    if (!run.isDeleted(i) && run.segment(i).name.equals(name)) {
+                        run.markDeleted(i);
+                        shouldMerge = true;
+                    }
+                }
+                if (run.isAllDeleted()) {
+                    deadRuns.add(run);
+                }
+            }
+            mRuns.removeAll(deadRuns);
+            for (int i = deadRuns.size() - 1; i >= 0; --i) {
+                if (mMergingRuns.contains(deadRuns.get(i))) {
+                    mRemovedMergingRuns.add(deadRuns.remove(i));
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        for (final SearchRun run : deadRuns) {
+            run.close();
+            run.path.delete();
+        }
+        if (shouldMerge) {
+            requestMerge();
+        }
+    }
+
+    //{{{ Merging
+
+    private void requestMerge() {
+        synchronized (mMergeLock) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsMergeRequested = true;
+            if (mMergeThread == null) {
+                mMergeThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runMerger();
+                    }
+                }, "Search index merger");
+                mMergeThread.setDaemon(true);
+                mMergeThread.start();
+            } else {
+                mMergeLock.notifyAll();
+            }
+        }
+    }
+
+    private void runMerger() {
+        while (true) {
+            synchronized (mMergeLock) {
+                while (!mIsMergeRequested && !mIsClosed) {
+                    try {
+                        mMergeLock.wait();
+                    } catch (final InterruptedException e) {
+                        break;
+                    }
+                }
+                if (mIsClosed) {
+                    mMergeThread = null;
+                    mMergeLock.notifyAll();
+                    return;
+                }
+                mIsMergeRequested = false;
+            }
+
+            List<SearchRun> inputs;
+            while (!isClosed() && !(inputs = selectMergeInputs()).isEmpty()) {
+                final boolean isMerged = merge(inputs);
+                finishMerge(inputs, isMerged);
+                if (!isMerged) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the runs which are not needed after a merge: the inputs if the merge succeeded, and the inputs removed
+     * during the merge.
+     */
+    private void finishMerge(final List<SearchRun> inputs, final boolean isMerged) {
+        final ArrayList<SearchRun> deadRuns = new ArrayList<>();
+        mLock.writeLock().lock();
+        try {
+            mMergingRuns = Collections.emptyList();
+            deadRuns.addAll(mRemovedMergingRuns);
+            mRemovedMergingRuns.clear();
+            if (isMerged) {
+                for (final SearchRun input : inputs) {
+                    if (!deadRuns.contains(input)) {
+                        deadRuns.add(input);
+                    }
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        for (final SearchRun run : deadRuns) {
+            run.close();
+            run.path.delete();
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (mMergeLock) {
+            return mIsClosed;
+        }
+    }
+
+    /**
+     * Stops the merger and closes the runs. The index must not be used afterwards.
+     */
+    void close() {
+        synchronized (mMergeLock) {
+            mIsClosed = true;
+            mMergeLock.notifyAll();
+            // Wait for a merge in progress, so it does not write into the folder after we return.
+            while (mMergeThread != null) {
+                try {
+                    mMergeLock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        mLock.writeLock().lock();
+        try {
+            for (final SearchRun run : mRuns) {
+                run.close();
+            }
+            mRuns.clear();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Chooses the runs to merge, and marks them as being merged, so they are not closed if removed meanwhile.
+     */
+    private List<SearchRun> selectMergeInputs() {
+        mLock.writeLock().lock();
+        try {
+            mMergingRuns = selectMergeInputs(new ArrayList<>(mRuns));
+            return mMergingRuns;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Chooses the runs to merge: the smallest runs if there are too many, or a run with many deleted segments.
+     */
+    private static List<SearchRun> selectMergeInputs(final ArrayList<SearchRun> runs) {
+        if (runs.size() > MAX_RUNS) {
+            Collections.sort(runs, new Comparator<SearchRun>() {
+                @Override
+                public int compare(final SearchRun a, final SearchRun b) {
+                    final long aLength = a.path.length();
+                    final long bLength = b.path.length();
+                    return (aLength < bLength) ? -1 : (aLength > bLength) ? 1 : 0;
+                }
+            });
+            return runs.subList(0, runs.size() - MAX_RUNS + 1);
+        }
+
+        for (final SearchRun run : runs) {
+            int deletedCount = 0;
+            for (int i = 0; i < run.segmentCount(); ++i) {
+                if (run.isDeleted(i)) {
+                    ++deletedCount;
+                }
+            }
+            if (deletedCount > run.segmentCount() * MAX_DELETED_FRACTION) {
+                return Collections.singletonList(run);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Merges the runs into one.
+     *
+     * @return Whether the merge succeeded.
+     */
+    private boolean merge(final List<SearchRun> inputs) {
+        final File path = newRunPath();
+        final File tempPath = new File(path.getPath() + ".tmp");
+        final SearchRun run;
+        final List<long[]> sources;
+        try {
+            sources = SearchRun.merge(inputs, tempPath);
+            if (!tempPath.renameTo(path)) {
+                throw new IOException("Cannot rename " + tempPath);
+            }
+            run = new SearchRun(path);
+        } catch (final IOException e) {
+            CsLog.e("Failed to merge the search index. " + e);
+            tempPath.delete();
+            path.delete();
+            return false;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            // Files deleted during the merge.
+            for (int i = 0; i < sources.size(); ++i) {
+                final long[] source = sources.get(i);
+                if (inputs.get((int) source[0]).isDeleted((int) source[1])) {
+                    run.markDeleted(i);
+                }
+            }
+            mRuns.removeAll(inputs);
+            mRuns.add(run);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    //}}}
+}
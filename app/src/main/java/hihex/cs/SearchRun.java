@@ -0,0 +1,574 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable search index of one or more log files, stored in a file. Runs are written when a log file is closed,
+ * and merged in the background by the {@link SearchIndex}.
+ *
+ * <p>The file consists of:</p>
+ * <ol>
+ * <li>A magic number.</li>
+ * <li>The entry table of every segment (log file): the uncompressed offset, the second and the level and tag of
+ * every entry, {@link #ENTRY_SIZE} bytes each.</li>
+ * <li>The postings of every term, in term order. A posting list is a sequence of groups of (segment delta, count,
+ * entry deltas...), all varints.</li>
+ * <li>The dictionary: every term with the location of its postings, in term order.</li>
+ * <li>The segment table.</li>
+ * <li>A footer with the locations of the dictionary and the segment table.</li>
+ * </ol>
+ *
+ * <p>Only every {@link #BLOCK_SIZE}-th term of the dictionary is kept in memory, so looking up a term reads one block
+ * of the dictionary and the postings from the file. Nothing else is read to answer a query, except the entry tables of
+ * the segments which have hits.</p>
+ */
+final class SearchRun extends SearchIndex.Source {
+    private static final long MAGIC = 0x4353494458000100L; // "CSIDX\0\1\0"
+    static final String EXTENSION = ".idx";
+
+    static final int ENTRY_SIZE = 16;
+    private static final int BLOCK_SIZE = 64;
+    private static final int FOOTER_SIZE = 20;
+
+    final File path;
+    private final RandomAccessFile mFile;
+    private final SearchIndex.SegmentInfo[] mSegments;
+    private final boolean[] mIsDeleted;
+    private final String[] mBlockTerms;
+    private final long[] mBlockOffsets;
+
+    SearchRun(final File path) throws IOException {
+        this.path = path;
+        mFile = new RandomAccessFile(path, "r");
+        try {
+            if (mFile.readLong() != MAGIC) {
+                throw new IOException("Not a search index: " + path);
+            }
+            mFile.seek(mFile.length() - FOOTER_SIZE);
+            final long dictionaryOffset = mFile.readLong();
+            final long segmentTableOffset = mFile.readLong();
+            final int termCount = mFile.readInt();
+
+            final DataInputStream segmentTable = new DataInputStream(new ByteArrayInputStream(
+                    read(segmentTableOffset, (int) (mFile.length() - FOOTER_SIZE - segmentTableOffset))));
+            mSegments = new SearchIndex.SegmentInfo[segmentTable.readInt()];
+            for (int i = 0; i < mSegments.length; ++i) {
+                mSegments[i] = SearchIndex.SegmentInfo.read(segmentTable);
+            }
+            mIsDeleted = new boolean[mSegments.length];
+
+            // Build the sparse index of the dictionary.
+            final int blockCount = (termCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            mBlockTerms = new String[blockCount];
+            mBlockOffsets = new long[blockCount + 1];
+            mBlockOffsets[blockCount] = segmentTableOffset;
+            final DictionaryReader reader = new DictionaryReader(dictionaryOffset, segmentTableOffset);
+            try {
+                for (int i = 0; i < termCount; ++i) {
+                    if (i % BLOCK_SIZE == 0) {
+                        mBlockOffsets[i / BLOCK_SIZE] = reader.position();
+                        reader.next();
+                        mBlockTerms[i / BLOCK_SIZE] = reader.term;
+                    } else {
+                        reader.next();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException | RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    private byte[] read(final long offset, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        synchronized (mFile) {
+            mFile.seek(offset);
+            mFile.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    void close() {
+        try {
+            mFile.close();
+        } catch (final IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Marks the segment as deleted. It will be dropped by the next merge.
+     */
+    void markDeleted(final int segment) {
+        mIsDeleted[segment] = true;
+    }
+
+    boolean isAllDeleted() {
+        for (final boolean isDeleted : mIsDeleted) {
+            if (!isDeleted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    int segmentCount() {
+        return mSegments.length;
+    }
+
+    @Override
+    SearchIndex.SegmentInfo segment(final int segment) {
+        return mSegments[segment];
+    }
+
+    @Override
+    boolean isDeleted(final int segment) {
+        return mIsDeleted[segment];
+    }
+
+    @Override
+    long[] postings(final String term) throws IOException {
+        final int block = Arrays.binarySearch(mBlockTerms, term);
+        final int blockIndex = (block >= 0) ? block : -block - 2;
+        if (blockIndex < 0) {
+            return EMPTY_POSTINGS;
+        }
+
+        final long blockOffset = mBlockOffsets[blockIndex];
+        final byte[] bytes = read(blockOffset, (int) (mBlockOffsets[blockIndex + 1] - blockOffset));
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        for (int i = 0; i < BLOCK_SIZE && input.available() > 0; ++i) {
+            final String blockTerm = input.readUTF();
+            final long postingsOffset = input.readLong();
+            final int postingsLength = input.readInt();
+            final int comparison = blockTerm.compareTo(term);
+            if (comparison == 0) {
+                return decodePostings(read(postingsOffset, postingsLength));
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        return EMPTY_POSTINGS;
+    }
+
+    @Override
+    SearchIndex.EntryTable entryTable(final int segment) throws IOException {
+        final SearchIndex.SegmentInfo info = mSegments[segment];
+        final byte[] bytes = read(info.tableOffset, info.entryCount * ENTRY_SIZE);
+        final ByteBuffer table = ByteBuffer.wrap(bytes);
+        final long[] offsets = new long[info.entryCount];
+        final int[] seconds = new int[info.entryCount];
+        final int[] levelTags = new int[info.entryCount];
+        for (int i = 0; i < info.entryCount; ++i) {
+            offsets[i] = table.getLong();
+            seconds[i] = table.getInt();
+            levelTags[i] = table.getInt();
+        }
+        return new SearchIndex.EntryTable(offsets, seconds, levelTags);
+    }
+
+    //{{{ Postings encoding
+
+    static final long[] EMPTY_POSTINGS = new long[0];
+
+    private static void putVarint(final Utf8Buffer out, final byte[] scratch, final int value) {
+        int v = value;
+        int length = 0;
+        while ((v & ~0x7f) != 0) {
+            scratch[length++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        scratch[length++] = (byte) v;
+        out.writeBytes(scratch, 0, length);
+    }
+
+    private static int getVarint(final ByteBuffer in) {
+        int result = 0;
+        int shift = 0;
+        while (true) {
+            final byte b = in.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Encodes postings, sorted (segment, entry) pairs packed as {@code segment << 32 | entry}.
+     */
+    static void encodePostings(final long[] postings, final int count, final Utf8Buffer out) {
+        final byte[] scratch = new byte[5];
+        int previousSegment = 0;
+        int i = 0;
+        while (i < count) {
+            final int segment = (int) (postings[i] >>> 32);
+            int end = i + 1;
+            while (end < count && (int) (postings[end] >>> 32) == segment) {
+                ++end;
+            }
+            putVarint(out, scratch, segment - previousSegment);
+            putVarint(out, scratch, end - i);
+            int previousEntry = 0;
+            for (int j = i; j < end; ++j) {
+                final int entry = (int) postings[j];
+                putVarint(out, scratch, entry - previousEntry);
+                previousEntry = entry;
+            }
+            previousSegment = segment;
+            i = end;
+        }
+    }
+
+    static long[] decodePostings(final byte[] bytes) {
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        long[] postings = new long[Math.max(4, bytes.length)];
+        int size = 0;
+        int segment = 0;
+        while (in.hasRemaining()) {
+            segment += getVarint(in);
+            final int count = getVarint(in);
+            if (size + count > postings.length) {
+                postings = Arrays.copyOf(postings, Math.max(size + count, postings.length * 2));
+            }
+            int entry = 0;
+            for (int i = 0; i < count; ++i) {
+                entry += getVarint(in);
+                postings[size++] = (long) segment << 32 | entry;
+            }
+        }
+        return Arrays.copyOf(postings, size);
+    }
+
+    //}}}
+
+    //{{{ Reading the dictionary sequentially
+
+    private final class DictionaryReader implements Closeable {
+        private final InputStream mStream;
+        private final DataInputStream mInput;
+        private final long mEnd;
+        private long mPosition;
+
+        String term;
+        long postingsOffset;
+        int postingsLength;
+
+        DictionaryReader(final long start, final long end) throws IOException {
+            final FileInputStream file = new FileInputStream(path);
+            ByteStreams.skipFully(file, start);
+            mStream = new BufferedInputStream(ByteStreams.limit(file, end - start), 16384);
+            mInput = new DataInputStream(mStream);
+            mPosition = start;
+            mEnd = end;
+        }
+
+        long position() {
+            return mPosition;
+        }
+
+        /**
+         * Reads the next term.
+         *
+         * @return Whether there is a next term.
+         */
+        boolean next() throws IOException {
+            if (mPosition >= mEnd) {
+                return false;
+            }
+            term = mInput.readUTF();
+            postingsOffset = mInput.readLong();
+            postingsLength = mInput.readInt();
+            // The UTF length prefix, the string, the offset and the length.
+            mPosition += 2 + utfLength(term) + 12;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+    private static int utfLength(final String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); ++i) {
+            final char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length += 1;
+            } else if (c <= 0x07ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    //}}}
+
+    //{{{ Writing
+
+    /**
+     * Writes a run. Segments are written first, then the terms in order, then {@link #finish()}.
+     */
+    static final class Writer implements Closeable {
+        private final File mPath;
+        private final File mDictionaryPath;
+        private final DataOutputStream mOutput;
+        private final DataOutputStream mDictionary;
+        private final ArrayList<SearchIndex.SegmentInfo> mSegments = new ArrayList<>();
+        private final Utf8Buffer mPostings = new Utf8Buffer(4096);
+        private int mTermCount;
+        private String mLastTerm;
+
+        Writer(final File path) throws IOException {
+            mPath = path;
+            mDictionaryPath = new File(path.getPath() + ".dict");
+            mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 16384));
+            DataOutputStream dictionary = null;
+            try {
+                dictionary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mDictionaryPath)));
+                mOutput.writeLong(MAGIC);
+            } catch (final IOException e) {
+                Closeables.close(dictionary, true);
+                Closeables.close(mOutput, true);
+                throw e;
+            }
+            mDictionary = dictionary;
+        }
+
+        /**
+         * Starts a new segment. Its entries should be written with {@link #writeEntry(long, int, int)} right after.
+         */
+        void beginSegment(final String name, final int pid, final String processName, final long startTime,
+                          final int entryCount, final int minSecond, final int maxSecond, final String[] tags) {
+            mSegments.add(new SearchIndex.SegmentInfo(name, pid, processName, startTime, entryCount, minSecond,
+                    maxSecond, tags, mOutput.size()));
+        }
+
+        void writeEntry(final long offset, final int second, final int levelTag) throws IOException {
+            mOutput.writeLong(offset);
+            mOutput.writeInt(second);
+            mOutput.writeInt(levelTag);
+        }
+
+        /**
+         * Writes the postings of a term. Terms must be written in order.
+         */
+        void writeTerm(final String term, final long[] postings, final int count) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            if (mLastTerm != null && mLastTerm.compareTo(term) >= 0) {
+                throw new IllegalArgumentException("Terms out of order: " + mLastTerm + ", " + term);
+            }
+            mLastTerm = term;
+
+            mPostings.reset();
+            encodePostings(postings, count, mPostings);
+            final long offset = mOutput.size();
+            mOutput.write(mPostings.array(), 0, mPostings.size());
+            mDictionary.writeUTF(term);
+            mDictionary.writeLong(offset);
+            mDictionary.writeInt(mPostings.size());
+            ++mTermCount;
+        }
+
+        void finish() throws IOException {
+            mDictionary.close();
+            final long dictionaryOffset = mOutput.size();
+            final InputStream dictionary = new FileInputStream(mDictionaryPath);
+            try {
+                ByteStreams.copy(dictionary, mOutput);
+            } finally {
+                Closeables.closeQuietly(dictionary);
+            }
+            mDictionaryPath.delete();
+
+            final long segmentTableOffset = mOutput.size();
+            mOutput.writeInt(mSegments.size());
+            for (final SearchIndex.SegmentInfo segment : mSegments) {
+                segment.write(mOutput);
+            }
+            mOutput.writeLong(dictionaryOffset);
+            mOutput.writeLong(segmentTableOffset);
+            mOutput.writeInt(mTermCount);
+            mOutput.close();
+        }
+
+        /**
+         * Abandons the run, deleting the partial file.
+         */
+        @Override
+        public void close() {
+            try {
+                Closeables.close(mDictionary, true);
+                Closeables.close(mOutput, true);
+            } catch (final IOException e) {
+                // Ignore.
+            }
+            mDictionaryPath.delete();
+        }
+
+        void abandon() {
+            close();
+            mPath.delete();
+        }
+    }
+
+    //}}}
+
+    //{{{ Merging
+
+    /**
+     * The cursor of a run in a merge.
+     */
+    private static final class MergeInput implements Comparable<MergeInput> {
+        final SearchRun run;
+        final DictionaryReader reader;
+
+        /**
+         * The new index of each segment of the run, or -1 if it is dropped.
+         */
+        final int[] segmentMap;
+
+        MergeInput(final SearchRun run, final int[] segmentMap) throws IOException {
+            this.run = run;
+            this.segmentMap = segmentMap;
+            reader = run.new DictionaryReader(run.mBlockOffsets[0], run.mBlockOffsets[run.mBlockOffsets.length - 1]);
+        }
+
+        @Override
+        public int compareTo(final MergeInput other) {
+            return reader.term.compareTo(other.reader.term);
+        }
+    }
+
+    /**
+     * Merges runs into a new run, dropping the deleted segments.
+     *
+     * @return The segments of the new run, as (input run, segment) pairs, in the same order as the new run.
+     */
+    static List<long[]> merge(final List<SearchRun> runs, final File path) throws IOException {
+        final Writer writer = new Writer(path);
+        final ArrayList<MergeInput> inputs = new ArrayList<>(runs.size());
+        final ArrayList<long[]> sources = new ArrayList<>();
+        try {
+            // Copy the entry tables of the surviving segments.
+            int newSegment = 0;
+            for (int r = 0; r < runs.size(); ++r) {
+                final SearchRun run = runs.get(r);
+                final int[] segmentMap = new int[run.mSegments.length];
+                for (int s = 0; s < run.mSegments.length; ++s) {
+                    if (run.mIsDeleted[s]) {
+                        segmentMap[s] = -1;
+                        continue;
+                    }
+                    final SearchIndex.SegmentInfo info = run.mSegments[s];
+                    writer.beginSegment(info.name, info.pid, info.processName, info.startTime, info.entryCount,
+                            info.minSecond, info.maxSecond, info.tags);
+                    writer.mOutput.write(run.read(info.tableOffset, info.entryCount * ENTRY_SIZE));
+                    sources.add(new long[]{r, s});
+                    segmentMap[s] = newSegment++;
+                }
+                inputs.add(new MergeInput(run, segmentMap));
+            }
+
+            // Merge the dictionaries.
+            final PriorityQueue<MergeInput> queue = new PriorityQueue<>(Math.max(1, inputs.size()));
+            for (final MergeInput input : inputs) {
+                if (input.reader.next()) {
+                    queue.add(input);
+                }
+            }
+            long[] postings = new long[256];
+            final ArrayList<MergeInput> sameTerm = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                final String term = queue.peek().reader.term;
+                sameTerm.clear();
+                while (!queue.isEmpty() && queue.peek().reader.term.equals(term)) {
+                    sameTerm.add(queue.poll());
+                }
+                // The inputs must be visited in run order, so the new segments stay sorted.
+                int count = 0;
+                for (final MergeInput input : inputs) {
+                    if (!sameTerm.contains(input)) {
+                        continue;
+                    }
+                    final long[] inputPostings = decodePostings(
+                            input.run.read(input.reader.postingsOffset, input.reader.postingsLength));
+                    if (count + inputPostings.length > postings.length) {
+                        postings = Arrays.copyOf(postings, Math.max(count + inputPostings.length, postings.length * 2));
+                    }
+                    for (final long posting : inputPostings) {
+                        final int segment = input.segmentMap[(int) (posting >>> 32)];
+                        if (segment >= 0) {
+                            postings[count++] = (long) segment << 32 | (posting & 0xffffffffL);
+                        }
+                    }
+                }
+                writer.writeTerm(term, postings, count);
+                for (final MergeInput input : sameTerm) {
+                    if (input.reader.next()) {
+                        queue.add(input);
+                    }
+                }
+            }
+
+            writer.finish();
+            return sources;
+        } catch (final IOException | RuntimeException e) {
+            writer.abandon();
+            throw e;
+        } finally {
+            for (final MergeInput input : inputs) {
+                Closeables.closeQuietly(input.reader.mInput);
+            }
+        }
+    }
+
+    //}}}
+}
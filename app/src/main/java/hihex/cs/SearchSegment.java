@@ -0,0 +1,355 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * The search index of a log file being recorded, kept in memory until it is written as a {@link SearchRun}.
+ *
+ * <p>The collector only copies the payload of every entry written to the sink ({@link #add(long, LogEntry)}). The
+ * entries are tokenized and indexed later by the writer stage ({@link #process()}). Whenever the in-memory index grows
+ * too large, it is written as a run holding a part of the file and started over, and the last part is written when the
+ * file is closed ({@link #finish()}).</p>
+ */
+final class SearchSegment extends SearchIndex.Source {
+    /**
+     * Write a part of the index into a run when it has this many entries...
+     */
+    private static final int MAX_ENTRY_COUNT = 65536;
+
+    /**
+     * ... or this many postings.
+     */
+    private static final int MAX_POSTING_COUNT = 1 << 20;
+
+    /**
+     * The maximum size of the entries waiting to be indexed. Entries added beyond this are not indexed, so a writer
+     * stage which cannot keep up does not make the collector run out of memory.
+     */
+    private static final int MAX_PENDING_SIZE = 1 << 20;
+
+    private final SearchIndex mIndex;
+    private final String mName;
+    private final int mPid;
+    private final String mProcessName;
+    private final long mStartTime;
+
+    /**
+     * Entries added but not processed yet: (offset, second, payload length, payload) records.
+     */
+    private ByteBuffer mPending = ByteBuffer.allocate(16384);
+    private ByteBuffer mProcessing = ByteBuffer.allocate(16384);
+    private long mDroppedCount;
+    private final Object mPendingLock = new Object();
+
+    // The following are guarded by `this`.
+    private int mEntryCount;
+    private long[] mOffsets = new long[256];
+    private int[] mSeconds = new int[256];
+    private int[] mLevelTags = new int[256];
+    private int mMinSecond = Integer.MAX_VALUE;
+    private int mMaxSecond = Integer.MIN_VALUE;
+    private final ArrayList<String> mTags = new ArrayList<>();
+    private final HashMap<String, Integer> mTagIndices = new HashMap<>();
+    private final HashMap<String, Postings> mPostings = new HashMap<>();
+    private int mPostingCount;
+    private int mPartCount;
+    private boolean mIsDeleted;
+
+    // Only used by the writer stage.
+    private long mReportedDroppedCount;
+    private final ArrayList<String> mTerms = new ArrayList<>();
+    private final byte[] mTokenBuffer = new byte[SearchIndex.MAX_TERM_LENGTH];
+
+    private static final class Postings {
+        int[] entries = new int[4];
+        int size;
+
+        /**
+         * @return Whether the entry is added, i.e. it is not the last entry already.
+         */
+        boolean add(final int entry) {
+            if (size > 0 && entries[size - 1] == entry) {
+                return false;
+            }
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+            return true;
+        }
+    }
+
+    SearchSegment(final SearchIndex index, final String name, final int pid, final String processName,
+                  final long startTime) {
+        mIndex = index;
+        mName = name;
+        mPid = pid;
+        mProcessName = processName;
+        mStartTime = startTime;
+    }
+
+    String name() {
+        return mName;
+    }
+
+    /**
+     * Adds an entry written to the log file.
+     *
+     * @param offset The offset of the entry in the uncompressed file.
+     */
+    void add(final long offset, final LogEntry entry) {
+        final int payloadLength = entry.payloadLength();
+        synchronized (mPendingLock) {
+            if (mPending.remaining() < 16 + payloadLength) {
+                final int requiredSize = mPending.position() + 16 + payloadLength;
+                if (requiredSize > MAX_PENDING_SIZE) {
+                    ++mDroppedCount;
+                    return;
+                }
+                final ByteBuffer pending = ByteBuffer.allocate(Math.min(MAX_PENDING_SIZE,
+                        Math.max(mPending.capacity() * 2, requiredSize)));
+                mPending.flip();
+                pending.put(mPending);
+                mPending = pending;
+            }
+            mPending.putLong(offset);
+            mPending.putInt(entry.second());
+            mPending.putInt(payloadLength);
+            mPending.put(entry.payloadArray(), entry.payloadOffset(), payloadLength);
+        }
+    }
+
+    /**
+     * Indexes the entries added so far, and writes them into a run if the index is too large. Called from the writer
+     * stage only.
+     */
+    void process() {
+        final ByteBuffer processing;
+        final long droppedCount;
+        synchronized (mPendingLock) {
+            droppedCount = mDroppedCount;
+            if (mPending.position() == 0) {
+                return;
+            }
+            processing = mPending;
+            mPending = mProcessing;
+            mProcessing = processing;
+        }
+
+        if (droppedCount != mReportedDroppedCount) {
+            CsLog.w("Search index of " + mName + " skipped " + (droppedCount - mReportedDroppedCount) + " entries");
+            mReportedDroppedCount = droppedCount;
+        }
+
+        processing.flip();
+        while (processing.hasRemaining()) {
+            synchronized (this) {
+                while (processing.hasRemaining() && !isFull()) {
+                    final long offset = processing.getLong();
+                    final int second = processing.getInt();
+                    final int payloadLength = processing.getInt();
+                    final int payloadStart = processing.position();
+                    processing.position(payloadStart + payloadLength);
+                    indexEntry(offset, second, processing.array(), payloadStart, payloadStart + payloadLength);
+                }
+            }
+            if (isFull()) {
+                mIndex.writePart(this);
+            }
+        }
+        processing.clear();
+    }
+
+    private synchronized boolean isFull() {
+        return mEntryCount >= MAX_ENTRY_COUNT || mPostingCount >= MAX_POSTING_COUNT;
+    }
+
+    private void indexEntry(final long offset, final int second, final byte[] payload, final int start,
+                            final int end) {
+        if (start >= end) {
+            return;
+        }
+        final int level = payload[start] & 0xff;
+        int tagEnd = start + 1;
+        while (tagEnd < end && payload[tagEnd] != 0) {
+            ++tagEnd;
+        }
+        int messageEnd = Math.min(tagEnd + 1, end);
+        while (messageEnd < end && payload[messageEnd] != 0) {
+            ++messageEnd;
+        }
+
+        final String tag = new String(payload, start + 1, tagEnd - start - 1, Charsets.UTF_8);
+        Integer tagIndex = mTagIndices.get(tag);
+        if (tagIndex == null) {
+            tagIndex = mTags.size();
+            mTags.add(tag);
+            mTagIndices.put(tag, tagIndex);
+        }
+
+        final int entry = mEntryCount++;
+        if (entry == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, entry * 2);
+            mSeconds = Arrays.copyOf(mSeconds, entry * 2);
+            mLevelTags = Arrays.copyOf(mLevelTags, entry * 2);
+        }
+        mOffsets[entry] = offset;
+        mSeconds[entry] = second;
+        mLevelTags[entry] = level << 24 | tagIndex;
+        mMinSecond = Math.min(mMinSecond, second);
+        mMaxSecond = Math.max(mMaxSecond, second);
+
+        mTerms.clear();
+        mTerms.add(SearchIndex.levelTerm(LogEntry.logLevelChar(level)));
+        mTerms.add(SearchIndex.tagTerm(tag));
+        SearchIndex.tokenize(payload, start + 1, tagEnd, mTokenBuffer, mTerms);
+        SearchIndex.tokenize(payload, Math.min(tagEnd + 1, end), messageEnd, mTokenBuffer, mTerms);
+        for (final String term : mTerms) {
+            Postings postings = mPostings.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                mPostings.put(term, postings);
+            }
+            if (postings.add(entry)) {
+                ++mPostingCount;
+            }
+        }
+    }
+
+    /**
+     * Indexes the remaining entries and writes the index into a run. Called from the writer stage after the log file
+     * is closed.
+     */
+    void finish() {
+        process();
+        mIndex.finishSegment(this);
+    }
+
+    /**
+     * Whether the entries indexed so far should be written into a run when the file is closed. A file with no entries
+     * still needs a run, unless parts of it were written already.
+     */
+    synchronized boolean hasUnwrittenPart() {
+        return mEntryCount > 0 || mPartCount == 0;
+    }
+
+    /**
+     * Forgets the entries written into a run. Called with the write lock of the index held, when the run is added.
+     */
+    synchronized void clearWrittenPart() {
+        ++mPartCount;
+        mEntryCount = 0;
+        mMinSecond = Integer.MAX_VALUE;
+        mMaxSecond = Integer.MIN_VALUE;
+        mTags.clear();
+        mTagIndices.clear();
+        mPostings.clear();
+        mPostingCount = 0;
+        if (mOffsets.length > 256) {
+            mOffsets = new long[256];
+            mSeconds = new int[256];
+            mLevelTags = new int[256];
+        }
+    }
+
+    /**
+     * Writes the index into a run.
+     */
+    synchronized void writeTo(final File path) throws IOException {
+        final SearchRun.Writer writer = new SearchRun.Writer(path);
+        try {
+            writer.beginSegment(mName, mPid, mProcessName, mStartTime, mEntryCount, mMinSecond, mMaxSecond,
+                    mTags.toArray(new String[mTags.size()]));
+            for (int i = 0; i < mEntryCount; ++i) {
+                writer.writeEntry(mOffsets[i], mSeconds[i], mLevelTags[i]);
+            }
+
+            final ArrayList<String> terms = new ArrayList<>(mPostings.keySet());
+            Collections.sort(terms);
+            long[] postings = new long[256];
+            for (final String term : terms) {
+                final Postings entries = mPostings.get(term);
+                if (entries.size > postings.length) {
+                    postings = new long[Math.max(entries.size, postings.length * 2)];
+                }
+                for (int i = 0; i < entries.size; ++i) {
+                    postings[i] = entries.entries[i];
+                }
+                writer.writeTerm(term, postings, entries.size);
+            }
+            writer.finish();
+        } catch (final IOException | RuntimeException e) {
+            writer.abandon();
+            throw e;
+        }
+    }
+
+    synchronized void markDeleted() {
+        mIsDeleted = true;
+    }
+
+    //{{{ Source
+
+    @Override
+    int segmentCount() {
+        return 1;
+    }
+
+    @Override
+    synchronized SearchIndex.SegmentInfo segment(final int segment) {
+        return new SearchIndex.SegmentInfo(mName, mPid, mProcessName, mStartTime, mEntryCount, mMinSecond,
+                mMaxSecond, mTags.toArray(new String[mTags.size()]), 0);
+    }
+
+    @Override
+    synchronized boolean isDeleted(final int segment) {
+        return mIsDeleted;
+    }
+
+    @Override
+    synchronized long[] postings(final String term) {
+        final Postings entries = mPostings.get(term);
+        if (entries == null) {
+            return SearchRun.EMPTY_POSTINGS;
+        }
+        final long[] postings = new long[entries.size];
+        for (int i = 0; i < entries.size; ++i) {
+            postings[i] = entries.entries[i];
+        }
+        return postings;
+    }
+
+    @Override
+    synchronized SearchIndex.EntryTable entryTable(final int segment) {
+        return new SearchIndex.EntryTable(Arrays.copyOf(mOffsets, mEntryCount), Arrays.copyOf(mSeconds, mEntryCount),
+                Arrays.copyOf(mLevelTags, mEntryCount));
+    }
+
+    //}}}
+}
@@ -0,0 +1,264 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The names of the threads of a process.
+ *
+ * <p>The name of a thread seen for the first time is read from /proc right away, since the rendered entries cannot be
+ * patched later. Only a thread which has already exited gets a placeholder name ("TID:1234"). Everything else is done
+ * by a background resolver thread, so the collector thread does not wait for the file system again.</p>
+ *
+ * <p>When the resolver visits a process, it lists all its threads at once, forgetting the names of threads which have
+ * exited (so a reused TID is resolved again), and reading the names of threads not seen yet. Names older than
+ * {@link #MAX_AGE} are read again, to notice threads which have renamed themselves. The least recently used names are
+ * evicted when there are more than {@link #MAX_SIZE} of them.</p>
+ */
+final class ThreadNameCache {
+    private static final int MAX_SIZE = 256;
+
+    /**
+     * How long a resolved name is trusted, in milliseconds.
+     */
+    private static final long MAX_AGE = 30000;
+
+    private static final LinkedBlockingQueue<ThreadNameCache> sPendingCaches = new LinkedBlockingQueue<>();
+    private static Thread sResolverThread;
+
+    private static final class Slot {
+        /**
+         * The name of the thread, or the placeholder if the thread exited before its name could be read.
+         */
+        String name;
+
+        /**
+         * The value of {@link #mClock} when this slot was last used.
+         */
+        long lastUsed;
+
+        /**
+         * The time when the name was read.
+         */
+        long resolvedTime;
+
+        /**
+         * The value of {@link #mClock} when this slot was created.
+         */
+        final long createdTime;
+
+        Slot(final String name, final long resolvedTime, final long createdTime) {
+            this.name = name;
+            this.resolvedTime = resolvedTime;
+            this.createdTime = createdTime;
+        }
+    }
+
+    private final int mPid;
+    private final SparseArray<Slot> mSlots = new SparseArray<>();
+    private final AtomicBoolean mIsQueued = new AtomicBoolean();
+    private long mClock;
+
+    ThreadNameCache(final int pid) {
+        mPid = pid;
+    }
+
+    /**
+     * Obtains the name of a thread. An unknown name is read immediately. An outdated name is returned as is, and
+     * scheduled to be read again in the background.
+     */
+    String get(final int tid) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            final Slot slot = mSlots.get(tid);
+            if (slot != null) {
+                slot.lastUsed = ++mClock;
+                if (now - slot.resolvedTime > MAX_AGE && mIsQueued.compareAndSet(false, true)) {
+                    enqueue(this);
+                }
+                return slot.name;
+            }
+        }
+
+        // Read outside of the lock, so the resolver is not blocked meanwhile. If the thread has already exited, there
+        // is no way to find its name, so the placeholder is kept until the TID is forgotten.
+        final String threadName = readThreadName(new File("/proc/" + mPid + "/task"), Integer.toString(tid));
+        synchronized (this) {
+            Slot slot = mSlots.get(tid);
+            if (slot == null) {
+                slot = new Slot((threadName != null) ? threadName : "TID:" + tid, now, mClock + 1);
+                slot.lastUsed = ++mClock;
+                mSlots.put(tid, slot);
+                // The new slot is the most recently used one, so it survives the eviction.
+                evictIfNeeded();
+            }
+            return slot.name;
+        }
+    }
+
+    /**
+     * Removes the least recently used quarter of the names if there are too many. Must be called with the lock held.
+     */
+    private void evictIfNeeded() {
+        final int size = mSlots.size();
+        if (size <= MAX_SIZE) {
+            return;
+        }
+
+        final long[] lastUsedTimes = new long[size];
+        for (int i = 0; i < size; ++i) {
+            lastUsedTimes[i] = mSlots.valueAt(i).lastUsed;
+        }
+        Arrays.sort(lastUsedTimes);
+        final long threshold = lastUsedTimes[size / 4];
+        for (int i = size - 1; i >= 0; --i) {
+            if (mSlots.valueAt(i).lastUsed <= threshold) {
+                mSlots.removeAt(i);
+            }
+        }
+    }
+
+    private static synchronized void enqueue(final ThreadNameCache cache) {
+        sPendingCaches.add(cache);
+        if (sResolverThread == null) {
+            sResolverThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            sPendingCaches.take().resolve();
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Thread name resolver");
+            sResolverThread.setDaemon(true);
+            sResolverThread.start();
+        }
+    }
+
+    private static String readThreadName(final File taskDir, final String tidString) {
+        try {
+            final String name = Files.toString(new File(taskDir, tidString + "/comm"), Charsets.UTF_8).trim();
+            return name.isEmpty() ? null : name;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the names of the threads of this process. Called from the resolver thread.
+     */
+    private void resolve() {
+        mIsQueued.set(false);
+
+        // Slots created after listing the threads are not judged by the listing.
+        final long listingTime;
+        synchronized (this) {
+            listingTime = mClock;
+        }
+        final File taskDir = new File("/proc/" + mPid + "/task");
+        final String[] tidStrings = taskDir.list();
+        if (tidStrings == null) {
+            // The process is dead. Stop retrying until the names become outdated.
+            final long now = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                for (int i = mSlots.size() - 1; i >= 0; --i) {
+                    mSlots.valueAt(i).resolvedTime = now;
+                }
+            }
+            return;
+        }
+
+        final int[] tids = new int[tidStrings.length];
+        for (int i = 0; i < tidStrings.length; ++i) {
+            try {
+                tids[i] = Integer.parseInt(tidStrings[i]);
+            } catch (final NumberFormatException e) {
+                tids[i] = -1;
+            }
+        }
+
+        // Decide which names to read.
+        final long startTime = SystemClock.elapsedRealtime();
+        final boolean[] shouldRead = new boolean[tids.length];
+        synchronized (this) {
+            int freeSlots = MAX_SIZE - mSlots.size();
+            for (int i = 0; i < tids.length; ++i) {
+                final Slot slot = mSlots.get(tids[i]);
+                if (slot == null) {
+                    // Read names of threads not logged yet, as long as they do not evict anything.
+                    shouldRead[i] = freeSlots > 0;
+                    --freeSlots;
+                } else {
+                    shouldRead[i] = startTime - slot.resolvedTime > MAX_AGE;
+                }
+            }
+        }
+
+        final String[] names = new String[tids.length];
+        for (int i = 0; i < tids.length; ++i) {
+            if (shouldRead[i] && tids[i] >= 0) {
+                names[i] = readThreadName(taskDir, tidStrings[i]);
+            }
+        }
+
+        final int[] sortedTids = tids.clone();
+        Arrays.sort(sortedTids);
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            // Forget threads which have exited, so reused TIDs are resolved again.
+            for (int i = mSlots.size() - 1; i >= 0; --i) {
+                final Slot slot = mSlots.valueAt(i);
+                if (slot.createdTime <= listingTime && Arrays.binarySearch(sortedTids, mSlots.keyAt(i)) < 0) {
+                    mSlots.removeAt(i);
+                }
+            }
+
+            for (int i = 0; i < tids.length; ++i) {
+                if (!shouldRead[i] || tids[i] < 0) {
+                    continue;
+                }
+                Slot slot = mSlots.get(tids[i]);
+                if (slot == null) {
+                    if (names[i] == null) {
+                        continue;
+                    }
+                    slot = new Slot(names[i], now, 0);
+                    mSlots.put(tids[i], slot);
+                } else if (names[i] != null) {
+                    slot.name = names[i];
+                }
+                slot.resolvedTime = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A reusable writer which encodes everything into a growable UTF-8 byte array.
+ *
+ * <p>Unlike {@code OutputStreamWriter(ByteArrayOutputStream)}, the content can be accessed without copying, and the
+ * buffer is kept across {@link #reset()}, so rendering into it repeatedly does not allocate.</p>
+ */
+public final class Utf8Buffer extends Writer {
+    private byte[] mBytes;
+    private int mSize;
+
+    /**
+     * A high surrogate waiting for its low surrogate in the next write() call, or 0 if none.
+     */
+    private char mPendingHighSurrogate;
+
+    public Utf8Buffer(final int initialCapacity) {
+        mBytes = new byte[initialCapacity];
+    }
+
+    public byte[] array() {
+        return mBytes;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void reset() {
+        mSize = 0;
+        mPendingHighSurrogate = 0;
+    }
+
+    /**
+     * Discards everything written after the first {@code size} bytes.
+     */
+    public void truncate(final int size) {
+        mSize = size;
+        mPendingHighSurrogate = 0;
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int required = mSize + extra;
+        if (required > mBytes.length) {
+            mBytes = Arrays.copyOf(mBytes, Math.max(required, mBytes.length * 2));
+        }
+    }
+
+    /**
+     * Appends raw bytes, which should already be UTF-8.
+     */
+    public void writeBytes(final byte[] bytes, final int offset, final int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mBytes, mSize, length);
+        mSize += length;
+    }
+
+    private void encode(final char c) {
+        final byte[] bytes = mBytes;
+        int size = mSize;
+
+        if (mPendingHighSurrogate != 0) {
+            final char high = mPendingHighSurrogate;
+            mPendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(high, c);
+                bytes[size++] = (byte) (0xf0 | codePoint >> 18);
+                bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                bytes[size++] = (byte) (0x80 | codePoint & 0x3f);
+                mSize = size;
+                return;
+            }
+            bytes[size++] = '?';
+        }
+
+        if (c < 0x80) {
+            bytes[size++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[size++] = (byte) (0xc0 | c >> 6);
+            bytes[size++] = (byte) (0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c)) {
+            mPendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[size++] = '?';
+        } else {
+            bytes[size++] = (byte) (0xe0 | c >> 12);
+            bytes[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+            bytes[size++] = (byte) (0x80 | c & 0x3f);
+        }
+        mSize = size;
+    }
+
+    @Override
+    public void write(final char[] buffer, final int offset, final int count) {
+        // Each char takes at most 3 bytes, plus 1 for a dangling high surrogate from the previous call.
+        ensureCapacity(count * 3 + 1);
+        for (int i = offset; i < offset + count; ++i) {
+            encode(buffer[i]);
+        }
+    }
+
+    @Override
+    public void write(final String str, final int offset, final int count) {
+        ensureCapacity(count * 3 + 1);
+        for (int i = offset; i < offset + count; ++i) {
+            encode(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(final int c) {
+        ensureCapacity(4);
+        encode((char) c);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
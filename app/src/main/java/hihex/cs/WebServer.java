@@ -28,23 +28,21 @@ import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.util.JsonWriter;
 
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.eventbus.Subscribe;
-import com.google.common.io.ByteStreams;
 import com.google.gson.JsonSyntaxException;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URLDecoder;
 import java.util.ArrayList;
@@ -55,9 +53,6 @@ import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -66,6 +61,8 @@ import fi.iki.elonen.NanoHTTPD;
  */
 final class WebServer extends NanoHTTPD {
     public static final int PORT = 47689; // Perhaps we should let the OS choose the port?
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int MAX_SEARCH_LIMIT = 10000;
 
     private final Config mConfig;
 
@@ -138,7 +135,9 @@ final class WebServer extends NanoHTTPD {
             case "/live":
                 return serveLive();
             case "/live-events":
-                return serveLiveEvents();
+                return serveLiveEvents(session.getParms());
+            case "/search":
+                return serveSearch(session.getParms());
             case "/update-settings": {
                 try {
                     session.parseBody(new HashMap<String, String>());
@@ -196,7 +195,9 @@ final class WebServer extends NanoHTTPD {
                         case "delete":
                             return bulkDelete(files);
                         case "download":
-                            return bulkDownload(files);
+                            return bulkDownload(files, false);
+                        case "download-compressed":
+                            return bulkDownload(files, true);
                         default:
                             break;
                     }
@@ -227,7 +228,7 @@ final class WebServer extends NanoHTTPD {
                     return serveStatic(filename);
                 }
             case "read":
-                return serveLog(filename);
+                return serveLog(filename, session.getParms());
             case "download":
                 return serveDownload(filename);
             case "apk":
@@ -260,9 +261,45 @@ final class WebServer extends NanoHTTPD {
         }
     }
 
-    private Response serveLog(final String filename) {
-        mConfig.flushWriter(filename);
+    private Response serveLog(final String filename, final Map<String, String> parameters) {
+        final String formatName = parameters.get("format");
+        final String from = parameters.get("from");
+        final String to = parameters.get("to");
+        if ((from != null || to != null) && !BinaryLog.isBinaryLog(filename)) {
+            try {
+                final Optional<InputStream> range = mConfig.logFiles.openRange(filename,
+                        (from != null) ? SearchIndex.parseTime(from) : Long.MIN_VALUE,
+                        (to != null) ? SearchIndex.parseTime(to) : Long.MAX_VALUE);
+                if (range.isPresent()) {
+                    final Response resp = new Response(Response.Status.OK, MIME_HTML, range.get());
+                    resp.setChunkedTransfer(true);
+                    return resp;
+                }
+            } catch (final IllegalArgumentException e) {
+                return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            } catch (final IOException e) {
+                return serve404();
+            }
+            // Without checkpoints, the whole log is sent.
+        }
+
         try {
+            // A file still being recorded is read without flushing it, and sent uncompressed.
+            final Optional<InputStream> recordingContent = mConfig.openRecordingLog(filename);
+            if (BinaryLog.isBinaryLog(filename)) {
+                // Binary logs are rendered while being sent.
+                final InputStream content = recordingContent.isPresent() ? recordingContent.get() :
+                        new LenientGzipInputStream(mConfig.logFiles.open(filename));
+                final BinaryLog.Format format = BinaryLog.Format.parse(formatName);
+                final InputStream rendered = new BinaryLog.RenderingStream(content, format, mConfig.renderer);
+                final Response resp = new Response(Response.Status.OK, format.mimeType, rendered);
+                resp.setChunkedTransfer(true);
+                return resp;
+            } else if (recordingContent.isPresent()) {
+                final Response resp = new Response(Response.Status.OK, MIME_HTML, recordingContent.get());
+                resp.setChunkedTransfer(true);
+                return resp;
+            }
             final InputStream stream = mConfig.logFiles.open(filename);
             final Response resp = new Response(Response.Status.OK, MIME_HTML, stream);
             resp.addHeader("Content-Encoding", "gzip");
@@ -340,6 +377,7 @@ final class WebServer extends NanoHTTPD {
             final long splitSize;
             final boolean shouldShowIndictor = "on".equals(parameters.get("show-indicator"));
             final boolean shouldRunOnBoot = "on".equals(parameters.get("run-on-boot"));
+            final boolean shouldUseBinaryStorage = "on".equals(parameters.get("binary-storage"));
             if ("on".equals(parameters.get("purge-by-filesize"))) {
                 filesize = Math.max(1, Long.parseLong(parameters.get("filesize")) * 1048576);
             } else {
@@ -355,7 +393,16 @@ final class WebServer extends NanoHTTPD {
             } else {
                 splitSize = -1;
             }
-            mConfig.preferences.updateSettings(filter, filesize, duration, shouldShowIndictor, shouldRunOnBoot, splitSize);
+            final String compressorEngine = parameters.get("compressor-engine");
+            final String compressionStrategy = parameters.get("compression-strategy");
+            final String compressionLevelString = parameters.get("compression-level");
+            final int compressionLevel = (compressionLevelString != null) ?
+                    Integer.parseInt(compressionLevelString) : LogCompressor.DEFAULT_LEVEL;
+            mConfig.preferences.updateSettings(filter, filesize, duration, shouldShowIndictor, shouldRunOnBoot,
+                    shouldUseBinaryStorage, splitSize);
+            if (compressorEngine != null && compressionStrategy != null) {
+                mConfig.preferences.updateCompressor(compressorEngine, compressionLevel, compressionStrategy);
+            }
             return serveRedirect("Settings updated", "/");
         } catch (final PatternSyntaxException e) {
             return serveInvalidSettingError("settings", "Invalid filter syntax", e);
@@ -392,39 +439,8 @@ final class WebServer extends NanoHTTPD {
         return new Response(content);
     }
 
-    private Response bulkDownload(final List<String> files) throws IOException {
-        final File zipFile = File.createTempFile("CatSaverLogs", ".zip");
-        try {
-            final ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
-            stream.putNextEntry(new ZipEntry("CatSaverLogs/"));
-
-            for (final String fileName : files) {
-                final InputStream source = mConfig.logFiles.open(fileName);
-                final InputStream input;
-                final ZipEntry entry;
-                if (fileName.endsWith(".gz")) {
-                    entry = new ZipEntry("CatSaverLogs/" + fileName.substring(0, fileName.length() - 3));
-                    input = new GZIPInputStream(source);
-                } else {
-                    entry = new ZipEntry("CatSaverLogs/" + fileName);
-                    input = source;
-                }
-                stream.putNextEntry(entry);
-                try {
-                    ByteStreams.copy(input, stream);
-                } catch (final EOFException e) {
-                    // Early EOF, ignore?
-                }
-                input.close();
-                stream.closeEntry();
-            }
-            stream.close();
-
-            final FileInputStream result = new FileInputStream(zipFile);
-            return serveFileDownload(zipFile.getName(), "application/zip", result);
-        } finally {
-            zipFile.delete();
-        }
+    private Response bulkDownload(final List<String> files, final boolean shouldKeepCompressed) {
+        return new ZipDownload(mConfig, files, shouldKeepCompressed);
     }
 
     private Response bulkDelete(final List<String> files) {
@@ -454,13 +470,53 @@ final class WebServer extends NanoHTTPD {
         return new Response(Response.Status.OK, "image/png", stream);
     }
 
+    private Response serveSearch(final Map<String, String> parameters) {
+        final String query = Optional.fromNullable(parameters.get("q")).or("");
+        final String limitString = parameters.get("limit");
+        final int limit;
+        final List<SearchIndex.Hit> hits;
+        try {
+            limit = (limitString != null)
+                    ? Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(limitString))) : DEFAULT_SEARCH_LIMIT;
+            // Ask for one more hit to tell whether there are more.
+            hits = mConfig.logFiles.search(query, limit + 1);
+        } catch (final IllegalArgumentException e) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+        } catch (final IOException e) {
+            CsLog.e("Search failed", e);
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Search failed");
+        }
+
+        final StringWriter writer = new StringWriter();
+        try {
+            final JsonWriter json = new JsonWriter(writer);
+            json.beginObject();
+            json.name("hits").beginArray();
+            for (final SearchIndex.Hit hit : hits.subList(0, Math.min(limit, hits.size()))) {
+                hit.writeJSON(json);
+            }
+            json.endArray();
+            json.name("more").value(hits.size() > limit);
+            json.endObject();
+            json.close();
+        } catch (final IOException e) {
+            // Impossible with a StringWriter.
+            throw new AssertionError(e);
+        }
+        return new Response(Response.Status.OK, "application/json", writer.toString());
+    }
+
     private Response serveLive() {
         final String content = mConfig.renderer.renderLive();
         return new Response(content);
     }
 
-    private Response serveLiveEvents() {
-        return new LiveEventSource();
+    private Response serveLiveEvents(final Map<String, String> parameters) {
+        try {
+            return new LiveEventSource(mConfig.liveHub, LiveFilter.parse(parameters));
+        } catch (final IllegalArgumentException e) {
+            return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+        }
     }
 
     @Subscribe
@@ -0,0 +1,247 @@
+/*
+ * CatSaver
+ * Copyright (C) 2015 HiHex Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package hihex.cs;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A ZIP archive of log files, created while it is being sent. Nothing is staged on the storage, and the archive is
+ * sent with chunked encoding since its size is unknown.
+ *
+ * <p>Log files are normally decompressed and deflated again into the archive. With {@code shouldKeepCompressed}, the
+ * gzip files are stored as they are instead, which costs only two sequential reads of each file. Binary logs are always
+ * rendered to HTML, and files being recorded are always read through {@link LogSink#openContent()}.</p>
+ */
+public final class ZipDownload extends NanoHTTPD.Response {
+    private static final String FOLDER = "CatSaverLogs/";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Config mConfig;
+    private final List<String> mFileNames;
+    private final boolean mShouldKeepCompressed;
+
+    public ZipDownload(final Config config, final List<String> fileNames, final boolean shouldKeepCompressed) {
+        super(Status.OK, "application/zip", "");
+        mConfig = config;
+        mFileNames = fileNames;
+        mShouldKeepCompressed = shouldKeepCompressed;
+    }
+
+    @Override
+    protected void send(final OutputStream outputStream) {
+        // Do not call super(). The content is produced here instead of being read from an InputStream.
+
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.ROOT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/zip\r\n"
+                + "Content-Disposition: attachment; filename=CatSaverLogs.zip\r\n"
+                + "Date: " + dateFormat.format(new Date()) + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n";
+
+        ChunkedOutputStream chunkedStream = null;
+        try {
+            outputStream.write(header.getBytes(Charsets.ISO_8859_1));
+
+            chunkedStream = new ChunkedOutputStream(outputStream);
+            final ZipOutputStream zipStream = new ZipOutputStream(new BufferedOutputStream(chunkedStream, BUFFER_SIZE));
+            zipStream.putNextEntry(new ZipEntry(FOLDER));
+            for (final String fileName : mFileNames) {
+                writeFile(zipStream, fileName);
+            }
+            zipStream.finish();
+            zipStream.flush();
+            chunkedStream.finish();
+        } catch (final IOException e) {
+            if (chunkedStream == null || chunkedStream.isPeerClosed()) {
+                // The peer closed the connection.
+                return;
+            }
+            // The last chunk must not be sent after an incomplete archive, or the client would take it as complete.
+            // Closing the connection tells the client that the download failed.
+            CsLog.e("Cannot send the ZIP archive. " + e);
+            try {
+                Closeables.close(outputStream, true);
+            } catch (final IOException e2) {
+                // Ignore.
+            }
+        }
+    }
+
+    private void writeFile(final ZipOutputStream zipStream, final String fileName) throws IOException {
+        final InputStream input;
+        final ZipEntry entry;
+        try {
+            final Optional<InputStream> recordingContent = mConfig.openRecordingLog(fileName);
+            if (BinaryLog.isBinaryLog(fileName)) {
+                final String baseName = fileName.substring(0, fileName.length() - BinaryLog.EXTENSION.length());
+                entry = new ZipEntry(FOLDER + baseName + ".html");
+                final InputStream content = recordingContent.isPresent() ? recordingContent.get() :
+                        new LenientGzipInputStream(mConfig.logFiles.open(fileName));
+                input = new BinaryLog.RenderingStream(content, BinaryLog.Format.HTML, mConfig.renderer);
+            } else if (recordingContent.isPresent() || (fileName.endsWith(".gz") && !mShouldKeepCompressed)) {
+                final String baseName = fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - 3)
+                        : fileName;
+                entry = new ZipEntry(FOLDER + baseName);
+                input = recordingContent.isPresent() ? recordingContent.get() :
+                        new LenientGzipInputStream(mConfig.logFiles.open(fileName));
+            } else {
+                writeStoredFile(zipStream, fileName);
+                return;
+            }
+        } catch (final IOException e) {
+            // The file is removed, skip it.
+            return;
+        }
+
+        try {
+            zipStream.putNextEntry(entry);
+            ByteStreams.copy(input, zipStream);
+            zipStream.closeEntry();
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stores the file as is. The CRC needed in front of a stored entry is computed in a first pass, and both passes read
+     * the same open file, so removing or replacing the file in between does not matter. Log files are only appended to,
+     * and whatever is appended after the first pass is left out.
+     */
+    private void writeStoredFile(final ZipOutputStream zipStream, final String fileName) throws IOException {
+        final FileInputStream input;
+        try {
+            input = mConfig.logFiles.open(fileName);
+        } catch (final IOException e) {
+            return;
+        }
+        try {
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                crc.update(buffer, 0, count);
+                size += count;
+            }
+
+            final FileChannel channel = input.getChannel();
+            if (channel.size() < size) {
+                CsLog.w("Skipped " + fileName + " in the ZIP archive, it was truncated while being read.");
+                return;
+            }
+            channel.position(0);
+
+            final ZipEntry entry = new ZipEntry(FOLDER + fileName);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+
+            final CheckedInputStream checkedInput = new CheckedInputStream(ByteStreams.limit(input, size), new CRC32());
+            zipStream.putNextEntry(entry);
+            final long copiedSize = ByteStreams.copy(checkedInput, zipStream);
+            if (copiedSize != size || checkedInput.getChecksum().getValue() != crc.getValue()) {
+                // The header of the entry is sent already, so the archive cannot be completed.
+                throw new ZipException(fileName + " was modified while being stored.");
+            }
+            zipStream.closeEntry();
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Writes everything as HTTP chunks.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private boolean mIsPeerClosed;
+
+        ChunkedOutputStream(final OutputStream output) {
+            super(output);
+        }
+
+        /**
+         * Whether writing to the connection has failed, as opposed to failing to produce the content.
+         */
+        boolean isPeerClosed() {
+            return mIsPeerClosed;
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            try {
+                out.write((Integer.toHexString(count) + "\r\n").getBytes(Charsets.ISO_8859_1));
+                out.write(buffer, offset, count);
+                out.write(CRLF);
+            } catch (final IOException e) {
+                mIsPeerClosed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Writes the last chunk. The underlying stream is not closed, so the connection can be kept alive.
+         */
+        void finish() throws IOException {
+            try {
+                out.write(LAST_CHUNK);
+                out.flush();
+            } catch (final IOException e) {
+                mIsPeerClosed = true;
+                throw e;
+            }
+        }
+
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    }
+}
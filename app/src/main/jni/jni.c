@@ -21,9 +21,12 @@
 #include <jni.h>
 #include <zlib.h>
 
-JNIEXPORT jlong JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeCreate(JNIEnv* env, jclass cls, jstring javaFilename) {
+JNIEXPORT jlong JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeCreate(JNIEnv* env, jclass cls,
+                                                                            jstring javaFilename, jstring javaMode) {
     const char* filename = (*env)->GetStringUTFChars(env, javaFilename, NULL);
-    gzFile f = gzopen(filename, "w");
+    const char* mode = (*env)->GetStringUTFChars(env, javaMode, NULL);
+    gzFile f = gzopen(filename, mode);
+    (*env)->ReleaseStringUTFChars(env, javaMode, mode);
     (*env)->ReleaseStringUTFChars(env, javaFilename, filename);
     return (jlong) f;
 }
@@ -35,26 +38,29 @@ JNIEXPORT void JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeClose(JNIEn
     }
 }
 
-JNIEXPORT void JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeWrite(JNIEnv* env, jclass cls, jlong ptr,
-                                                                           jbyteArray buf, jint off, jint len) {
-    if (ptr != 0) {
-        gzFile f = (gzFile) ptr;
-        jbyte* content = (*env)->GetByteArrayElements(env, buf, NULL);
-        gzwrite(f, content + off, len);
-        (*env)->ReleaseByteArrayElements(env, buf, content, JNI_ABORT);
+static void throwIOException(JNIEnv* env, const char* message) {
+    jclass cls = (*env)->FindClass(env, "java/io/IOException");
+    if (cls != NULL) {
+        (*env)->ThrowNew(env, cls, message);
     }
 }
 
-JNIEXPORT void JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativePutc(JNIEnv* env, jclass cls, jlong ptr, jint c) {
-    if (ptr != 0) {
-        gzFile f = (gzFile) ptr;
-        gzputc(f, c);
-    }
-}
-
-JNIEXPORT void JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeFlush(JNIEnv* env, jclass cls, jlong ptr) {
+JNIEXPORT void JNICALL Java_hihex_cs_FlushableGzipOutputStream_nativeWrite(JNIEnv* env, jclass cls, jlong ptr,
+                                                                           jobject buf, jint len, jint flushMode) {
     if (ptr != 0) {
         gzFile f = (gzFile) ptr;
-        gzflush(f, Z_FULL_FLUSH);
+        if (len > 0) {
+            // gzwrite() compresses straight from the direct buffer when given at least its own input buffer size
+            // (8 KiB by default), as with a full buffer. Shorter writes, e.g. on flush, are copied into that buffer.
+            const jbyte* content = (*env)->GetDirectBufferAddress(env, buf);
+            if (content == NULL) {
+                throwIOException(env, "Cannot access the direct buffer");
+                return;
+            }
+            gzwrite(f, content, len);
+        }
+        if (flushMode != Z_NO_FLUSH) {
+            gzflush(f, flushMode);
+        }
     }
 }